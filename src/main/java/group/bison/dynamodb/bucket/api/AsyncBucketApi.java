@@ -0,0 +1,27 @@
+package group.bison.dynamodb.bucket.api;
+
+import group.bison.dynamodb.bucket.common.domain.BucketQueryResult;
+import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncBucketApi<T> {
+
+    public CompletableFuture<String> add(T item);
+
+    public CompletableFuture<List<String>> addAll(Collection<T> items);
+
+    public CompletableFuture<Void> update(String bizId, T item);
+
+    public CompletableFuture<Void> delete(String bizId, Object hashKey, Object rangeKey);
+
+    public CompletableFuture<Void> flush();
+
+    public CompletableFuture<T> queryOne(String bizId, Object hashKey, Object rangeKey);
+
+    public CompletableFuture<List<T>> query(DataQueryParam dataQueryParam, T latestItem);
+
+    public CompletableFuture<BucketQueryResult<T>> queryPage(DataQueryParam dataQueryParam);
+}
@@ -1,18 +1,34 @@
 package group.bison.dynamodb.bucket.api;
 
+import group.bison.dynamodb.bucket.common.domain.BucketQueryResult;
 import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
-public interface BucketApi<T> {
+public interface BucketApi<T> extends AutoCloseable {
 
     public String add(T item);
 
+    public List<String> addAll(Collection<T> items);
+
     public void update(String bizId, T item);
 
     public void delete(String bizId, Object hashKey, Object rangeKey);
 
+    // 写入开启缓冲时立即写入所有缓冲的数据
+    public void flush();
+
     public T queryOne(String bizId, Object hashKey, Object rangeKey);
 
     public List<T> query(DataQueryParam dataQueryParam, T latestItem);
+
+    public BucketQueryResult<T> queryPage(DataQueryParam dataQueryParam);
+
+    public Stream<T> stream(DataQueryParam dataQueryParam);
+
+    // 写入缓冲的数据并关闭本实例创建的线程池, 通过BucketConfig传入的线程池由调用方关闭
+    @Override
+    public void close();
 }
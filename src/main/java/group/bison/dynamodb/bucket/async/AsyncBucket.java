@@ -0,0 +1,79 @@
+package group.bison.dynamodb.bucket.async;
+
+import group.bison.dynamodb.bucket.api.AsyncBucketApi;
+import group.bison.dynamodb.bucket.api.BucketApi;
+import group.bison.dynamodb.bucket.common.domain.BucketQueryResult;
+import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * 在指定executor上执行BucketApi, 调用方线程不再阻塞在dynamodb请求上
+ * 不是非阻塞IO: 每个进行中的请求仍占用executor的一个线程, 并发上限等于executor的线程数, 线程池需要按并发量设置
+ * 写入和查询可以使用不同的executor, 避免慢查询占满线程后写入排队
+ *
+ * @param <T>
+ */
+public class AsyncBucket<T> implements AsyncBucketApi<T> {
+
+    private BucketApi<T> bucketApi;
+    private Executor writeExecutor;
+    private Executor queryExecutor;
+
+    public AsyncBucket(BucketApi<T> bucketApi, Executor executor) {
+        this(bucketApi, executor, executor);
+    }
+
+    public AsyncBucket(BucketApi<T> bucketApi, Executor writeExecutor, Executor queryExecutor) {
+        if (bucketApi == null || writeExecutor == null || queryExecutor == null) {
+            throw new IllegalArgumentException("bucketApi and executor must not be null");
+        }
+
+        this.bucketApi = bucketApi;
+        this.writeExecutor = writeExecutor;
+        this.queryExecutor = queryExecutor;
+    }
+
+    @Override
+    public CompletableFuture<String> add(T item) {
+        return CompletableFuture.supplyAsync(() -> bucketApi.add(item), writeExecutor);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> addAll(Collection<T> items) {
+        return CompletableFuture.supplyAsync(() -> bucketApi.addAll(items), writeExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> update(String bizId, T item) {
+        return CompletableFuture.runAsync(() -> bucketApi.update(bizId, item), writeExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String bizId, Object hashKey, Object rangeKey) {
+        return CompletableFuture.runAsync(() -> bucketApi.delete(bizId, hashKey, rangeKey), writeExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> flush() {
+        return CompletableFuture.runAsync(() -> bucketApi.flush(), writeExecutor);
+    }
+
+    @Override
+    public CompletableFuture<T> queryOne(String bizId, Object hashKey, Object rangeKey) {
+        return CompletableFuture.supplyAsync(() -> bucketApi.queryOne(bizId, hashKey, rangeKey), queryExecutor);
+    }
+
+    @Override
+    public CompletableFuture<List<T>> query(DataQueryParam dataQueryParam, T latestItem) {
+        return CompletableFuture.supplyAsync(() -> bucketApi.query(dataQueryParam, latestItem), queryExecutor);
+    }
+
+    @Override
+    public CompletableFuture<BucketQueryResult<T>> queryPage(DataQueryParam dataQueryParam) {
+        return CompletableFuture.supplyAsync(() -> bucketApi.queryPage(dataQueryParam), queryExecutor);
+    }
+}
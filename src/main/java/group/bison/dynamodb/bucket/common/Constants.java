@@ -16,11 +16,43 @@ public interface Constants {
 
     String KEY_TTL_TIMESTAMP = "ttl_timestamp";
 
+    String KEY_INDEX_PREFIX = "idx";
+
+    String KEY_INDEX_BITMAP_PREFIX = "idxb";
+
+    String KEY_INDEX_ORDINAL_MAP = "idx#ord";
+
+    String KEY_ITEM_SEQ = "item_seq";
+
+    String KEY_ITEM_ORDINAL = "itemOrdinal";
+
+    // item写入时估算的字节数, 保存在item内, delete时从bucket的size_bytes中减去
+    String KEY_ITEM_SIZE_BYTES = "itemSizeBytes";
+
+    String KEY_WINDOW_SPAN = "window_span";
+
+    String KEY_SIZE_BYTES = "size_bytes";
+
+    // item中压缩保存的属性
+    String KEY_ITEM_PAYLOAD = "_payload";
+
     String SS_EMPTY_STR = "";
 
     String NS_EMPTY_VALUE = "-0";
 
+    // 默认每个bucket的item数量和item_map列数
     Integer MAX_BUCKET_ITEM_COUNT = 64;
 
+    // item_map列数上限, 全列投影表达式不超过DynamoDB限制
+    Integer MAX_BUCKET_COLUMN_COUNT = 256;
+
+    // DynamoDB单个item的大小上限
+    Integer MAX_BUCKET_SIZE_BYTES = 400 * 1024;
+
     Integer SCAN_MAX_COUNT = 10000;
+
+    Integer MAX_UPDATE_EXPRESSION_LENGTH = 4000;
+
+    // bitmap保存为N, dynamodb数字最多38位有效数字, 2^125以内可以精确表示
+    Integer MAX_INDEX_BITMAP_SIZE = 126;
 }
@@ -0,0 +1,23 @@
+package group.bison.dynamodb.bucket.common;
+
+/**
+ * 倒排索引在bucket中的存储方式
+ */
+public enum IndexLayout {
+
+    /**
+     * {field: {value: {itemId: 1|0}}}, 写入前需要先initIndex创建父节点
+     */
+    NESTED,
+
+    /**
+     * 每个(field, value)是一个顶层String Set属性 idx#field#value, 保存itemId, 通过ADD/DELETE维护, 插入只需要一次UpdateItem
+     */
+    FLATTENED,
+
+    /**
+     * 每个item在bucket内分配一个序号ordinal, 每个(field, value)是一个顶层数字属性 idxb#field#value, 按位保存ordinal,
+     * 通过ADD 2^ordinal维护, ordinal到itemId的映射保存在 idx#ord, 查询时按位与求交集
+     */
+    BITMAP
+}
@@ -0,0 +1,62 @@
+package group.bison.dynamodb.bucket.common;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * 多个已排序的iterator按comparator做k路归并, 只在next时才从对应的iterator拉取下一个元素
+ */
+public class OrderedMergeIterator<E> implements Iterator<E> {
+
+    private PriorityQueue<Head<E>> headQueue;
+
+    public OrderedMergeIterator(List<? extends Iterator<? extends E>> iteratorList, Comparator<? super E> comparator) {
+        this.headQueue = new PriorityQueue<>(Math.max(iteratorList.size(), 1), (a, b) -> {
+            int result = comparator.compare(a.element, b.element);
+            // 相等时按iterator顺序, 保证归并结果稳定
+            return result != 0 ? result : Integer.compare(a.order, b.order);
+        });
+
+        for (int i = 0; i < iteratorList.size(); i++) {
+            Iterator<? extends E> iterator = iteratorList.get(i);
+            if (iterator.hasNext()) {
+                headQueue.add(new Head<>(iterator.next(), iterator, i));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !headQueue.isEmpty();
+    }
+
+    @Override
+    public E next() {
+        Head<E> head = headQueue.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+
+        E element = head.element;
+        if (head.iterator.hasNext()) {
+            head.element = head.iterator.next();
+            headQueue.add(head);
+        }
+        return element;
+    }
+
+    static class Head<E> {
+        E element;
+        Iterator<? extends E> iterator;
+        int order;
+
+        Head(E element, Iterator<? extends E> iterator, int order) {
+            this.element = element;
+            this.iterator = iterator;
+            this.order = order;
+        }
+    }
+}
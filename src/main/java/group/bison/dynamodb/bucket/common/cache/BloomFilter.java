@@ -0,0 +1,84 @@
+package group.bison.dynamodb.bucket.common.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的布隆过滤器, mightContain返回false时一定没有put过
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final long bitSize;
+
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions 预计写入数量
+     * @param fpp                达到预计数量时的误判率
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) Math.max(1, Math.min(Integer.MAX_VALUE, (m + 63) >>> 6)));
+        this.bitSize = (long) bits.length() << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void put(String key) {
+        long hash = hash64(key);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bitIndex = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % bitSize;
+            setBit(bitIndex);
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash64(key);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bitIndex = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0);
+        }
+    }
+
+    void setBit(long bitIndex) {
+        int index = (int) (bitIndex >>> 6);
+        long mask = 1L << bitIndex;
+        long value;
+        do {
+            value = bits.get(index);
+            if ((value & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(index, value, value | mask));
+    }
+
+    /**
+     * FNV-1a 64位hash, 再做一次混合让高低32位都均匀
+     */
+    long hash64(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,259 @@
+package group.bison.dynamodb.bucket.common.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * 分段加锁的本地LRU缓存, 支持容量上限和写入后过期, 并统计命中率
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class LocalCache<K, V> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment<K, V>[] segments;
+
+    private final long expireMillis;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    // 容量淘汰和过期删除时回调, 在分段锁内执行, 不能做耗时操作
+    private volatile BiConsumer<K, V> evictionListener;
+
+    /**
+     * @param maxSize      最大条目数
+     * @param expireMillis 写入后过期时间, 小于等于0表示不过期
+     */
+    @SuppressWarnings("unchecked")
+    public LocalCache(long maxSize, long expireMillis) {
+        this.expireMillis = expireMillis;
+        this.segments = new Segment[SEGMENT_COUNT];
+        int segmentMaxSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT));
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(segmentMaxSize, this);
+        }
+    }
+
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            CacheEntry<V> cacheEntry = segment.get(key);
+            if (cacheEntry != null && isExpired(cacheEntry)) {
+                segment.remove(key);
+                onEviction(key, cacheEntry.value);
+                cacheEntry = null;
+            }
+
+            if (cacheEntry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+
+            hitCount.incrementAndGet();
+            return cacheEntry.value;
+        }
+    }
+
+    public void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new CacheEntry<>(value, System.currentTimeMillis()));
+        }
+    }
+
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            CacheEntry<V> cacheEntry = segment.get(key);
+            if (cacheEntry != null && !isExpired(cacheEntry)) {
+                return cacheEntry.value;
+            }
+            if (cacheEntry != null) {
+                onEviction(key, cacheEntry.value);
+            }
+
+            value = mappingFunction.apply(key);
+            if (value != null) {
+                segment.put(key, new CacheEntry<>(value, System.currentTimeMillis()));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 与已有值合并后写入, 已有值不存在或已过期时直接写入value, 合并结果为null时删除
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            CacheEntry<V> cacheEntry = segment.get(key);
+            if (cacheEntry != null && isExpired(cacheEntry)) {
+                onEviction(key, cacheEntry.value);
+                cacheEntry = null;
+            }
+            V mergedValue = cacheEntry == null ? value : remappingFunction.apply(cacheEntry.value, value);
+            if (mergedValue == null) {
+                segment.remove(key);
+            } else {
+                segment.put(key, new CacheEntry<>(mergedValue, System.currentTimeMillis()));
+            }
+            return mergedValue;
+        }
+    }
+
+    /**
+     * 只在已有值存在且未过期时重新计算, 计算结果为null时删除
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            CacheEntry<V> cacheEntry = segment.get(key);
+            if (cacheEntry != null && isExpired(cacheEntry)) {
+                segment.remove(key);
+                onEviction(key, cacheEntry.value);
+                return null;
+            }
+            if (cacheEntry == null) {
+                return null;
+            }
+
+            V value = remappingFunction.apply(key, cacheEntry.value);
+            if (value == null) {
+                segment.remove(key);
+            } else {
+                segment.put(key, new CacheEntry<>(value, cacheEntry.writeTime));
+            }
+            return value;
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void removeIf(BiPredicate<? super K, ? super V> predicate) {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                Iterator<Map.Entry<K, CacheEntry<V>>> entryIterator = segment.entrySet().iterator();
+                while (entryIterator.hasNext()) {
+                    Map.Entry<K, CacheEntry<V>> entry = entryIterator.next();
+                    if (isExpired(entry.getValue())) {
+                        entryIterator.remove();
+                        onEviction(entry.getKey(), entry.getValue().value);
+                    } else if (predicate.test(entry.getKey(), entry.getValue().value)) {
+                        entryIterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public void setEvictionListener(BiConsumer<K, V> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public double getHitRate() {
+        long requestCount = hitCount.get() + missCount.get();
+        return requestCount == 0 ? 1.0 : (double) hitCount.get() / requestCount;
+    }
+
+    void onEviction(K key, V value) {
+        evictionCount.incrementAndGet();
+        BiConsumer<K, V> listener = evictionListener;
+        if (listener != null) {
+            listener.accept(key, value);
+        }
+    }
+
+    boolean isExpired(CacheEntry<V> cacheEntry) {
+        return expireMillis > 0 && System.currentTimeMillis() - cacheEntry.writeTime > expireMillis;
+    }
+
+    Segment<K, V> segmentFor(K key) {
+        int h = 0;
+        int hash = (key == null) ? 0 : (h = key.hashCode()) ^ (h >>> 16);
+        return segments[(SEGMENT_COUNT - 1) & hash];
+    }
+
+    static class CacheEntry<V> {
+        final V value;
+
+        final long writeTime;
+
+        CacheEntry(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    static class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+        private final int maxSize;
+
+        private final LocalCache<K, V> localCache;
+
+        Segment(int maxSize, LocalCache<K, V> localCache) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.localCache = localCache;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+            if (size() > maxSize) {
+                localCache.onEviction(eldest.getKey(), eldest.getValue().value);
+                return true;
+            }
+            return false;
+        }
+    }
+}
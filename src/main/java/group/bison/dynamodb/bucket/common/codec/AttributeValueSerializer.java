@@ -0,0 +1,197 @@
+package group.bison.dynamodb.bucket.common.codec;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AttributeValue的紧凑二进制格式, 每个值一个类型字节, 长度和数量用varint, 字符串为UTF-8
+ */
+public class AttributeValueSerializer {
+
+    static final int TYPE_S = 1;
+    static final int TYPE_N = 2;
+    static final int TYPE_B = 3;
+    static final int TYPE_SS = 4;
+    static final int TYPE_NS = 5;
+    static final int TYPE_BS = 6;
+    static final int TYPE_M = 7;
+    static final int TYPE_L = 8;
+    static final int TYPE_TRUE = 9;
+    static final int TYPE_FALSE = 10;
+    static final int TYPE_NULL = 11;
+
+    public static byte[] serialize(Map<String, AttributeValue> attributeValueMap) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+        writeMap(outputStream, attributeValueMap);
+        return outputStream.toByteArray();
+    }
+
+    public static Map<String, AttributeValue> deserialize(byte[] data) {
+        return readMap(ByteBuffer.wrap(data));
+    }
+
+    static void writeMap(ByteArrayOutputStream outputStream, Map<String, AttributeValue> attributeValueMap) {
+        writeVarint(outputStream, attributeValueMap.size());
+        attributeValueMap.forEach((name, attributeValue) -> {
+            writeString(outputStream, name);
+            writeValue(outputStream, attributeValue);
+        });
+    }
+
+    static void writeValue(ByteArrayOutputStream outputStream, AttributeValue attributeValue) {
+        if (attributeValue.getS() != null) {
+            outputStream.write(TYPE_S);
+            writeString(outputStream, attributeValue.getS());
+        } else if (attributeValue.getN() != null) {
+            outputStream.write(TYPE_N);
+            writeString(outputStream, attributeValue.getN());
+        } else if (attributeValue.getB() != null) {
+            outputStream.write(TYPE_B);
+            writeBytes(outputStream, attributeValue.getB());
+        } else if (attributeValue.getSS() != null) {
+            outputStream.write(TYPE_SS);
+            writeStrings(outputStream, attributeValue.getSS());
+        } else if (attributeValue.getNS() != null) {
+            outputStream.write(TYPE_NS);
+            writeStrings(outputStream, attributeValue.getNS());
+        } else if (attributeValue.getBS() != null) {
+            outputStream.write(TYPE_BS);
+            writeVarint(outputStream, attributeValue.getBS().size());
+            attributeValue.getBS().forEach(byteBuffer -> writeBytes(outputStream, byteBuffer));
+        } else if (attributeValue.getM() != null) {
+            outputStream.write(TYPE_M);
+            writeMap(outputStream, attributeValue.getM());
+        } else if (attributeValue.getL() != null) {
+            outputStream.write(TYPE_L);
+            writeVarint(outputStream, attributeValue.getL().size());
+            attributeValue.getL().forEach(element -> writeValue(outputStream, element));
+        } else if (attributeValue.getBOOL() != null) {
+            outputStream.write(attributeValue.getBOOL() ? TYPE_TRUE : TYPE_FALSE);
+        } else {
+            outputStream.write(TYPE_NULL);
+        }
+    }
+
+    static Map<String, AttributeValue> readMap(ByteBuffer byteBuffer) {
+        int size = readVarint(byteBuffer);
+        Map<String, AttributeValue> attributeValueMap = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            String name = readString(byteBuffer);
+            attributeValueMap.put(name, readValue(byteBuffer));
+        }
+        return attributeValueMap;
+    }
+
+    static AttributeValue readValue(ByteBuffer byteBuffer) {
+        int type = byteBuffer.get();
+        switch (type) {
+            case TYPE_S:
+                return new AttributeValue().withS(readString(byteBuffer));
+            case TYPE_N:
+                return new AttributeValue().withN(readString(byteBuffer));
+            case TYPE_B:
+                return new AttributeValue().withB(readBytes(byteBuffer));
+            case TYPE_SS:
+                return new AttributeValue().withSS(readStrings(byteBuffer));
+            case TYPE_NS:
+                return new AttributeValue().withNS(readStrings(byteBuffer));
+            case TYPE_BS: {
+                int size = readVarint(byteBuffer);
+                List<ByteBuffer> byteBufferList = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    byteBufferList.add(readBytes(byteBuffer));
+                }
+                return new AttributeValue().withBS(byteBufferList);
+            }
+            case TYPE_M:
+                return new AttributeValue().withM(readMap(byteBuffer));
+            case TYPE_L: {
+                int size = readVarint(byteBuffer);
+                List<AttributeValue> attributeValueList = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    attributeValueList.add(readValue(byteBuffer));
+                }
+                return new AttributeValue().withL(attributeValueList);
+            }
+            case TYPE_TRUE:
+                return new AttributeValue().withBOOL(true);
+            case TYPE_FALSE:
+                return new AttributeValue().withBOOL(false);
+            case TYPE_NULL:
+                return new AttributeValue().withNULL(true);
+            default:
+                throw new IllegalStateException("unknown attribute value type " + type);
+        }
+    }
+
+    static void writeStrings(ByteArrayOutputStream outputStream, Collection<String> values) {
+        writeVarint(outputStream, values.size());
+        values.forEach(value -> writeString(outputStream, value));
+    }
+
+    static List<String> readStrings(ByteBuffer byteBuffer) {
+        int size = readVarint(byteBuffer);
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(byteBuffer));
+        }
+        return values;
+    }
+
+    static void writeString(ByteArrayOutputStream outputStream, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(outputStream, bytes.length);
+        outputStream.write(bytes, 0, bytes.length);
+    }
+
+    static String readString(ByteBuffer byteBuffer) {
+        int length = readVarint(byteBuffer);
+        String value = new String(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), length, StandardCharsets.UTF_8);
+        byteBuffer.position(byteBuffer.position() + length);
+        return value;
+    }
+
+    // 不改变原ByteBuffer的position
+    static void writeBytes(ByteArrayOutputStream outputStream, ByteBuffer value) {
+        ByteBuffer byteBuffer = value.duplicate();
+        writeVarint(outputStream, byteBuffer.remaining());
+        while (byteBuffer.hasRemaining()) {
+            outputStream.write(byteBuffer.get());
+        }
+    }
+
+    static ByteBuffer readBytes(ByteBuffer byteBuffer) {
+        int length = readVarint(byteBuffer);
+        byte[] bytes = new byte[length];
+        byteBuffer.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    public static void writeVarint(ByteArrayOutputStream outputStream, int value) {
+        while ((value & ~0x7F) != 0) {
+            outputStream.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write(value);
+    }
+
+    public static int readVarint(ByteBuffer byteBuffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = byteBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+}
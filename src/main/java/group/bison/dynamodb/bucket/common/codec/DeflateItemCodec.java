@@ -0,0 +1,78 @@
+package group.bison.dynamodb.bucket.common.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib格式压缩, 字典的校验和记录在压缩数据中, 解压时字典不一致会失败
+ */
+public class DeflateItemCodec implements ItemCodec {
+
+    private byte[] dictionary;
+
+    private long dictionaryAdler;
+
+    public DeflateItemCodec(byte[] dictionary) {
+        this.dictionary = dictionary != null && dictionary.length > 0 ? dictionary : null;
+        if (this.dictionary != null) {
+            Adler32 adler32 = new Adler32();
+            adler32.update(this.dictionary);
+            this.dictionaryAdler = adler32.getValue();
+        }
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                outputStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return outputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int count = inflater.inflate(result, offset, length - offset);
+                if (count == 0 && inflater.needsDictionary()) {
+                    if (dictionary == null || (inflater.getAdler() & 0xFFFFFFFFL) != dictionaryAdler) {
+                        throw new IllegalStateException("item codec dictionary mismatch");
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (count == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("item payload truncated");
+                }
+                offset += count;
+            }
+            // 记录的长度与实际解压长度不一致时不返回补零或截断的数据
+            if (offset != length || (!inflater.finished() && inflater.inflate(new byte[1]) > 0)) {
+                throw new IllegalStateException("item payload length mismatch");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("item payload corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
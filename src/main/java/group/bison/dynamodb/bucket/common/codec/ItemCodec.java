@@ -0,0 +1,11 @@
+package group.bison.dynamodb.bucket.common.codec;
+
+/**
+ * item payload的压缩算法, 解压时传入压缩前的长度
+ */
+public interface ItemCodec {
+
+    byte[] compress(byte[] data);
+
+    byte[] decompress(byte[] data, int length);
+}
@@ -0,0 +1,52 @@
+package group.bison.dynamodb.bucket.common.codec;
+
+/**
+ * item payload的压缩方式, id写入payload头部, 读取时按id选择解压算法, 已有id不能修改
+ */
+public enum ItemCodecType {
+
+    /**
+     * 不压缩, item保存为原始的M
+     */
+    NONE(0),
+
+    /**
+     * zlib格式, 支持预置字典, 压缩率较高
+     */
+    DEFLATE(1),
+
+    /**
+     * lz4 block格式, 压缩和解压更快, 不支持字典
+     */
+    LZ4(2);
+
+    private final int id;
+
+    ItemCodecType(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public ItemCodec newCodec(byte[] dictionary) {
+        switch (this) {
+            case DEFLATE:
+                return new DeflateItemCodec(dictionary);
+            case LZ4:
+                return new Lz4ItemCodec();
+            default:
+                return null;
+        }
+    }
+
+    public static ItemCodecType of(int id) {
+        for (ItemCodecType itemCodecType : values()) {
+            if (itemCodecType.id == id) {
+                return itemCodecType;
+            }
+        }
+        throw new IllegalArgumentException("unknown item codec id " + id);
+    }
+}
@@ -0,0 +1,25 @@
+package group.bison.dynamodb.bucket.common.codec;
+
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * 解压的是从存储读回的数据, 使用safe解压并校验长度, 不信任payload中记录的长度
+ */
+public class Lz4ItemCodec implements ItemCodec {
+
+    private LZ4Factory lz4Factory = LZ4Factory.fastestInstance();
+
+    @Override
+    public byte[] compress(byte[] data) {
+        return lz4Factory.fastCompressor().compress(data);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int length) {
+        byte[] result = lz4Factory.safeDecompressor().decompress(data, length);
+        if (result.length != length) {
+            throw new IllegalStateException("item payload length mismatch");
+        }
+        return result;
+    }
+}
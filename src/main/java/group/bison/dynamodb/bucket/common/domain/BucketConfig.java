@@ -0,0 +1,190 @@
+package group.bison.dynamodb.bucket.common.domain;
+
+import group.bison.dynamodb.bucket.common.IndexLayout;
+import group.bison.dynamodb.bucket.common.codec.ItemCodecType;
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.concurrent.ExecutorService;
+
+import static group.bison.dynamodb.bucket.common.Constants.MAX_INDEX_BITMAP_SIZE;
+
+@Data
+@Builder
+public class BucketConfig {
+
+    // 每次从bucket租用的slot数量
+    @Builder.Default
+    private int slotLeaseSize = 8;
+
+    // 每个bucket表最多记录的bucketId当前window数量
+    @Builder.Default
+    private long bucketWindowRegistrySize = 100000;
+
+    // bucketId当前window记录的过期时间
+    @Builder.Default
+    private long bucketWindowRegistryExpireMillis = 60 * 60 * 1000;
+
+    // 每个bucket表最多记录已初始化索引的bucketId数量
+    @Builder.Default
+    private long bucketIndexCacheSize = 100000;
+
+    // 已初始化索引记录的过期时间
+    @Builder.Default
+    private long bucketIndexCacheExpireMillis = 60 * 60 * 1000;
+
+    // 倒排索引存储方式
+    @Builder.Default
+    private IndexLayout indexLayout = IndexLayout.NESTED;
+
+    // 单个bucketId查询时并发拉取window的数量, 1为串行
+    @Builder.Default
+    private int queryParallelism = 1;
+
+    // 并发拉取window使用的线程池, 为空时按queryParallelism创建
+    private ExecutorService queryExecutorService;
+
+    // 多个bucketId并发查询的线程数
+    @Builder.Default
+    private int bucketQueryParallelism = 8;
+
+    // 多个bucketId并发查询使用的线程池, 需要和queryExecutorService分开避免互相等待
+    private ExecutorService bucketQueryExecutorService;
+
+    // 查询bucket window时每页的条数, 按需翻页
+    @Builder.Default
+    private int windowQueryPageSize = 16;
+
+    // 索引查询已知window和itemId时是否通过BatchGetItem批量拉取
+    @Builder.Default
+    private boolean batchFetchEnabled = false;
+
+    // 每次BatchGetItem拉取的window数量, 不超过100
+    @Builder.Default
+    private int batchFetchWindowCount = 16;
+
+    // 是否使用编译缓存的表达式过滤, 关闭时使用SimpleExpressionFilter
+    @Builder.Default
+    private boolean compiledExpressionFilterEnabled = true;
+
+    // 编译后的过滤表达式缓存数量
+    @Builder.Default
+    private long expressionFilterCacheSize = 10000;
+
+    // 是否在后台清理NESTED倒排索引中update留下的0值
+    @Builder.Default
+    private boolean indexCompactionEnabled = false;
+
+    // 每秒最多清理的(bucketId, bucketWindow, field)数量
+    @Builder.Default
+    private int indexCompactionRatePerSecond = 10;
+
+    // 等待清理的队列长度, 满了之后新提交的直接丢弃
+    @Builder.Default
+    private int indexCompactionQueueSize = 10000;
+
+    // 更新带索引的item时不预先读取旧值, 通过UPDATED_OLD和补偿更新维护索引, BITMAP索引不支持
+    @Builder.Default
+    private boolean readFreeUpdateEnabled = true;
+
+    // 是否开启写缓冲, 同一个item短时间内的add/update合并后写入
+    @Builder.Default
+    private boolean writeBufferEnabled = false;
+
+    // 写缓冲定时flush的间隔
+    @Builder.Default
+    private long writeBufferFlushMillis = 5;
+
+    // 写缓冲最多保留的item数量, 超过时在写入线程同步flush
+    @Builder.Default
+    private int writeBufferMaxItems = 1000;
+
+    // 是否缓存queryOne读取到的item, 只有同一个bucket实例的写入会删除缓存
+    @Builder.Default
+    private boolean itemCacheEnabled = false;
+
+    // item缓存数量
+    @Builder.Default
+    private long itemCacheSize = 10000;
+
+    // item缓存写入后过期时间, 其他进程写入后最多读到这么久的旧值
+    @Builder.Default
+    private long itemCacheExpireMillis = 1000;
+
+    // 是否缓存每个bucketId最新window的全部item, 用于query的eager fetch
+    @Builder.Default
+    private boolean latestWindowCacheEnabled = false;
+
+    // 最新window缓存的bucketId数量
+    @Builder.Default
+    private long latestWindowCacheSize = 10000;
+
+    // 最新window缓存写入后过期时间, 其他进程写入后最多读到这么久的旧值
+    @Builder.Default
+    private long latestWindowCacheExpireMillis = 1000;
+
+    // 是否在本地记录已确认存在的bucket window, 减少创建bucket前的GetItem
+    @Builder.Default
+    private boolean bucketExistenceIndexEnabled = true;
+
+    // 可以直接判定存在的window缓存数量
+    @Builder.Default
+    private long bucketExistenceCacheSize = 100000;
+
+    // 布隆过滤器预计记录的window数量, 误判率1%时约占1.2MB
+    @Builder.Default
+    private long bucketExistenceFilterSize = 1000000;
+
+    // bucketWindow的单位秒数, 已有数据的表不能修改
+    @Builder.Default
+    private long bucketWindowSeconds = 60 * 60;
+
+    // 是否按每个bucketId的写入速率自适应选择window跨度
+    @Builder.Default
+    private boolean adaptiveBucketWindowEnabled = false;
+
+    // 自适应window最小跨度, 单位是bucketWindowSeconds, 取2的幂
+    @Builder.Default
+    private int minBucketWindowSpan = 1;
+
+    // 自适应window最大跨度, 单位是bucketWindowSeconds, 取2的幂, 查询起点最多前移这么多
+    @Builder.Default
+    private int maxBucketWindowSpan = 16;
+
+    // 每个bucket最多写入的item数量, BITMAP索引下同时受MAX_INDEX_BITMAP_SIZE限制
+    @Builder.Default
+    private int bucketSlotCount = 64;
+
+    // 每个bucket的item_map列数, item按itemId hash分到各列, 取2的幂且不超过256, 已有数据的表不能修改
+    @Builder.Default
+    private int bucketColumnCount = 64;
+
+    // bucket估算大小超过后不再租用slot, 与bucketSlotCount先到先滚动, 需给已租用slot的写入和update增长预留空间
+    @Builder.Default
+    private int bucketSizeLimitBytes = 300 * 1024;
+
+    // item属性的压缩方式, 修改后新写入的item生效, 已有数据按payload中的codec id读取
+    @Builder.Default
+    private ItemCodecType itemCodecType = ItemCodecType.NONE;
+
+    // DEFLATE的预置字典, 可用常见的url前缀和json片段, 写入过数据后不能修改
+    private byte[] itemCodecDictionary;
+
+    // 序列化后小于这个字节数的item不压缩
+    @Builder.Default
+    private int itemCodecMinBytes = 128;
+
+    // 已确认存在的window缓存的过期时间, bucket会按ttl过期删除, 不能超过最短的item ttl
+    @Builder.Default
+    private long bucketExistenceCacheExpireMillis = 10 * 60 * 1000;
+
+    /**
+     * 检查互相依赖的配置, 不合法时抛出IllegalArgumentException
+     */
+    public void validate() {
+        // 每个item占bitmap的一位, 超过bitmap位数的slot永远租不到
+        if (indexLayout == IndexLayout.BITMAP && bucketSlotCount > MAX_INDEX_BITMAP_SIZE) {
+            throw new IllegalArgumentException("bucketSlotCount " + bucketSlotCount + " exceeds MAX_INDEX_BITMAP_SIZE " + MAX_INDEX_BITMAP_SIZE + " with BITMAP index layout");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package group.bison.dynamodb.bucket.common.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 分页游标, 记录每个bucketId上一页停止的位置: bucketWindow, window内已读的slot数和最后一个itemId
+ */
+@Data
+@NoArgsConstructor
+public class BucketCursor {
+
+    private Map<String, Position> positionMap = new LinkedHashMap<>();
+
+    public boolean isExhausted() {
+        return !positionMap.isEmpty() && positionMap.values().stream().allMatch(Position::isExhausted);
+    }
+
+    public String encode() {
+        String cursor = positionMap.values().stream().map(position -> String.join(",",
+                encodeValue(position.getBucketId()),
+                position.getBucketWindow() instanceof Number ? "N" : "S",
+                position.getBucketWindow() == null ? "" : encodeValue(String.valueOf(position.getBucketWindow())),
+                String.valueOf(position.getSlot()),
+                encodeValue(StringUtils.defaultString(position.getItemId())),
+                position.isExhausted() ? "1" : "0"
+        )).collect(Collectors.joining(";"));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static BucketCursor decode(String cursor) {
+        BucketCursor bucketCursor = new BucketCursor();
+        if (StringUtils.isEmpty(cursor)) {
+            return bucketCursor;
+        }
+
+        try {
+            String decodeCursor = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            for (String positionStr : StringUtils.split(decodeCursor, ';')) {
+                String[] positionArray = positionStr.split(",", -1);
+                String bucketWindow = decodeValue(positionArray[2]);
+                Object positionBucketWindow = StringUtils.isEmpty(bucketWindow) ? null : "N".equals(positionArray[1]) ? (Object) Long.valueOf(bucketWindow) : bucketWindow;
+                Position position = new Position(decodeValue(positionArray[0]), positionBucketWindow, Integer.parseInt(positionArray[3]), StringUtils.defaultIfEmpty(decodeValue(positionArray[4]), null), "1".equals(positionArray[5]));
+                bucketCursor.getPositionMap().put(position.getBucketId(), position);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid bucket cursor: " + cursor, e);
+        }
+        return bucketCursor;
+    }
+
+    static String encodeValue(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String decodeValue(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Position {
+
+        private String bucketId;
+
+        private Object bucketWindow;
+
+        // bucketWindow内已经返回的item数量, itemId找不到(已删除)时按slot跳过
+        private int slot;
+
+        private String itemId;
+
+        // bucketId已经没有更多数据
+        private boolean exhausted;
+    }
+}
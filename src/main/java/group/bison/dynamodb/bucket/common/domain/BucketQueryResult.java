@@ -0,0 +1,20 @@
+package group.bison.dynamodb.bucket.common.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 分页查询结果, cursor为空表示没有下一页
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BucketQueryResult<T> {
+
+    private List<T> itemList;
+
+    private String cursor;
+}
@@ -4,6 +4,7 @@ import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import lombok.Builder;
 import lombok.Data;
 
+import java.util.List;
 import java.util.Map;
 
 @Data
@@ -18,4 +19,10 @@ public class DataQueryParam {
     private int from;
 
     private int to;
+
+    // 上一页返回的游标, 不为空时从游标位置继续, to - from为页大小
+    private String cursor;
+
+    // 只返回item的这些属性, 为空时返回整个item
+    private List<String> projectionList;
 }
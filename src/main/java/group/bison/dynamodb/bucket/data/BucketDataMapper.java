@@ -2,43 +2,85 @@ package group.bison.dynamodb.bucket.data;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.QueryRequest;
-import com.amazonaws.services.dynamodbv2.model.QueryResult;
 import com.amazonaws.services.dynamodbv2.model.ReturnItemCollectionMetrics;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import group.bison.dynamodb.bucket.common.Constants;
+import group.bison.dynamodb.bucket.common.IndexLayout;
+import group.bison.dynamodb.bucket.common.OrderedMergeIterator;
+import group.bison.dynamodb.bucket.common.codec.ItemCodecType;
+import group.bison.dynamodb.bucket.common.domain.BucketCursor;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.common.domain.BucketQueryResult;
 import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
+import group.bison.dynamodb.bucket.metadata.BucketExistenceIndex;
 import group.bison.dynamodb.bucket.metadata.BucketItem;
+import group.bison.dynamodb.bucket.metadata.BucketWindowCalculator;
+import group.bison.dynamodb.bucket.metadata.BucketWindowRegistry;
 import group.bison.dynamodb.bucket.metadata.IndexCollection;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.BeanUtils;
 
 import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BIZ_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_INDEX_BITMAP_PREFIX;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_INDEX_ORDINAL_MAP;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_INDEX_PREFIX;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_ORDINAL;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_SIZE_BYTES;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_MAP;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_SIZE_BYTES;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_TTL_TIMESTAMP;
-import static group.bison.dynamodb.bucket.common.Constants.MAX_BUCKET_ITEM_COUNT;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_WINDOW_SPAN;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_BUCKET_COLUMN_COUNT;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_INDEX_BITMAP_SIZE;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_UPDATE_EXPRESSION_LENGTH;
 import static group.bison.dynamodb.bucket.common.Constants.NS_EMPTY_VALUE;
 import static group.bison.dynamodb.bucket.common.Constants.SCAN_MAX_COUNT;
 import static group.bison.dynamodb.bucket.common.Constants.SS_EMPTY_STR;
@@ -47,6 +89,9 @@ import static group.bison.dynamodb.bucket.common.Constants.SS_EMPTY_STR;
 @NoArgsConstructor
 public class BucketDataMapper {
 
+    // 分配slot时bizId, itemSizeBytes等属性还没有写入item, 按这个大小预留
+    static final int NEW_ITEM_RESERVED_BYTES = 128;
+
     private String bucketTableName;
 
     private AmazonDynamoDB dynamoDB;
@@ -55,12 +100,31 @@ public class BucketDataMapper {
 
     private BucketDataQueryFetcher bucketDataQueryFetcher;
 
+    private BucketLatestWindowCache bucketLatestWindowCache;
+
+    private BucketExistenceIndex bucketExistenceIndex;
+
+    private BucketWindowCalculator bucketWindowCalculator;
+
+    private BucketItemEncoder bucketItemEncoder;
+
+    private int itemMapColumnCount;
+
     private Optional<AmazonS3> amazonS3Optional;
 
+    private BucketConfig bucketConfig;
+
+    private volatile ExecutorService queryExecutorService;
+
     public BucketDataMapper(String bucketTableName, AmazonDynamoDB dynamoDB, AmazonS3 amazonS3, ExpressionFilter expressionFilter) {
+        this(bucketTableName, dynamoDB, amazonS3, expressionFilter, BucketConfig.builder().build());
+    }
+
+    public BucketDataMapper(String bucketTableName, AmazonDynamoDB dynamoDB, AmazonS3 amazonS3, ExpressionFilter expressionFilter, BucketConfig bucketConfig) {
         this.bucketTableName = bucketTableName;
         this.dynamoDB = dynamoDB;
         this.expressionFilter = expressionFilter;
+        this.bucketConfig = bucketConfig;
         if (amazonS3 == null) {
             this.amazonS3Optional = Optional.empty();
         } else {
@@ -71,78 +135,297 @@ public class BucketDataMapper {
     }
 
     void init() {
-        this.bucketDataQueryFetcher = new BucketDataQueryFetcher(bucketTableName, dynamoDB, expressionFilter);
+        this.itemMapColumnCount = Integer.highestOneBit(Math.max(1, Math.min(bucketConfig.getBucketColumnCount(), MAX_BUCKET_COLUMN_COUNT)));
+        this.bucketItemEncoder = new BucketItemEncoder(bucketConfig);
+        this.bucketDataQueryFetcher = new BucketDataQueryFetcher(bucketTableName, dynamoDB, expressionFilter, itemMapColumnCount, bucketItemEncoder);
+        if (bucketConfig.isLatestWindowCacheEnabled()) {
+            this.bucketLatestWindowCache = new BucketLatestWindowCache(bucketConfig.getLatestWindowCacheSize(), bucketConfig.getLatestWindowCacheExpireMillis());
+        }
+    }
+
+    public BucketLatestWindowCache getBucketLatestWindowCache() {
+        return bucketLatestWindowCache;
+    }
+
+    /**
+     * 查询遍历到的window都已存在, 记录到BucketMetaDataMapper的存在索引
+     */
+    public void setBucketExistenceIndex(BucketExistenceIndex bucketExistenceIndex) {
+        this.bucketExistenceIndex = bucketExistenceIndex;
+    }
+
+    /**
+     * 自适应window时查询起点需要前移, 并跳过不相交的window
+     */
+    public void setBucketWindowCalculator(BucketWindowCalculator bucketWindowCalculator) {
+        this.bucketWindowCalculator = bucketWindowCalculator;
     }
 
     public void insert(BucketItem bucketItem) {
-        // 需保存bizId
-        bucketItem.getItemAttributeValueMap().put(KEY_BIZ_ID, new AttributeValue().withS(bucketItem.getBizId()));
+        insertAll(Collections.singletonList(bucketItem));
+    }
 
-        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
-        updateItemRequest.setTableName(bucketTableName);
-        updateItemRequest.setReturnItemCollectionMetrics(ReturnItemCollectionMetrics.SIZE);
+    public void insertAll(List<BucketItem> bucketItemList) {
+        insertAll(bucketItemList, false);
+    }
 
-        Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
-        bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketItem.getBucketId()));
-        bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, bucketItem.getBucketWindow() instanceof String ? (new AttributeValue().withS(bucketItem.getBucketWindow())) : new AttributeValue().withN(String.valueOf(bucketItem.<Object>getBucketWindow())));
-        updateItemRequest.setKey(bucketKeyAttributeValueMap);
+    /**
+     * 批量写入同一个bucket的item, 按update expression长度拆分成尽量少的UpdateItem
+     * slotLeased为true表示slot已经通过BucketSlotAllocator计入item_count, 写入时不再累加
+     */
+    public void insertAll(List<BucketItem> bucketItemList, boolean slotLeased) {
+        if (CollectionUtils.isEmpty(bucketItemList)) {
+            return;
+        }
 
-        Map<String, String> attributeNameMap = new HashMap<>();
-        Map<String, AttributeValue> attributeValueMap = new HashMap<>();
-        StringBuilder updateExpressionBuilder = new StringBuilder("SET ");
+        if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP) {
+            assignItemOrdinals(bucketItemList);
+        }
 
-        String itemMapColumn = getItemMapColumn(bucketItem.getItemId());
-        updateExpressionBuilder.append(String.join("", itemMapColumn, ".", "#itemId", " = ", ":item"));
-        updateExpressionBuilder.append(",");
-        attributeNameMap.put("#itemId", bucketItem.getItemId());
-        attributeValueMap.put(":item", new AttributeValue().withM(bucketItem.getItemAttributeValueMap()));
+        List<BucketItem> chunkBucketItemList = new LinkedList<>();
+        UpdateExpression updateExpression = new UpdateExpression();
+        Set<String> chunkIndexColumnSet = new HashSet<>();
+        long chunkSizeBytes = 0;
 
-        updateExpressionBuilder.append(String.join("", Constants.KEY_ITEM_COUNT, " = ", Constants.KEY_ITEM_COUNT, " + ", ":one"));
-        updateExpressionBuilder.append(",");
-        attributeValueMap.put(":one", new AttributeValue().withN("1"));
+        for (BucketItem bucketItem : bucketItemList) {
+            // 需保存bizId
+            bucketItem.getItemAttributeValueMap().put(KEY_BIZ_ID, new AttributeValue().withS(bucketItem.getBizId()));
+            if (bucketItem.getItemOrdinal() != null && bucketConfig.getIndexLayout() == IndexLayout.BITMAP) {
+                bucketItem.getItemAttributeValueMap().put(KEY_ITEM_ORDINAL, new AttributeValue().withN(String.valueOf(bucketItem.getItemOrdinal())));
+            }
 
-        // add value index
-        if (bucketItem.getIndexCollection() != null) {
+            Map<String, AttributeValue> storedAttributeValueMap = new HashMap<>(bucketItemEncoder.encode(bucketItem));
+            long itemSizeBytes = estimateItemSize(bucketItem, storedAttributeValueMap);
+            // 记录写入时估算的大小, delete时从size_bytes中减去
+            storedAttributeValueMap.put(KEY_ITEM_SIZE_BYTES, new AttributeValue().withN(String.valueOf(itemSizeBytes)));
+            UpdateExpression itemUpdateExpression = buildInsertExpression(bucketItem, storedAttributeValueMap, chunkBucketItemList.size());
+
+            // 平铺和bitmap索引在批次内按列合并成一个ADD, 每个新列预留占位符长度
+            Set<String> itemIndexColumnSet = getIndexColumnSet(bucketItem);
+            int indexExpressionLength = (chunkIndexColumnSet.size() + (int) itemIndexColumnSet.stream().filter(indexColumn -> !chunkIndexColumnSet.contains(indexColumn)).count()) * 16;
+
+            if (!chunkBucketItemList.isEmpty() && updateExpression.length() + itemUpdateExpression.length() + indexExpressionLength > MAX_UPDATE_EXPRESSION_LENGTH) {
+                doInsert(chunkBucketItemList, slotLeased, updateExpression, chunkSizeBytes);
+
+                chunkBucketItemList = new LinkedList<>();
+                updateExpression = new UpdateExpression();
+                chunkIndexColumnSet.clear();
+                chunkSizeBytes = 0;
+                itemUpdateExpression = buildInsertExpression(bucketItem, storedAttributeValueMap, 0);
+            }
+
+            chunkBucketItemList.add(bucketItem);
+            chunkSizeBytes += itemSizeBytes;
+            chunkIndexColumnSet.addAll(itemIndexColumnSet);
+            updateExpression.merge(itemUpdateExpression);
+        }
+
+        doInsert(chunkBucketItemList, slotLeased, updateExpression, chunkSizeBytes);
+
+        if (bucketLatestWindowCache != null) {
+            bucketLatestWindowCache.onInsert(bucketItemList);
+        }
+
+        amazonS3Optional.ifPresent(amazonS3 -> bucketItemList.forEach(bucketItem -> {
+            try {
+                bucketItem.getItemAttributeValueMap().put("DATA_EVENT", new AttributeValue().withS("INSERT"));
+                String bucketS3StorageKey = String.join("/", bucketTableName, String.valueOf(bucketItem.getBucketId()), bucketItem.getBucketWindow().toString(), String.join("", String.valueOf(System.currentTimeMillis()), ".json"));
+                String bucketItemJson = new ObjectMapper().writeValueAsString(bucketItem.getItemAttributeValueMap());
+                amazonS3.putObject("addx-test", bucketS3StorageKey, new ByteArrayInputStream(bucketItemJson.getBytes()), new ObjectMetadata());
+            } catch (Exception e) {
+                log.warn("amazonS3 putObject failed", e);
+            }
+        }));
+    }
+
+    /**
+     * storedAttributeValueMap是编码后写入bucket的属性
+     */
+    UpdateExpression buildInsertExpression(BucketItem bucketItem, Map<String, AttributeValue> storedAttributeValueMap, int itemIndex) {
+        UpdateExpression updateExpression = new UpdateExpression();
+
+        String itemIdKey = String.join("", "#i", String.valueOf(itemIndex));
+        String itemValueKey = String.join("", ":i", String.valueOf(itemIndex));
+
+        String itemMapColumn = getItemMapColumn(bucketItem.getItemId());
+        updateExpression.set(String.join("", itemMapColumn, ".", itemIdKey, " = ", itemValueKey));
+        updateExpression.name(itemIdKey, bucketItem.getItemId());
+        updateExpression.value(itemValueKey, new AttributeValue().withM(storedAttributeValueMap));
+
+        if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP && bucketItem.getItemOrdinal() != null) {
+            // 记录ordinal到itemId的映射, 查询时把bitmap还原成itemId
+            updateExpression.set(String.join("", "#ord.", itemIdKey, "o", " = ", itemValueKey, "id"));
+            updateExpression.name("#ord", KEY_INDEX_ORDINAL_MAP);
+            updateExpression.name(itemIdKey + "o", String.valueOf(bucketItem.getItemOrdinal()));
+            updateExpression.value(itemValueKey + "id", new AttributeValue().withS(bucketItem.getItemId()));
+        }
+
+        // add value index, 平铺和bitmap索引在doInsert中按批次合并
+        if (bucketItem.getIndexCollection() != null && bucketConfig.getIndexLayout() == IndexLayout.NESTED) {
+            AtomicInteger j = new AtomicInteger();
             bucketItem.getIndexCollection().getIndexMap().entrySet().forEach(indexEntry -> {
                 if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap())) {
                     return;
                 }
 
-                String indexKey = String.join("", "#", indexEntry.getKey());
+                String indexKey = String.join("", itemIdKey, "f", String.valueOf(j.incrementAndGet()));
 
-                AtomicInteger i = new AtomicInteger();
+                AtomicInteger k = new AtomicInteger();
                 indexEntry.getValue().getInvertedIndexValueMap().entrySet().forEach(invertedIndexValueEntry -> {
                     if (isEmptyIndexValue(invertedIndexValueEntry.getKey())) {
                         return;
                     }
 
-                    String indexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                    String invertedIndexValueKeyPath = String.join(".", indexKey, indexSubKey, "#itemId");
-                    updateExpressionBuilder.append(String.join("", invertedIndexValueKeyPath, " = ", ":one"));
-                    updateExpressionBuilder.append(",");
-                    attributeNameMap.put(indexSubKey, invertedIndexValueEntry.getKey());
-                    attributeNameMap.put(indexKey, indexEntry.getKey());
+                    String indexSubKey = String.join("", indexKey, "v", String.valueOf(k.incrementAndGet()));
+                    String invertedIndexValueKeyPath = String.join(".", indexKey, indexSubKey, itemIdKey);
+                    updateExpression.set(String.join("", invertedIndexValueKeyPath, " = ", ":one"));
+                    updateExpression.name(indexSubKey, invertedIndexValueEntry.getKey());
+                    updateExpression.name(indexKey, indexEntry.getKey());
+                    updateExpression.value(":one", new AttributeValue().withN("1"));
                 });
             });
         }
 
-        if (bucketItem.getItemAttributeValueMap().containsKey(KEY_TTL_TIMESTAMP)) {
-            updateExpressionBuilder.append("ttl_timestamp").append("=").append(":ttl_timestamp");
-            updateExpressionBuilder.append(",");
-            attributeValueMap.put(":ttl_timestamp", bucketItem.getItemAttributeValueMap().get(KEY_TTL_TIMESTAMP));
+        return updateExpression;
+    }
+
+    void doInsert(List<BucketItem> chunkBucketItemList, boolean slotLeased, UpdateExpression updateExpression, long chunkSizeBytes) {
+        if (CollectionUtils.isEmpty(chunkBucketItemList)) {
+            return;
         }
 
-        updateExpressionBuilder.deleteCharAt(updateExpressionBuilder.length() - 1);
+        BucketItem firstBucketItem = chunkBucketItemList.get(0);
 
-        updateItemRequest.setUpdateExpression(updateExpressionBuilder.toString());
-        updateItemRequest.setExpressionAttributeNames(attributeNameMap);
-        updateItemRequest.setExpressionAttributeValues(attributeValueMap);
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+        updateItemRequest.setReturnItemCollectionMetrics(ReturnItemCollectionMetrics.SIZE);
+        updateItemRequest.setKey(getBucketKey(firstBucketItem.getBucketId(), firstBucketItem.getBucketWindow()));
+
+        if (!slotLeased) {
+            updateExpression.set(String.join("", Constants.KEY_ITEM_COUNT, " = ", Constants.KEY_ITEM_COUNT, " + ", ":count"));
+            updateExpression.value(":count", new AttributeValue().withN(String.valueOf(chunkBucketItemList.size())));
+        }
+
+        // 累加估算的字节数, 租用slot时按size_bytes滚动bucket
+        appendSizeBytesUpdate(updateExpression, chunkSizeBytes);
+
+        appendIndexInsert(updateExpression, chunkBucketItemList);
+
+        // bucket的ttl取批次内最大的item ttl
+        AttributeValue ttlAttributeValue = chunkBucketItemList.stream()
+                .map(bucketItem -> bucketItem.getItemAttributeValueMap().get(KEY_TTL_TIMESTAMP))
+                .filter(attributeValue -> attributeValue != null && StringUtils.isNotEmpty(attributeValue.getN()))
+                .max(Comparator.comparing(attributeValue -> new BigDecimal(attributeValue.getN())))
+                .orElse(null);
+        if (ttlAttributeValue != null) {
+            updateExpression.set("ttl_timestamp=:ttl_timestamp");
+            updateExpression.value(":ttl_timestamp", ttlAttributeValue);
+        }
+
+        updateExpression.applyTo(updateItemRequest);
 
         dynamoDB.updateItem(updateItemRequest);
+    }
+
+    /**
+     * 平铺和bitmap索引按列合并批次内的item, 同一列只出现一次, 避免update expression路径重叠
+     */
+    void appendIndexInsert(UpdateExpression updateExpression, List<BucketItem> chunkBucketItemList) {
+        if (bucketConfig.getIndexLayout() == IndexLayout.NESTED) {
+            return;
+        }
+
+        Map<String, List<BucketItem>> indexColumnItemMap = new LinkedHashMap<>();
+        chunkBucketItemList.forEach(bucketItem -> getIndexColumnSet(bucketItem).forEach(indexColumn -> indexColumnItemMap.computeIfAbsent(indexColumn, key -> new LinkedList<>()).add(bucketItem)));
+
+        AtomicInteger x = new AtomicInteger();
+        indexColumnItemMap.forEach((indexColumn, indexBucketItemList) -> {
+            String indexColumnKey = String.join("", "#x", String.valueOf(x.incrementAndGet()));
+            String indexValueKey = String.join("", ":x", String.valueOf(x.get()));
+            updateExpression.add(String.join(" ", indexColumnKey, indexValueKey));
+            updateExpression.name(indexColumnKey, indexColumn);
+            if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP) {
+                // 批次内ordinal互不相同, 相加即按位或
+                BigInteger bitmap = indexBucketItemList.stream().map(bucketItem -> getOrdinalBit(bucketItem.getItemOrdinal())).reduce(BigInteger.ZERO, BigInteger::or);
+                updateExpression.value(indexValueKey, new AttributeValue().withN(bitmap.toString()));
+            } else {
+                // 顶层String Set属性, ADD不需要父节点存在, 批次内重复写入同一item时set不能有重复元素
+                updateExpression.value(indexValueKey, new AttributeValue().withSS(indexBucketItemList.stream().map(BucketItem::getItemId).distinct().collect(Collectors.toList())));
+            }
+        });
+    }
+
+    /**
+     * 平铺和bitmap索引下item需要写入的索引列
+     */
+    Set<String> getIndexColumnSet(BucketItem bucketItem) {
+        if (bucketConfig.getIndexLayout() == IndexLayout.NESTED || bucketItem.getIndexCollection() == null) {
+            return Collections.emptySet();
+        }
+        if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP && bucketItem.getItemOrdinal() == null) {
+            return Collections.emptySet();
+        }
+
+        Set<String> indexColumnSet = new LinkedHashSet<>();
+        bucketItem.getIndexCollection().getIndexMap().forEach((field, invertedIndex) -> {
+            if (MapUtils.isEmpty(invertedIndex.getInvertedIndexValueMap())) {
+                return;
+            }
+            invertedIndex.getInvertedIndexValueMap().keySet().stream().filter(value -> !isEmptyIndexValue(value)).forEach(value -> indexColumnSet.add(getIndexColumn(field, value)));
+        });
+        return indexColumnSet;
+    }
+
+    /**
+     * 没有通过BucketSlotAllocator租用slot的item, 单独从item_seq分配ordinal
+     */
+    void assignItemOrdinals(List<BucketItem> bucketItemList) {
+        List<BucketItem> unassignedBucketItemList = bucketItemList.stream().filter(bucketItem -> bucketItem.getItemOrdinal() == null).collect(Collectors.toList());
+        if (unassignedBucketItemList.isEmpty()) {
+            return;
+        }
+
+        BucketItem firstBucketItem = bucketItemList.get(0);
+
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+        updateItemRequest.setKey(getBucketKey(firstBucketItem.getBucketId(), firstBucketItem.getBucketWindow()));
+
+        UpdateExpression updateExpression = new UpdateExpression();
+        updateExpression.add(String.join("", Constants.KEY_ITEM_SEQ, " :count"));
+        updateExpression.set("#ord = if_not_exists(#ord, :emptyMap)");
+        updateExpression.name("#ord", KEY_INDEX_ORDINAL_MAP);
+        updateExpression.value(":count", new AttributeValue().withN(String.valueOf(unassignedBucketItemList.size())));
+        updateExpression.value(":emptyMap", new AttributeValue().withM(Collections.emptyMap()));
+        updateExpression.applyTo(updateItemRequest);
+        updateItemRequest.setReturnValues(ReturnValue.UPDATED_NEW);
+
+        UpdateItemResult updateItemResult = dynamoDB.updateItem(updateItemRequest);
+        int endOrdinal = Integer.valueOf(updateItemResult.getAttributes().get(Constants.KEY_ITEM_SEQ).getN());
+        if (endOrdinal > MAX_INDEX_BITMAP_SIZE) {
+            throw new RuntimeException("bucket index bitmap is full, bucketId:" + firstBucketItem.getBucketId() + " bucketWindow:" + firstBucketItem.getBucketWindow());
+        }
+
+        AtomicInteger ordinal = new AtomicInteger(endOrdinal - unassignedBucketItemList.size());
+        unassignedBucketItemList.forEach(bucketItem -> bucketItem.setItemOrdinal(ordinal.getAndIncrement()));
+    }
+
+    public void update(BucketItem bucketItem) {
+        // bitmap通过ADD加减维护, 不是幂等的, 仍需要先读取旧值
+        if (bucketItem.getIndexCollection() != null && bucketConfig.isReadFreeUpdateEnabled() && bucketConfig.getIndexLayout() != IndexLayout.BITMAP) {
+            updateReadFree(bucketItem);
+        } else {
+            updateWithRead(bucketItem);
+        }
+
+        if (bucketLatestWindowCache != null) {
+            bucketLatestWindowCache.onUpdate(bucketItem);
+        }
 
         amazonS3Optional.ifPresent(amazonS3 -> {
             try {
-                bucketItem.getItemAttributeValueMap().put("DATA_EVENT", new AttributeValue().withS("INSERT"));
+                bucketItem.getItemAttributeValueMap().put("DATA_EVENT", new AttributeValue().withS("UPDATE"));
+
                 String bucketS3StorageKey = String.join("/", bucketTableName, String.valueOf(bucketItem.getBucketId()), bucketItem.getBucketWindow().toString(), String.join("", String.valueOf(System.currentTimeMillis()), ".json"));
                 String bucketItemJson = new ObjectMapper().writeValueAsString(bucketItem.getItemAttributeValueMap());
                 amazonS3.putObject("addx-test", bucketS3StorageKey, new ByteArrayInputStream(bucketItemJson.getBytes()), new ObjectMetadata());
@@ -152,155 +435,345 @@ public class BucketDataMapper {
         });
     }
 
-    public void update(BucketItem bucketItem) {
+    /**
+     * 不预先读取的更新: 写入新值时同时把新索引值置为有效, 通过UPDATED_OLD拿到旧值,
+     * 旧值有被替换的索引时再发一次补偿更新置为无效, 索引值不变时只需要一次UpdateItem
+     * 补偿要求字段仍是本次写入的值, 否则之后的更新会负责清理
+     * size_bytes按UPDATED_OLD计算差值, 随补偿更新一起写入; 没有补偿更新时只有变大才单独写一次, 变小时忽略, 估算值只会偏大
+     */
+    void updateReadFree(BucketItem bucketItem) {
         UpdateItemRequest updateItemRequest = new UpdateItemRequest();
         updateItemRequest.setTableName(bucketTableName);
+        updateItemRequest.setKey(getBucketKey(bucketItem.getBucketId(), bucketItem.getBucketWindow()));
 
-        Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
-        bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketItem.getBucketId()));
-        bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, bucketItem.getBucketWindow() instanceof String ? new AttributeValue().withS((String) bucketItem.getBucketWindow()) : new AttributeValue().withN(String.valueOf(bucketItem.<Object>getBucketWindow())));
-        updateItemRequest.setKey(bucketKeyAttributeValueMap);
+        String itemMapColumn = getItemMapColumn(bucketItem.getItemId());
 
-        Map<String, String> attributeNameMap = new HashMap<>();
-        Map<String, AttributeValue> attributeValueMap = new HashMap<>();
-        StringBuilder updateExpressionBuilder = new StringBuilder("SET ");
+        UpdateExpression updateExpression = buildItemUpdateExpression(bucketItem, itemMapColumn);
 
-        String itemMapColumn = getItemMapColumn(bucketItem.getItemId());
+        // set new index value 1
+        AtomicInteger j = new AtomicInteger();
+        bucketItem.getIndexCollection().getIndexMap().forEach((field, invertedIndex) -> {
+            if (MapUtils.isEmpty(invertedIndex.getInvertedIndexValueMap())) {
+                return;
+            }
+
+            String indexKey = String.join("", "#f", String.valueOf(j.incrementAndGet()));
+            AtomicInteger k = new AtomicInteger();
+            invertedIndex.getInvertedIndexValueMap().keySet().stream().filter(value -> !isEmptyIndexValue(value)).forEach(value -> {
+                appendIndexUpdate(updateExpression, bucketItem.getItemId(), indexKey, String.join("", indexKey, "v", String.valueOf(k.incrementAndGet())), field, value, true);
+            });
+        });
+
+        updateExpression.applyTo(updateItemRequest);
+        updateItemRequest.setConditionExpression(String.join("", "attribute_exists(", itemMapColumn, ".", "#itemId", ".", KEY_BIZ_ID, ")"));
+        updateItemRequest.setReturnValues(ReturnValue.UPDATED_OLD);
+
+        UpdateItemResult updateItemResult = dynamoDB.updateItem(updateItemRequest);
+        Map<String, AttributeValue> oldAttributeValueMap = Optional.ofNullable(updateItemResult.getAttributes())
+                .map(attributeValueMap -> attributeValueMap.get(itemMapColumn))
+                .map(AttributeValue::getM)
+                .map(itemMap -> itemMap.get(bucketItem.getItemId()))
+                .map(AttributeValue::getM)
+                .orElse(Collections.emptyMap());
+        long sizeBytes = estimateUpdateSize(bucketItem, oldAttributeValueMap);
+
+        // set old index value 0
+        UpdateExpression compensateExpression = new UpdateExpression();
+        compensateExpression.name("#itemId", bucketItem.getItemId());
+        List<String> conditionList = new LinkedList<>();
+        AtomicInteger c = new AtomicInteger();
+        bucketItem.getIndexCollection().getIndexMap().forEach((field, invertedIndex) -> {
+            if (MapUtils.isEmpty(invertedIndex.getInvertedIndexValueMap())) {
+                return;
+            }
+
+            Set<String> newValueSet = invertedIndex.getInvertedIndexValueMap().keySet().stream().filter(value -> !isEmptyIndexValue(value)).collect(Collectors.toSet());
+            Set<String> removedValueSet = getIndexValueSet(oldAttributeValueMap.get(field)).stream().filter(value -> !newValueSet.contains(value)).collect(Collectors.toSet());
+            if (removedValueSet.isEmpty()) {
+                return;
+            }
+
+            String indexKey = String.join("", "#f", String.valueOf(c.incrementAndGet()));
+            AtomicInteger k = new AtomicInteger();
+            removedValueSet.forEach(value -> {
+                appendIndexUpdate(compensateExpression, bucketItem.getItemId(), indexKey, String.join("", indexKey, "v", String.valueOf(k.incrementAndGet())), field, value, false);
+            });
+
+            String newValuePath = String.join("", itemMapColumn, ".", "#itemId", ".", indexKey, "c");
+            AttributeValue newAttributeValue = bucketItem.getItemAttributeValueMap().get(field);
+            compensateExpression.name(indexKey + "c", field);
+            if (newAttributeValue == null) {
+                conditionList.add(String.join("", "attribute_not_exists(", newValuePath, ")"));
+            } else {
+                String newValueKey = String.join("", ":", indexKey.substring(1), "c");
+                conditionList.add(String.join("", newValuePath, " = ", newValueKey));
+                compensateExpression.value(newValueKey, newAttributeValue);
+            }
+        });
 
+        if (compensateExpression.isEmpty()) {
+            addSizeBytes(bucketItem, sizeBytes);
+            return;
+        }
+
+        UpdateItemRequest compensateRequest = new UpdateItemRequest();
+        compensateRequest.setTableName(bucketTableName);
+        compensateRequest.setKey(getBucketKey(bucketItem.getBucketId(), bucketItem.getBucketWindow()));
+        appendSizeBytesUpdate(compensateExpression, sizeBytes);
+        compensateExpression.applyTo(compensateRequest);
+        compensateRequest.setConditionExpression(String.join(" AND ", conditionList));
+        try {
+            dynamoDB.updateItem(compensateRequest);
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("skip index compensation, item updated concurrently, bucketId:{} itemId:{}", bucketItem.getBucketId(), bucketItem.getItemId());
+            addSizeBytes(bucketItem, sizeBytes);
+        }
+    }
+
+    /**
+     * 单独累加size_bytes, 只记录增长
+     */
+    void addSizeBytes(BucketItem bucketItem, long sizeBytes) {
+        if (sizeBytes <= 0) {
+            return;
+        }
+
+        UpdateExpression updateExpression = new UpdateExpression();
+        appendSizeBytesUpdate(updateExpression, sizeBytes);
+
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+        updateItemRequest.setKey(getBucketKey(bucketItem.getBucketId(), bucketItem.getBucketWindow()));
+        updateExpression.applyTo(updateItemRequest);
+        dynamoDB.updateItem(updateItemRequest);
+    }
+
+    /**
+     * 属性名不一定是合法的占位符, 也可能与:one、:sizeBytes、#f1等占位符重名, 按序号生成#a0/:v0
+     */
+    UpdateExpression buildItemUpdateExpression(BucketItem bucketItem, String itemMapColumn) {
+        UpdateExpression updateExpression = new UpdateExpression();
+
+        AtomicInteger a = new AtomicInteger();
         bucketItem.getItemAttributeValueMap().entrySet().forEach(updateItemAttributeEntry -> {
-            String updateItemAttributeKey = String.join("", "#", updateItemAttributeEntry.getKey());
-            String updateItemAttributeValueKey = String.join("", ":", updateItemAttributeEntry.getKey());
-            updateExpressionBuilder.append(String.join("", itemMapColumn, ".", "#itemId", ".", updateItemAttributeKey, " = ", updateItemAttributeValueKey));
-            updateExpressionBuilder.append(",");
-            attributeNameMap.put(updateItemAttributeKey, updateItemAttributeEntry.getKey());
-            attributeValueMap.put(updateItemAttributeValueKey, updateItemAttributeEntry.getValue());
+            int attributeIndex = a.getAndIncrement();
+            String updateItemAttributeKey = String.join("", "#a", String.valueOf(attributeIndex));
+            String updateItemAttributeValueKey = String.join("", ":v", String.valueOf(attributeIndex));
+            updateExpression.set(String.join("", itemMapColumn, ".", "#itemId", ".", updateItemAttributeKey, " = ", updateItemAttributeValueKey));
+            updateExpression.name(updateItemAttributeKey, updateItemAttributeEntry.getKey());
+            updateExpression.value(updateItemAttributeValueKey, updateItemAttributeEntry.getValue());
         });
 
-        attributeNameMap.put("#itemId", bucketItem.getItemId());
+        updateExpression.name("#itemId", bucketItem.getItemId());
+        return updateExpression;
+    }
+
+    void updateWithRead(BucketItem bucketItem) {
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+        updateItemRequest.setKey(getBucketKey(bucketItem.getBucketId(), bucketItem.getBucketWindow()));
+
+        String itemMapColumn = getItemMapColumn(bucketItem.getItemId());
 
+        UpdateExpression updateExpression = buildItemUpdateExpression(bucketItem, itemMapColumn);
+
+        List<String> conditionList = new LinkedList<>();
+        conditionList.add(String.join("", "attribute_exists(", itemMapColumn, ".", "#itemId", ".", KEY_BIZ_ID, ")"));
+
+        Map<String, AttributeValue> previousAttributeValueMap = Collections.emptyMap();
         // add value index
         if (bucketItem.getIndexCollection() != null) {
             // query current value
             BucketItem currentBucketItem = queryOne(bucketItem.getBucketId(), bucketItem.getBucketWindow(), bucketItem.getItemId());
+            Map<String, AttributeValue> currentAttributeValueMap = currentBucketItem != null ? currentBucketItem.getItemAttributeValueMap() : Collections.emptyMap();
+            previousAttributeValueMap = currentAttributeValueMap;
+
+            boolean bitmapIndex = bucketConfig.getIndexLayout() == IndexLayout.BITMAP;
+            AttributeValue ordinalAttributeValue = currentAttributeValueMap.get(KEY_ITEM_ORDINAL);
+            if (bitmapIndex && ordinalAttributeValue != null) {
+                BigInteger ordinalBit = getOrdinalBit(Integer.valueOf(ordinalAttributeValue.getN()));
+                updateExpression.value(":itemBit", new AttributeValue().withN(ordinalBit.toString()));
+                updateExpression.value(":itemBitNeg", new AttributeValue().withN(ordinalBit.negate().toString()));
+            }
 
+            AtomicInteger j = new AtomicInteger();
             bucketItem.getIndexCollection().getIndexMap().entrySet().forEach(indexEntry -> {
-                if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap())) {
+                // 没有ordinal的item无法维护bitmap
+                if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap()) || (bitmapIndex && ordinalAttributeValue == null)) {
                     return;
                 }
 
-                String indexKey = String.join("", "#", indexEntry.getKey());
+                Set<String> currentValueSet = getIndexValueSet(currentAttributeValueMap.get(indexEntry.getKey()));
+                Set<String> newValueSet = indexEntry.getValue().getInvertedIndexValueMap().keySet().stream().filter(value -> !isEmptyIndexValue(value)).collect(Collectors.toSet());
+
+                String indexKey = String.join("", "#f", String.valueOf(j.incrementAndGet()));
+
+                if (bitmapIndex && !currentValueSet.equals(newValueSet)) {
+                    // bitmap通过ADD加减维护, 不是幂等的, 要求读到的旧值在写入时没有变化
+                    AttributeValue currentAttributeValue = currentAttributeValueMap.get(indexEntry.getKey());
+                    String currentValuePath = String.join("", itemMapColumn, ".", "#itemId", ".", indexKey);
+                    updateExpression.name(indexKey, indexEntry.getKey());
+                    if (currentAttributeValue == null) {
+                        conditionList.add(String.join("", "attribute_not_exists(", currentValuePath, ")"));
+                    } else {
+                        String currentValueKey = String.join("", ":", indexKey.substring(1), "c");
+                        conditionList.add(String.join("", currentValuePath, " = ", currentValueKey));
+                        updateExpression.value(currentValueKey, currentAttributeValue);
+                    }
+                }
+
+                AtomicInteger k = new AtomicInteger();
+                // set old index value 0
+                currentValueSet.stream().filter(value -> !newValueSet.contains(value)).forEach(value -> {
+                    appendIndexUpdate(updateExpression, bucketItem.getItemId(), indexKey, String.join("", indexKey, "v", String.valueOf(k.incrementAndGet())), indexEntry.getKey(), value, false);
+                });
+                // set new index value 1
+                newValueSet.stream().filter(value -> !currentValueSet.contains(value)).forEach(value -> {
+                    appendIndexUpdate(updateExpression, bucketItem.getItemId(), indexKey, String.join("", indexKey, "v", String.valueOf(k.incrementAndGet())), indexEntry.getKey(), value, true);
+                });
+            });
+        }
 
-                AtomicInteger i = new AtomicInteger();
+        // 读取了旧值时按差值累加, 压缩保存的旧值仍留在payload中, 按新值整体累加
+        appendSizeBytesUpdate(updateExpression, estimateUpdateSize(bucketItem, bucketItemEncoder.getItemCodecType() == ItemCodecType.NONE ? previousAttributeValueMap : Collections.emptyMap()));
 
-                AttributeValue currentAttributeValue = currentBucketItem.getItemAttributeValueMap().get(indexEntry.getKey());
-                if (CollectionUtils.isNotEmpty(currentAttributeValue.getSS())) {
-                    currentAttributeValue.getSS().forEach(currentValue -> {
-                        if (isEmptyIndexValue(currentValue)) {
-                            return;
-                        }
+        updateExpression.applyTo(updateItemRequest);
 
-                        if (indexEntry.getValue().getInvertedIndexValueMap().containsKey(currentValue)) {
-                            return;
-                        }
+        updateItemRequest.setConditionExpression(String.join(" AND ", conditionList));
 
-                        String currentIndexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                        updateExpressionBuilder.append(String.join("", indexKey, ".", currentIndexSubKey, ".", "#itemId", " = ", ":zero"));
-                        updateExpressionBuilder.append(",");
-                        attributeNameMap.put(currentIndexSubKey, currentValue);
-                        attributeNameMap.put(indexKey, indexEntry.getKey());
-                        attributeValueMap.put(":zero", new AttributeValue().withN("0"));
-                    });
-                    indexEntry.getValue().getInvertedIndexValueMap().keySet().forEach(value -> {
-                        if (!currentAttributeValue.getSS().contains(value)) {
-                            // set new index value 1
-                            String newIndexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                            updateExpressionBuilder.append(String.join("", indexKey, ".", newIndexSubKey, ".", "#itemId", " = ", ":one"));
-                            updateExpressionBuilder.append(",");
-                            attributeNameMap.put(newIndexSubKey, value);
-                            attributeNameMap.put(indexKey, indexEntry.getKey());
-                            attributeValueMap.put(":one", new AttributeValue().withN("1"));
-                        }
-                    });
-                } else if (CollectionUtils.isNotEmpty(currentAttributeValue.getNS())) {
-                    currentAttributeValue.getNS().forEach(currentValue -> {
-                        if (isEmptyIndexValue(currentValue)) {
-                            return;
-                        }
-
-                        if (indexEntry.getValue().getInvertedIndexValueMap().containsKey(currentValue)) {
-                            return;
-                        }
-
-                        String currentIndexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                        updateExpressionBuilder.append(String.join("", indexKey, ".", currentIndexSubKey, ".", "#itemId", " = ", ":zero"));
-                        updateExpressionBuilder.append(",");
-                        attributeNameMap.put(currentIndexSubKey, currentValue);
-                        attributeNameMap.put(indexKey, indexEntry.getKey());
-                        attributeValueMap.put(":zero", new AttributeValue().withN("0"));
-                    });
+        dynamoDB.updateItem(updateItemRequest);
+    }
 
-                    indexEntry.getValue().getInvertedIndexValueMap().keySet().forEach(value -> {
-                        if (!currentAttributeValue.getNS().contains(value)) {
-                            // set new index value 1
-                            String newIndexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                            updateExpressionBuilder.append(String.join("", indexKey, ".", newIndexSubKey, ".", "#itemId", " = ", ":one"));
-                            updateExpressionBuilder.append(",");
-                            attributeNameMap.put(newIndexSubKey, value);
-                            attributeNameMap.put(indexKey, indexEntry.getKey());
-                            attributeValueMap.put(":one", new AttributeValue().withN("1"));
-                        }
-                    });
+    /**
+     * 分配slot前估算item写入后的大小, 按未编码的属性估算, 启用压缩时偏大, 另外预留bizId等写入时才补充的属性
+     */
+    public long estimateNewItemSize(BucketItem bucketItem) {
+        return estimateItemSize(bucketItem, bucketItem.getItemAttributeValueMap()) + NEW_ITEM_RESERVED_BYTES;
+    }
+
+    void appendSizeBytesUpdate(UpdateExpression updateExpression, long sizeBytes) {
+        if (sizeBytes == 0) {
+            return;
+        }
+        updateExpression.add(String.join("", KEY_SIZE_BYTES, " :sizeBytes"));
+        updateExpression.value(":sizeBytes", new AttributeValue().withN(String.valueOf(sizeBytes)));
+    }
+
+    /**
+     * 按DynamoDB的item大小规则估算一个item在bucket中占用的字节数, 包括itemId, 编码后的属性和索引
+     */
+    long estimateItemSize(BucketItem bucketItem, Map<String, AttributeValue> storedAttributeValueMap) {
+        long itemIdSize = estimateStringSize(bucketItem.getItemId());
+        long size = itemIdSize + estimateAttributeValueSize(new AttributeValue().withM(storedAttributeValueMap));
+        if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP && bucketItem.getItemOrdinal() != null) {
+            // ordinal到itemId的映射
+            size += 2 * itemIdSize + 1;
+        }
+        if (bucketItem.getIndexCollection() == null) {
+            return size;
+        }
+
+        for (Map.Entry<String, IndexCollection.InvertedIndex> indexEntry : bucketItem.getIndexCollection().getIndexMap().entrySet()) {
+            if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap())) {
+                continue;
+            }
+            for (String value : indexEntry.getValue().getInvertedIndexValueMap().keySet()) {
+                if (isEmptyIndexValue(value)) {
+                    continue;
+                }
+                if (bucketConfig.getIndexLayout() == IndexLayout.FLATTENED) {
+                    size += itemIdSize;
+                } else if (bucketConfig.getIndexLayout() == IndexLayout.NESTED) {
+                    size += itemIdSize + 2;
                 } else {
-                    indexEntry.getValue().getInvertedIndexValueMap().entrySet().forEach(invertedIndexValueEntry -> {
-                        // set old index value 0
-                        String currentValue = StringUtils.defaultString(currentAttributeValue.getS(), currentAttributeValue.getN());
-                        if (isEmptyIndexValue(currentValue)) {
-                            return;
-                        }
-                        if (StringUtils.equals(invertedIndexValueEntry.getKey(), currentValue)) {
-                            return;
-                        }
-
-                        String currentIndexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                        updateExpressionBuilder.append(String.join("", indexKey, ".", currentIndexSubKey, ".", "#itemId", " = ", ":zero"));
-                        updateExpressionBuilder.append(",");
-                        attributeNameMap.put(currentIndexSubKey, currentValue);
-                        attributeValueMap.put(":zero", new AttributeValue().withN("0"));
-
-                        // set new index value 1
-                        String newIndexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                        updateExpressionBuilder.append(String.join("", indexKey, ".", newIndexSubKey, ".", "#itemId", " = ", ":one"));
-                        updateExpressionBuilder.append(",");
-                        attributeNameMap.put(newIndexSubKey, invertedIndexValueEntry.getKey());
-                        attributeValueMap.put(":one", new AttributeValue().withN("1"));
-
-                        attributeNameMap.put(indexKey, indexEntry.getKey());
-                    });
+                    // bitmap每个值一个数字, 按最大位数估算
+                    size += 2;
                 }
-            });
+            }
         }
+        return size;
+    }
 
-        updateExpressionBuilder.deleteCharAt(updateExpressionBuilder.length() - 1);
-
-        updateItemRequest.setUpdateExpression(updateExpressionBuilder.toString());
-        updateItemRequest.setExpressionAttributeNames(attributeNameMap);
-        updateItemRequest.setExpressionAttributeValues(attributeValueMap);
+    /**
+     * update后item增加的字节数, 旧值未知的属性按新值整体计入, 索引的增长由bucketSizeLimitBytes预留的空间覆盖
+     */
+    long estimateUpdateSize(BucketItem bucketItem, Map<String, AttributeValue> currentAttributeValueMap) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> attributeEntry : bucketItem.getItemAttributeValueMap().entrySet()) {
+            AttributeValue currentAttributeValue = currentAttributeValueMap.get(attributeEntry.getKey());
+            size += estimateAttributeValueSize(attributeEntry.getValue());
+            if (currentAttributeValue != null) {
+                size -= estimateAttributeValueSize(currentAttributeValue);
+            } else {
+                size += 1 + estimateStringSize(attributeEntry.getKey());
+            }
+        }
+        return size;
+    }
 
-        updateItemRequest.setConditionExpression(String.join("", "attribute_exists(", itemMapColumn, ".", "#itemId", ".", KEY_BIZ_ID, ")"));
+    static long estimateAttributeValueSize(AttributeValue attributeValue) {
+        if (attributeValue == null) {
+            return 0;
+        }
+        if (attributeValue.getS() != null) {
+            return estimateStringSize(attributeValue.getS());
+        }
+        if (attributeValue.getN() != null) {
+            return estimateNumberSize(attributeValue.getN());
+        }
+        if (attributeValue.getB() != null) {
+            return attributeValue.getB().remaining();
+        }
+        if (attributeValue.getSS() != null) {
+            return attributeValue.getSS().stream().mapToLong(BucketDataMapper::estimateStringSize).sum();
+        }
+        if (attributeValue.getNS() != null) {
+            return attributeValue.getNS().stream().mapToLong(BucketDataMapper::estimateNumberSize).sum();
+        }
+        if (attributeValue.getBS() != null) {
+            return attributeValue.getBS().stream().mapToLong(byteBuffer -> byteBuffer.remaining()).sum();
+        }
+        // map和list每个元素1字节, 另有3字节开销
+        if (attributeValue.getM() != null) {
+            return 3 + attributeValue.getM().entrySet().stream().mapToLong(entry -> 1 + estimateStringSize(entry.getKey()) + estimateAttributeValueSize(entry.getValue())).sum();
+        }
+        if (attributeValue.getL() != null) {
+            return 3 + attributeValue.getL().stream().mapToLong(element -> 1 + estimateAttributeValueSize(element)).sum();
+        }
+        return 1;
+    }
 
-        dynamoDB.updateItem(updateItemRequest);
+    static long estimateStringSize(String value) {
+        return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
 
-        amazonS3Optional.ifPresent(amazonS3 -> {
-            try {
-                bucketItem.getItemAttributeValueMap().put("DATA_EVENT", new AttributeValue().withS("UPDATE"));
+    // 数字每两位有效数字1字节, 另有1字节开销
+    static long estimateNumberSize(String value) {
+        return (value.length() + 1) / 2 + 1;
+    }
 
-                String bucketS3StorageKey = String.join("/", bucketTableName, String.valueOf(bucketItem.getBucketId()), bucketItem.getBucketWindow().toString(), String.join("", String.valueOf(System.currentTimeMillis()), ".json"));
-                String bucketItemJson = new ObjectMapper().writeValueAsString(bucketItem.getItemAttributeValueMap());
-                amazonS3.putObject("addx-test", bucketS3StorageKey, new ByteArrayInputStream(bucketItemJson.getBytes()), new ObjectMetadata());
-            } catch (Exception e) {
-                log.warn("amazonS3 putObject failed", e);
+    /**
+     * 按索引存储方式维护单个(field, value)的索引, valid为false表示移除
+     */
+    void appendIndexUpdate(UpdateExpression updateExpression, String itemId, String indexKey, String indexSubKey, String field, String value, boolean valid) {
+        if (bucketConfig.getIndexLayout() == IndexLayout.FLATTENED) {
+            if (valid) {
+                updateExpression.add(String.join(" ", indexSubKey, ":itemIdSet"));
+            } else {
+                updateExpression.delete(String.join(" ", indexSubKey, ":itemIdSet"));
             }
-        });
+            updateExpression.name(indexSubKey, getFlattenedIndexColumn(field, value));
+            updateExpression.value(":itemIdSet", new AttributeValue().withSS(itemId));
+        } else if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP) {
+            updateExpression.add(String.join(" ", indexSubKey, valid ? ":itemBit" : ":itemBitNeg"));
+            updateExpression.name(indexSubKey, getBitmapIndexColumn(field, value));
+        } else {
+            updateExpression.set(String.join("", indexKey, ".", indexSubKey, ".", "#itemId", " = ", valid ? ":one" : ":zero"));
+            updateExpression.name("#itemId", itemId);
+            updateExpression.name(indexKey, field);
+            updateExpression.name(indexSubKey, value);
+            updateExpression.value(valid ? ":one" : ":zero", new AttributeValue().withN(valid ? "1" : "0"));
+        }
     }
 
     public void delete(BucketItem bucketItem) {
@@ -327,6 +800,12 @@ public class BucketDataMapper {
         updateExpressionBuilder.append(",");
         attributeValueMap.put(":one", new AttributeValue().withN("1"));
 
+        // 减去insert时记录的大小, 之前写入的item没有记录时减0, update的增长不扣除, 估算值只会偏大
+        updateExpressionBuilder.append(String.join("", KEY_SIZE_BYTES, " = if_not_exists(", KEY_SIZE_BYTES, ", :zero) - if_not_exists(", itemMapColumn, ".", "#itemId", ".", "#itemSize", ", :zero)"));
+        updateExpressionBuilder.append(",");
+        attributeNameMap.put("#itemSize", KEY_ITEM_SIZE_BYTES);
+        attributeValueMap.put(":zero", new AttributeValue().withN("0"));
+
         updateExpressionBuilder.deleteCharAt(updateExpressionBuilder.length() - 1);
 
         updateItemRequest.setUpdateExpression(updateExpressionBuilder.toString());
@@ -335,6 +814,10 @@ public class BucketDataMapper {
 
         dynamoDB.updateItem(updateItemRequest);
 
+        if (bucketLatestWindowCache != null) {
+            bucketLatestWindowCache.onDelete(bucketItem);
+        }
+
         amazonS3Optional.ifPresent(amazonS3 -> {
             try {
                 Map<String, AttributeValue> deleteAttributeValueMap = new HashMap<>();
@@ -355,6 +838,20 @@ public class BucketDataMapper {
     }
 
     public <W> List<BucketItem> query(String bucketId, W startBucketWindow, W endBucketWindow, IndexCollection indexCollection, DataQueryParam dataQueryParam) {
+        return query(bucketId, startBucketWindow, endBucketWindow, indexCollection, dataQueryParam, null, null);
+    }
+
+    /**
+     * position不为空时从游标位置继续查询, window内的item按itemComparator和itemId排序保证顺序稳定
+     */
+    public <W> List<BucketItem> query(String bucketId, W startBucketWindow, W endBucketWindow, IndexCollection indexCollection, DataQueryParam dataQueryParam, BucketCursor.Position position, Comparator<BucketItem> itemComparator) {
+        return query(bucketId, startBucketWindow, endBucketWindow, indexCollection, dataQueryParam, position, itemComparator, null);
+    }
+
+    /**
+     * itemFilter在每个window排序之后, 截取to条之前过滤, 不满足的item不占用返回数量
+     */
+    public <W> List<BucketItem> query(String bucketId, W startBucketWindow, W endBucketWindow, IndexCollection indexCollection, DataQueryParam dataQueryParam, BucketCursor.Position position, Comparator<BucketItem> itemComparator, Predicate<BucketItem> itemFilter) {
         if (dataQueryParam == null) {
             return Collections.emptyList();
         }
@@ -363,14 +860,27 @@ public class BucketDataMapper {
             return Collections.emptyList();
         }
 
+        if (position != null) {
+            if (position.isExhausted() || BucketWindowRegistry.compareBucketWindow(position.getBucketWindow(), getQueryStartBucketWindow(startBucketWindow)) < 0) {
+                return Collections.emptyList();
+            }
+            if (BucketWindowRegistry.compareBucketWindow(position.getBucketWindow(), endBucketWindow) < 0) {
+                endBucketWindow = (W) position.getBucketWindow();
+            }
+        }
+        UnaryOperator<List<BucketItem>> windowItemHandler = matchBucketItemList -> {
+            List<BucketItem> orderedBucketItemList = orderWindowItems(matchBucketItemList, position, itemComparator);
+            return itemFilter == null || CollectionUtils.isEmpty(orderedBucketItemList) ? orderedBucketItemList : orderedBucketItemList.stream().filter(itemFilter).collect(Collectors.toList());
+        };
+
         // 返回的bucketItemList结果
         List<BucketItem> bucketItemList = new LinkedList<>();
 
         // 尝试直接在最新的bucket查询
         boolean eagerFetched = false;
-        if (dataQueryParam.getTo() < MAX_BUCKET_ITEM_COUNT) {
+        if (dataQueryParam.getTo() < bucketConfig.getBucketSlotCount()) {
             eagerFetched = true;
-            List<BucketItem> matchBucketItemList = bucketDataQueryFetcher.fetch(bucketId, endBucketWindow instanceof String ? new AttributeValue().withS((String) endBucketWindow) : new AttributeValue().withN(String.valueOf(endBucketWindow)), dataQueryParam);
+            List<BucketItem> matchBucketItemList = windowItemHandler.apply(fetchLatestWindow(bucketId, endBucketWindow, dataQueryParam, position == null));
             if (CollectionUtils.isNotEmpty(matchBucketItemList)) {
                 bucketItemList.addAll(matchBucketItemList);
             }
@@ -380,6 +890,178 @@ public class BucketDataMapper {
             return bucketItemList.subList(Math.min(bucketItemList.size(), dataQueryParam.getFrom()), Math.min(bucketItemList.size(), dataQueryParam.getTo()));
         }
 
+        Iterator<Supplier<List<BucketItem>>> windowFetcherIterator = getWindowFetcherIterator(bucketId, startBucketWindow, endBucketWindow, indexCollection, dataQueryParam, eagerFetched && bucketItemList.size() != 0, windowItemHandler);
+        fetchWindows(windowFetcherIterator, bucketItemList, dataQueryParam.getTo());
+
+        bucketItemList = new ArrayList<>(bucketItemList);
+        return bucketItemList.subList(Math.min(bucketItemList.size(), dataQueryParam.getFrom()), Math.min(bucketItemList.size(), dataQueryParam.getTo()));
+    }
+
+    /**
+     * 拉取最新window并过滤, 开启缓存时先查缓存, cacheable为false时不写入缓存
+     */
+    <W> List<BucketItem> fetchLatestWindow(String bucketId, W bucketWindow, DataQueryParam dataQueryParam, boolean cacheable) {
+        AttributeValue bucketWindowAttributeValue = bucketWindow instanceof String ? new AttributeValue().withS((String) bucketWindow) : new AttributeValue().withN(String.valueOf(bucketWindow));
+        if (bucketLatestWindowCache == null) {
+            return bucketDataQueryFetcher.fetch(bucketId, bucketWindowAttributeValue, dataQueryParam);
+        }
+
+        Collection<BucketItem> bucketItems = bucketLatestWindowCache.get(bucketId, bucketWindow);
+        if (bucketItems == null) {
+            long readWriteSeq = bucketLatestWindowCache.getWriteSeq();
+            Map<String, BucketItem> bucketItemMap = bucketDataQueryFetcher.fetchWindow(bucketId, bucketWindowAttributeValue);
+            if (cacheable) {
+                bucketLatestWindowCache.put(bucketId, bucketWindow, bucketItemMap, readWriteSeq);
+            }
+            bucketItems = bucketItemMap.values();
+        }
+        return bucketDataQueryFetcher.filterDataQueryExpression(bucketItems, dataQueryParam);
+    }
+
+    /**
+     * 惰性遍历单个bucketId, 只有消费完当前window才拉取下一个window
+     */
+    public <W> Iterator<BucketItem> iterate(String bucketId, W startBucketWindow, W endBucketWindow, IndexCollection indexCollection, DataQueryParam dataQueryParam, Comparator<BucketItem> itemComparator) {
+        Iterator<Supplier<List<BucketItem>>> windowFetcherIterator = getWindowFetcherIterator(bucketId, startBucketWindow, endBucketWindow, indexCollection, dataQueryParam, false, matchBucketItemList -> orderWindowItems(matchBucketItemList, null, itemComparator));
+        return new Iterator<BucketItem>() {
+            Iterator<BucketItem> windowItemIterator = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!windowItemIterator.hasNext() && windowFetcherIterator.hasNext()) {
+                    windowItemIterator = windowFetcherIterator.next().get().iterator();
+                }
+                return windowItemIterator.hasNext();
+            }
+
+            @Override
+            public BucketItem next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return windowItemIterator.next();
+            }
+        };
+    }
+
+    /**
+     * 惰性遍历多个bucketId并按window倒序归并, 每个bucketId同时最多持有一个window的数据
+     */
+    public <W> Iterator<BucketItem> iterate(List<String> bucketIdList, Function<String, Pair<W, W>> bucketWindowRangeFunction, IndexCollection indexCollection, DataQueryParam dataQueryParam, Comparator<BucketItem> itemComparator) {
+        List<Iterator<BucketItem>> bucketItemIteratorList = bucketIdList.stream().distinct().map(bucketId -> {
+            Pair<W, W> bucketWindowRange = bucketWindowRangeFunction.apply(bucketId);
+            return bucketWindowRange == null ? Collections.<BucketItem>emptyIterator() : iterate(bucketId, bucketWindowRange.getLeft(), bucketWindowRange.getRight(), indexCollection, dataQueryParam, itemComparator);
+        }).collect(Collectors.toList());
+        return new OrderedMergeIterator<>(bucketItemIteratorList, getPageItemComparator(itemComparator));
+    }
+
+    /**
+     * 多个bucketId按游标分页查询, 各bucketId按window倒序、window内按itemComparator和itemId排序后归并
+     * executor为空时串行查询
+     */
+    public <W> BucketQueryResult<BucketItem> queryPage(List<String> bucketIdList, Function<String, Pair<W, W>> bucketWindowRangeFunction, IndexCollection indexCollection, DataQueryParam dataQueryParam, Comparator<BucketItem> itemComparator, Executor executor) {
+        int pageSize = dataQueryParam.getTo() - dataQueryParam.getFrom();
+        if (pageSize <= 0 || CollectionUtils.isEmpty(bucketIdList)) {
+            return new BucketQueryResult<>(Collections.emptyList(), null);
+        }
+
+        BucketCursor bucketCursor = BucketCursor.decode(dataQueryParam.getCursor());
+
+        List<String> queryBucketIdList = bucketIdList.stream().distinct().filter(bucketId -> bucketCursor.getPositionMap().get(bucketId) == null || !bucketCursor.getPositionMap().get(bucketId).isExhausted()).collect(Collectors.toList());
+        List<CompletableFuture<List<BucketItem>>> bucketQueryFutureList = queryBucketIdList.stream().map(bucketId -> {
+            Supplier<List<BucketItem>> bucketQuerySupplier = () -> {
+                Pair<W, W> bucketWindowRange = bucketWindowRangeFunction.apply(bucketId);
+                if (bucketWindowRange == null) {
+                    return Collections.<BucketItem>emptyList();
+                }
+
+                DataQueryParam bucketDataQueryParam = DataQueryParam.builder().build();
+                BeanUtils.copyProperties(dataQueryParam, bucketDataQueryParam);
+                bucketDataQueryParam.setFrom(0);
+                bucketDataQueryParam.setTo(pageSize);
+                bucketDataQueryParam.setCursor(null);
+                return query(bucketId, bucketWindowRange.getLeft(), bucketWindowRange.getRight(), indexCollection, bucketDataQueryParam, bucketCursor.getPositionMap().get(bucketId), itemComparator);
+            };
+            return executor == null || queryBucketIdList.size() == 1 ? CompletableFuture.completedFuture(bucketQuerySupplier.get()) : CompletableFuture.supplyAsync(bucketQuerySupplier, executor);
+        }).collect(Collectors.toList());
+
+        List<List<BucketItem>> bucketQueryResultList;
+        try {
+            bucketQueryResultList = bucketQueryFutureList.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            bucketQueryFutureList.forEach(bucketQueryFuture -> bucketQueryFuture.cancel(true));
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+
+        // 按window倒序归并, 和单个bucketId内的顺序保持一致
+        Iterator<BucketItem> mergeIterator = new OrderedMergeIterator<>(bucketQueryResultList.stream().map(List::iterator).collect(Collectors.toList()), getPageItemComparator(itemComparator));
+
+        List<BucketItem> pageBucketItemList = new ArrayList<>(pageSize);
+        Map<String, Integer> consumedCountMap = new HashMap<>();
+        while (mergeIterator.hasNext() && pageBucketItemList.size() < pageSize) {
+            BucketItem bucketItem = mergeIterator.next();
+            pageBucketItemList.add(bucketItem);
+            consumedCountMap.merge(bucketItem.getBucketId(), 1, Integer::sum);
+
+            BucketCursor.Position position = bucketCursor.getPositionMap().get(bucketItem.getBucketId());
+            boolean sameWindow = position != null && BucketWindowRegistry.compareBucketWindow(position.getBucketWindow(), bucketItem.getBucketWindow()) == 0;
+            bucketCursor.getPositionMap().put(bucketItem.getBucketId(), new BucketCursor.Position(bucketItem.getBucketId(), bucketItem.getBucketWindow(), sameWindow ? position.getSlot() + 1 : 1, bucketItem.getItemId(), false));
+        }
+
+        // 查询结果不足一页且全部返回的bucketId已经没有更多数据
+        for (int i = 0; i < queryBucketIdList.size(); i++) {
+            String bucketId = queryBucketIdList.get(i);
+            List<BucketItem> bucketQueryResult = bucketQueryResultList.get(i);
+            if (bucketQueryResult.size() < pageSize && consumedCountMap.getOrDefault(bucketId, 0) == bucketQueryResult.size()) {
+                BucketCursor.Position position = bucketCursor.getPositionMap().computeIfAbsent(bucketId, key -> new BucketCursor.Position(bucketId, null, 0, null, false));
+                position.setExhausted(true);
+            }
+        }
+
+        return new BucketQueryResult<>(pageBucketItemList, bucketCursor.isExhausted() ? null : bucketCursor.encode());
+    }
+
+    /**
+     * window内按itemComparator和itemId排序, 游标所在window跳过已经返回过的item
+     */
+    List<BucketItem> orderWindowItems(List<BucketItem> matchBucketItemList, BucketCursor.Position position, Comparator<BucketItem> itemComparator) {
+        if ((position == null && itemComparator == null) || CollectionUtils.isEmpty(matchBucketItemList)) {
+            return matchBucketItemList;
+        }
+
+        List<BucketItem> sortedBucketItemList = new ArrayList<>(matchBucketItemList);
+        sortedBucketItemList.sort(getWindowItemComparator(itemComparator));
+        if (position == null || BucketWindowRegistry.compareBucketWindow(position.getBucketWindow(), sortedBucketItemList.get(0).getBucketWindow()) != 0) {
+            return sortedBucketItemList;
+        }
+
+        int skipCount = Math.min(position.getSlot(), sortedBucketItemList.size());
+        for (int i = 0; i < sortedBucketItemList.size(); i++) {
+            if (StringUtils.equals(sortedBucketItemList.get(i).getItemId(), position.getItemId())) {
+                skipCount = i + 1;
+                break;
+            }
+        }
+        return sortedBucketItemList.subList(skipCount, sortedBucketItemList.size());
+    }
+
+    Comparator<BucketItem> getPageItemComparator(Comparator<BucketItem> itemComparator) {
+        Comparator<BucketItem> windowItemComparator = getWindowItemComparator(itemComparator);
+        return (bucketItem, otherBucketItem) -> {
+            int result = BucketWindowRegistry.compareBucketWindow(otherBucketItem.getBucketWindow(), bucketItem.getBucketWindow());
+            return result != 0 ? result : windowItemComparator.compare(bucketItem, otherBucketItem);
+        };
+    }
+
+    Comparator<BucketItem> getWindowItemComparator(Comparator<BucketItem> itemComparator) {
+        Comparator<BucketItem> itemIdComparator = Comparator.comparing(BucketItem::getItemId, Comparator.nullsLast(Comparator.naturalOrder()));
+        return itemComparator != null ? itemComparator.thenComparing(itemIdComparator) : itemIdComparator;
+    }
+
+    /**
+     * 惰性遍历[startBucketWindow, endBucketWindow]内的window, 每个元素拉取一个window(或一批window)的数据
+     */
+    <W> Iterator<Supplier<List<BucketItem>>> getWindowFetcherIterator(String bucketId, W startBucketWindow, W endBucketWindow, IndexCollection indexCollection, DataQueryParam dataQueryParam, boolean skipFirstWindow, UnaryOperator<List<BucketItem>> windowItemHandler) {
         // 根据索引行为不同走不同的逻辑
         if (indexCollection == null || MapUtils.isEmpty(indexCollection.getIndexMap())) {
             // 直接遍历bucket
@@ -392,38 +1074,33 @@ public class BucketDataMapper {
 
             bucketQueryRequest.setKeyConditionExpression(String.join("", KEY_BUCKET_ID, "=", ":bucketId", " AND ", KEY_START_BUCKET_WINDOW, " BETWEEN ", ":startBucketWindow", " AND ", ":endBucketWindow"));
             bucketQueryAttributeValueMap.put(":bucketId", new AttributeValue().withS(bucketId));
-            bucketQueryAttributeValueMap.put(":startBucketWindow", startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(startBucketWindow)));
+            bucketQueryAttributeValueMap.put(":startBucketWindow", startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(getQueryStartBucketWindow(startBucketWindow))));
             bucketQueryAttributeValueMap.put(":endBucketWindow", endBucketWindow instanceof String ? new AttributeValue().withS((String) endBucketWindow) : new AttributeValue().withN(String.valueOf(endBucketWindow)));
 
             StringBuilder invertIndexProjectExpression = new StringBuilder();
             invertIndexProjectExpression.append(KEY_BUCKET_ID).append(",").append(KEY_START_BUCKET_WINDOW);
+            if (isAdaptiveBucketWindow()) {
+                invertIndexProjectExpression.append(",").append(KEY_WINDOW_SPAN);
+            }
 
             bucketQueryRequest.setProjectionExpression(invertIndexProjectExpression.toString());
             bucketQueryRequest.setExpressionAttributeValues(bucketQueryAttributeValueMap);
 
-            QueryResult queryResult = dynamoDB.query(bucketQueryRequest);
-            List<Map<String, AttributeValue>> bucketMapList = queryResult.getItems();
-
-            Iterator<Map<String, AttributeValue>> bucketMapListIterator = bucketMapList.iterator();
-            if (eagerFetched && bucketItemList.size() != 0 && bucketMapListIterator.hasNext()) {
+            // 按需分页拉取window, 只拉满足to所需的页数
+            Iterator<Map<String, AttributeValue>> bucketMapListIterator = new BucketWindowIterator(dynamoDB, bucketQueryRequest, bucketConfig.getWindowQueryPageSize());
+            if (skipFirstWindow && bucketMapListIterator.hasNext()) {
                 bucketMapListIterator.next();
             }
 
-            while (bucketMapListIterator.hasNext()) {
-                Map<String, AttributeValue> bucketMap = bucketMapListIterator.next();
-
+            return mapWindowIterator(bucketMapListIterator, () -> false, bucketMap -> {
                 AttributeValue bucketWindowAttributeValue = bucketMap.get(KEY_START_BUCKET_WINDOW);
-
-                List<BucketItem> matchBucketItemList = bucketDataQueryFetcher.fetch(bucketId, bucketWindowAttributeValue, dataQueryParam);
-
-                if (CollectionUtils.isNotEmpty(matchBucketItemList)) {
-                    bucketItemList.addAll(matchBucketItemList);
+                markBucketExist(bucketId, bucketWindowAttributeValue);
+                if (isWindowBeforeStart(bucketMap, startBucketWindow)) {
+                    return null;
                 }
 
-                if (bucketItemList.size() >= dataQueryParam.getTo()) {
-                    break;
-                }
-            }
+                return () -> windowItemHandler.apply(bucketDataQueryFetcher.fetch(bucketId, bucketWindowAttributeValue, dataQueryParam));
+            });
         } else {
             // 先通过倒排索引筛选查询itemId集合
             QueryRequest invertIndexQueryRequest = new QueryRequest();
@@ -436,31 +1113,15 @@ public class BucketDataMapper {
 
             invertIndexQueryRequest.setKeyConditionExpression(String.join("", KEY_BUCKET_ID, "=", ":bucketId", " AND ", KEY_START_BUCKET_WINDOW, " BETWEEN ", ":startBucketWindow", " AND ", ":endBucketWindow"));
             invertIndexAttributeValueMap.put(":bucketId", new AttributeValue().withS(bucketId));
-            invertIndexAttributeValueMap.put(":startBucketWindow", startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(startBucketWindow)));
+            invertIndexAttributeValueMap.put(":startBucketWindow", startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(getQueryStartBucketWindow(startBucketWindow))));
             invertIndexAttributeValueMap.put(":endBucketWindow", endBucketWindow instanceof String ? new AttributeValue().withS((String) endBucketWindow) : new AttributeValue().withN(String.valueOf(endBucketWindow)));
 
             StringBuilder invertIndexProjectExpression = new StringBuilder();
             invertIndexProjectExpression.append(KEY_BUCKET_ID).append(",").append(KEY_START_BUCKET_WINDOW).append(",");
-            indexCollection.getIndexMap().entrySet().forEach(indexEntry -> {
-                if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap())) {
-                    return;
-                }
-
-                String indexKey = String.join("", "#", indexEntry.getKey());
-
-                AtomicInteger i = new AtomicInteger();
-                indexEntry.getValue().getInvertedIndexValueMap().entrySet().forEach(invertedIndexValueEntry -> {
-                    if (isEmptyIndexValue(invertedIndexValueEntry.getKey())) {
-                        return;
-                    }
-
-                    String indexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
-                    invertIndexProjectExpression.append(String.join("", indexKey, ".", indexSubKey));
-                    invertIndexProjectExpression.append(",");
-                    invertIndexAttributeNameMap.put(indexSubKey, invertedIndexValueEntry.getKey());
-                    invertIndexAttributeNameMap.put(indexKey, indexEntry.getKey());
-                });
-            });
+            if (isAdaptiveBucketWindow()) {
+                invertIndexProjectExpression.append(KEY_WINDOW_SPAN).append(",");
+            }
+            appendIndexProjection(indexCollection, invertIndexProjectExpression, invertIndexAttributeNameMap);
 
             invertIndexProjectExpression.deleteCharAt(invertIndexProjectExpression.length() - 1);
 
@@ -468,80 +1129,352 @@ public class BucketDataMapper {
             invertIndexQueryRequest.setExpressionAttributeNames(invertIndexAttributeNameMap);
             invertIndexQueryRequest.setExpressionAttributeValues(invertIndexAttributeValueMap);
 
-            QueryResult queryResult = dynamoDB.query(invertIndexQueryRequest);
-            List<Map<String, AttributeValue>> invertIndexMapList = queryResult.getItems();
-
-            Iterator<Map<String, AttributeValue>> invertIndexMapListIterator = invertIndexMapList.iterator();
-            if (eagerFetched && bucketItemList.size() != 0 && invertIndexMapListIterator.hasNext()) {
+            // 按需分页拉取window的倒排索引, 避免1MB分页截断后丢失结果
+            Iterator<Map<String, AttributeValue>> invertIndexMapListIterator = new BucketWindowIterator(dynamoDB, invertIndexQueryRequest, bucketConfig.getWindowQueryPageSize());
+            if (skipFirstWindow && invertIndexMapListIterator.hasNext()) {
                 invertIndexMapListIterator.next();
             }
 
+            // 索引字段已经通过倒排索引筛选, 不需要再过滤, 复制一份避免修改调用方的参数
+            DataQueryParam itemDataQueryParam = DataQueryParam.builder().build();
+            BeanUtils.copyProperties(dataQueryParam, itemDataQueryParam);
+            if (MapUtils.isNotEmpty(dataQueryParam.getExpressionMap())) {
+                Map<String, String> expressionMap = new HashMap<>(dataQueryParam.getExpressionMap());
+                indexCollection.getIndexMap().keySet().forEach(index -> {
+                    expressionMap.remove(index);
+                });
+                itemDataQueryParam.setExpressionMap(expressionMap);
+            }
+
             // 倒排索引命中的itemId统计
             AtomicInteger scannedCount = new AtomicInteger();
-            while (invertIndexMapListIterator.hasNext()) {
-                if (scannedCount.get() >= SCAN_MAX_COUNT) {
-                    break;
+            Iterator<BucketFetchKey> fetchKeyIterator = mapWindowIterator(invertIndexMapListIterator, () -> scannedCount.get() >= SCAN_MAX_COUNT, invertIndexMap -> {
+                AttributeValue bucketWindowAttributeValue = invertIndexMap.get(KEY_START_BUCKET_WINDOW);
+                markBucketExist(bucketId, bucketWindowAttributeValue);
+                if (isWindowBeforeStart(invertIndexMap, startBucketWindow)) {
+                    return null;
                 }
 
-                Map<String, AttributeValue> invertIndexMap = invertIndexMapListIterator.next();
+                Set<String> bucketItemIdSet = resolveIndexItemIdSet(invertIndexMap, indexCollection);
 
-                AttributeValue bucketWindowAttributeValue = invertIndexMap.get(KEY_START_BUCKET_WINDOW);
+                if (bucketItemIdSet.size() == 0) {
+                    return null;
+                }
 
-                Set<String> bucketItemIdSet = new HashSet<>();
+                scannedCount.getAndAdd(bucketItemIdSet.size());
 
-                invertIndexMap.entrySet().forEach(invertIndexEntry -> {
-                    if (!indexCollection.getIndexMap().containsKey(invertIndexEntry.getKey())) {
-                        return;
-                    }
-                    if (MapUtils.isEmpty(invertIndexEntry.getValue().getM()) || !invertIndexEntry.getValue().getM().keySet().containsAll(indexCollection.getIndexMap().get(invertIndexEntry.getKey()).getInvertedIndexValueMap().keySet())) {
-                        bucketItemIdSet.clear();
-                        return;
-                    }
+                return new BucketFetchKey(bucketId, bucketWindowAttributeValue, bucketItemIdSet);
+            });
 
-                    invertIndexEntry.getValue().getM().values().forEach(invertIndexValue -> {
-                        List<String> validItemIdList = invertIndexValue.getM().entrySet().stream().filter(entry -> "1".equals(entry.getValue().getN())).map(entry -> entry.getKey()).collect(Collectors.toList());
-                        if (CollectionUtils.isEmpty(bucketItemIdSet)) {
-                            bucketItemIdSet.addAll(validItemIdList);
-                        } else {
-                            bucketItemIdSet.retainAll(validItemIdList);
-                        }
-                    });
+            // begin query item
+            if (bucketConfig.isBatchFetchEnabled()) {
+                // 每batchFetchWindowCount个window通过一次BatchGetItem拉取
+                return mapWindowIterator(fetchKeyIterator, () -> false, fetchKey -> {
+                    List<BucketFetchKey> fetchKeyList = new LinkedList<>();
+                    fetchKeyList.add(fetchKey);
+                    while (fetchKeyIterator.hasNext() && fetchKeyList.size() < bucketConfig.getBatchFetchWindowCount()) {
+                        fetchKeyList.add(fetchKeyIterator.next());
+                    }
+                    return () -> bucketDataQueryFetcher.batchFetch(fetchKeyList, itemDataQueryParam).stream().flatMap(windowBucketItemList -> windowItemHandler.apply(windowBucketItemList).stream()).collect(Collectors.toList());
                 });
+            }
+            return mapWindowIterator(fetchKeyIterator, () -> false, fetchKey -> () -> windowItemHandler.apply(bucketDataQueryFetcher.fetch(fetchKey.getBucketId(), fetchKey.getBucketWindow(), fetchKey.getItemIds(), itemDataQueryParam)));
+        }
 
-                if (bucketItemIdSet.size() == 0) {
-                    continue;
-                }
+    }
 
-                scannedCount.getAndAdd(bucketItemIdSet.size());
+    boolean isAdaptiveBucketWindow() {
+        return bucketWindowCalculator != null && bucketWindowCalculator.isAdaptive();
+    }
 
-                // begin query item
-                if (MapUtils.isNotEmpty(dataQueryParam.getExpressionMap())) {
-                    Map<String, String> expressionMap = new HashMap<>(dataQueryParam.getExpressionMap());
-                    indexCollection.getIndexMap().keySet().forEach(index -> {
-                        expressionMap.remove(index);
-                    });
-                    dataQueryParam.setExpressionMap(expressionMap);
+    <W> W getQueryStartBucketWindow(W startBucketWindow) {
+        return isAdaptiveBucketWindow() && startBucketWindow instanceof Long ? (W) bucketWindowCalculator.getQueryStartBucketWindow((Long) startBucketWindow) : startBucketWindow;
+    }
+
+    /**
+     * 前移起点后多查到的window, 结束位置 window + window_span 不超过startBucketWindow时跳过
+     */
+    <W> boolean isWindowBeforeStart(Map<String, AttributeValue> bucketMap, W startBucketWindow) {
+        if (!isAdaptiveBucketWindow() || !(startBucketWindow instanceof Long)) {
+            return false;
+        }
+
+        AttributeValue bucketWindowAttributeValue = bucketMap.get(KEY_START_BUCKET_WINDOW);
+        AttributeValue windowSpanAttributeValue = bucketMap.get(KEY_WINDOW_SPAN);
+        if (bucketWindowAttributeValue == null || bucketWindowAttributeValue.getN() == null) {
+            return false;
+        }
+
+        long windowSpan = windowSpanAttributeValue != null && windowSpanAttributeValue.getN() != null ? Long.parseLong(windowSpanAttributeValue.getN()) : 1;
+        return Long.parseLong(bucketWindowAttributeValue.getN()) + windowSpan <= (Long) startBucketWindow;
+    }
+
+    void markBucketExist(String bucketId, AttributeValue bucketWindowAttributeValue) {
+        if (bucketExistenceIndex != null && bucketWindowAttributeValue != null) {
+            bucketExistenceIndex.markExist(bucketId, bucketWindowAttributeValue.getS() != null ? bucketWindowAttributeValue.getS() : Long.valueOf(bucketWindowAttributeValue.getN()));
+        }
+    }
+
+    /**
+     * 按window顺序拉取数据, 并发度大于1时同时最多发起queryParallelism个window的请求, 结果仍按window顺序合并
+     * 拿到limit条后取消还未完成的请求
+     */
+    void fetchWindows(Iterator<Supplier<List<BucketItem>>> windowFetcherIterator, List<BucketItem> bucketItemList, int limit) {
+        if (bucketConfig.getQueryParallelism() <= 1) {
+            while (windowFetcherIterator.hasNext() && bucketItemList.size() < limit) {
+                List<BucketItem> matchBucketItemList = windowFetcherIterator.next().get();
+                if (CollectionUtils.isNotEmpty(matchBucketItemList)) {
+                    bucketItemList.addAll(matchBucketItemList);
                 }
+            }
+            return;
+        }
 
-                List<BucketItem> matchBucketItemList = bucketDataQueryFetcher.fetch(bucketId, bucketWindowAttributeValue, bucketItemIdSet, dataQueryParam);
+        ExecutorService queryExecutorService = getQueryExecutorService();
+        LinkedList<Future<List<BucketItem>>> windowFutureList = new LinkedList<>();
+        try {
+            while (windowFetcherIterator.hasNext() && windowFutureList.size() < bucketConfig.getQueryParallelism()) {
+                windowFutureList.add(queryExecutorService.submit(windowFetcherIterator.next()::get));
+            }
+
+            while (!windowFutureList.isEmpty() && bucketItemList.size() < limit) {
+                List<BucketItem> matchBucketItemList = windowFutureList.poll().get();
                 if (CollectionUtils.isNotEmpty(matchBucketItemList)) {
                     bucketItemList.addAll(matchBucketItemList);
                 }
 
-                if (bucketItemList.size() >= dataQueryParam.getTo()) {
-                    break;
+                if (windowFetcherIterator.hasNext() && bucketItemList.size() < limit) {
+                    windowFutureList.add(queryExecutorService.submit(windowFetcherIterator.next()::get));
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("fetch bucket window interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            windowFutureList.forEach(windowFuture -> windowFuture.cancel(true));
         }
+    }
 
-        bucketItemList = new ArrayList<>(bucketItemList);
-        return bucketItemList.subList(Math.min(bucketItemList.size(), dataQueryParam.getFrom()), Math.min(bucketItemList.size(), dataQueryParam.getTo()));
+    /**
+     * 把window迭代器惰性转换, mapper返回null的window跳过, stopCondition成立后不再继续遍历
+     */
+    <S, R> Iterator<R> mapWindowIterator(Iterator<S> windowIterator, BooleanSupplier stopCondition, Function<S, R> windowMapper) {
+        return new Iterator<R>() {
+            R nextWindow;
+
+            @Override
+            public boolean hasNext() {
+                while (nextWindow == null && !stopCondition.getAsBoolean() && windowIterator.hasNext()) {
+                    nextWindow = windowMapper.apply(windowIterator.next());
+                }
+                return nextWindow != null;
+            }
+
+            @Override
+            public R next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                R window = nextWindow;
+                nextWindow = null;
+                return window;
+            }
+        };
+    }
+
+    ExecutorService getQueryExecutorService() {
+        if (queryExecutorService == null) {
+            synchronized (this) {
+                if (queryExecutorService == null) {
+                    queryExecutorService = bucketConfig.getQueryExecutorService() != null ? bucketConfig.getQueryExecutorService() : Executors.newFixedThreadPool(bucketConfig.getQueryParallelism(), runnable -> {
+                        Thread thread = new Thread(runnable, "bucket-query-" + bucketTableName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return queryExecutorService;
+    }
+
+    /**
+     * 关闭本实例创建的查询线程池, 通过BucketConfig传入的线程池由调用方关闭
+     */
+    public void close() {
+        synchronized (this) {
+            if (queryExecutorService != null && queryExecutorService != bucketConfig.getQueryExecutorService()) {
+                queryExecutorService.shutdown();
+            }
+        }
+    }
+
+    void appendIndexProjection(IndexCollection indexCollection, StringBuilder invertIndexProjectExpression, Map<String, String> invertIndexAttributeNameMap) {
+        AtomicInteger j = new AtomicInteger();
+        indexCollection.getIndexMap().entrySet().forEach(indexEntry -> {
+            if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap())) {
+                return;
+            }
+
+            String indexKey = bucketConfig.getIndexLayout() != IndexLayout.NESTED ? String.join("", "#f", String.valueOf(j.incrementAndGet())) : String.join("", "#", indexEntry.getKey());
+
+            AtomicInteger i = new AtomicInteger();
+            indexEntry.getValue().getInvertedIndexValueMap().entrySet().forEach(invertedIndexValueEntry -> {
+                if (isEmptyIndexValue(invertedIndexValueEntry.getKey())) {
+                    return;
+                }
+
+                if (bucketConfig.getIndexLayout() != IndexLayout.NESTED) {
+                    String indexSubKey = String.join("", indexKey, "v", String.valueOf(i.incrementAndGet()));
+                    invertIndexProjectExpression.append(indexSubKey);
+                    invertIndexProjectExpression.append(",");
+                    invertIndexAttributeNameMap.put(indexSubKey, getIndexColumn(indexEntry.getKey(), invertedIndexValueEntry.getKey()));
+                    return;
+                }
+
+                String indexSubKey = String.join("", indexKey, String.valueOf(i.incrementAndGet()));
+                invertIndexProjectExpression.append(String.join("", indexKey, ".", indexSubKey));
+                invertIndexProjectExpression.append(",");
+                invertIndexAttributeNameMap.put(indexSubKey, invertedIndexValueEntry.getKey());
+                invertIndexAttributeNameMap.put(indexKey, indexEntry.getKey());
+            });
+        });
+
+        if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP) {
+            invertIndexProjectExpression.append("#ord").append(",");
+            invertIndexAttributeNameMap.put("#ord", KEY_INDEX_ORDINAL_MAP);
+        }
+    }
+
+    Set<String> resolveIndexItemIdSet(Map<String, AttributeValue> invertIndexMap, IndexCollection indexCollection) {
+        Set<String> bucketItemIdSet = new HashSet<>();
+
+        if (bucketConfig.getIndexLayout() == IndexLayout.BITMAP) {
+            // 所有(field, value)的bitmap按位与, 再通过ordinal映射还原itemId
+            BigInteger bitmap = null;
+            for (Map.Entry<String, IndexCollection.InvertedIndex> indexEntry : indexCollection.getIndexMap().entrySet()) {
+                for (String value : indexEntry.getValue().getInvertedIndexValueMap().keySet()) {
+                    if (isEmptyIndexValue(value)) {
+                        continue;
+                    }
+
+                    AttributeValue invertIndexValue = invertIndexMap.get(getBitmapIndexColumn(indexEntry.getKey(), value));
+                    if (invertIndexValue == null || StringUtils.isEmpty(invertIndexValue.getN())) {
+                        return Collections.emptySet();
+                    }
+
+                    bitmap = bitmap == null ? new BigInteger(invertIndexValue.getN()) : bitmap.and(new BigInteger(invertIndexValue.getN()));
+                }
+            }
+
+            AttributeValue ordinalMapAttributeValue = invertIndexMap.get(KEY_INDEX_ORDINAL_MAP);
+            if (bitmap == null || bitmap.signum() <= 0 || ordinalMapAttributeValue == null || MapUtils.isEmpty(ordinalMapAttributeValue.getM())) {
+                return Collections.emptySet();
+            }
+
+            for (int ordinal = bitmap.getLowestSetBit(); ordinal >= 0 && ordinal < bitmap.bitLength(); ordinal++) {
+                if (!bitmap.testBit(ordinal)) {
+                    continue;
+                }
+                AttributeValue itemIdAttributeValue = ordinalMapAttributeValue.getM().get(String.valueOf(ordinal));
+                if (itemIdAttributeValue != null && itemIdAttributeValue.getS() != null) {
+                    bucketItemIdSet.add(itemIdAttributeValue.getS());
+                }
+            }
+            return bucketItemIdSet;
+        }
+
+        if (bucketConfig.getIndexLayout() == IndexLayout.FLATTENED) {
+            // 所有(field, value)的itemId集合取交集, 任一不存在则没有命中
+            boolean first = true;
+            for (Map.Entry<String, IndexCollection.InvertedIndex> indexEntry : indexCollection.getIndexMap().entrySet()) {
+                for (String value : indexEntry.getValue().getInvertedIndexValueMap().keySet()) {
+                    if (isEmptyIndexValue(value)) {
+                        continue;
+                    }
+
+                    AttributeValue invertIndexValue = invertIndexMap.get(getFlattenedIndexColumn(indexEntry.getKey(), value));
+                    if (invertIndexValue == null || CollectionUtils.isEmpty(invertIndexValue.getSS())) {
+                        return Collections.emptySet();
+                    }
+
+                    if (first) {
+                        bucketItemIdSet.addAll(invertIndexValue.getSS());
+                        first = false;
+                    } else {
+                        bucketItemIdSet.retainAll(invertIndexValue.getSS());
+                    }
+                }
+            }
+            return bucketItemIdSet;
+        }
+
+        invertIndexMap.entrySet().forEach(invertIndexEntry -> {
+            if (!indexCollection.getIndexMap().containsKey(invertIndexEntry.getKey())) {
+                return;
+            }
+            if (MapUtils.isEmpty(invertIndexEntry.getValue().getM()) || !invertIndexEntry.getValue().getM().keySet().containsAll(indexCollection.getIndexMap().get(invertIndexEntry.getKey()).getInvertedIndexValueMap().keySet())) {
+                bucketItemIdSet.clear();
+                return;
+            }
+
+            invertIndexEntry.getValue().getM().values().forEach(invertIndexValue -> {
+                List<String> validItemIdList = invertIndexValue.getM().entrySet().stream().filter(entry -> "1".equals(entry.getValue().getN())).map(entry -> entry.getKey()).collect(Collectors.toList());
+                if (CollectionUtils.isEmpty(bucketItemIdSet)) {
+                    bucketItemIdSet.addAll(validItemIdList);
+                } else {
+                    bucketItemIdSet.retainAll(validItemIdList);
+                }
+            });
+        });
+        return bucketItemIdSet;
+    }
+
+    Set<String> getIndexValueSet(AttributeValue attributeValue) {
+        if (attributeValue == null) {
+            return Collections.emptySet();
+        }
+
+        Set<String> valueSet = new HashSet<>();
+        if (CollectionUtils.isNotEmpty(attributeValue.getSS())) {
+            valueSet.addAll(attributeValue.getSS());
+        } else if (CollectionUtils.isNotEmpty(attributeValue.getNS())) {
+            valueSet.addAll(attributeValue.getNS());
+        } else if (attributeValue.getS() != null || attributeValue.getN() != null) {
+            valueSet.add(StringUtils.defaultString(attributeValue.getS(), attributeValue.getN()));
+        }
+        valueSet.removeIf(this::isEmptyIndexValue);
+        return valueSet;
+    }
+
+    Map<String, AttributeValue> getBucketKey(String bucketId, Object bucketWindow) {
+        Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
+        bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketId));
+        bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, bucketWindow instanceof String ? new AttributeValue().withS((String) bucketWindow) : new AttributeValue().withN(String.valueOf(bucketWindow)));
+        return bucketKeyAttributeValueMap;
+    }
+
+    String getFlattenedIndexColumn(String field, String value) {
+        return String.join("#", KEY_INDEX_PREFIX, field, value);
+    }
+
+    String getBitmapIndexColumn(String field, String value) {
+        return String.join("#", KEY_INDEX_BITMAP_PREFIX, field, value);
+    }
+
+    String getIndexColumn(String field, String value) {
+        return bucketConfig.getIndexLayout() == IndexLayout.BITMAP ? getBitmapIndexColumn(field, value) : getFlattenedIndexColumn(field, value);
+    }
+
+    BigInteger getOrdinalBit(int ordinal) {
+        return BigInteger.ONE.shiftLeft(ordinal);
     }
 
     String getItemMapColumn(String itemId) {
         int h = 0;
         int hash = (itemId == null) ? 0 : (h = itemId.hashCode()) ^ (h >>> 16);
-        return String.join("", KEY_ITEM_MAP, String.valueOf((MAX_BUCKET_ITEM_COUNT - 1) & hash));
+        return String.join("", KEY_ITEM_MAP, String.valueOf((itemMapColumnCount - 1) & hash));
     }
 
     boolean isEmptyIndexValue(String str) {
@@ -2,19 +2,30 @@ package group.bison.dynamodb.bucket.data;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
 import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
 import group.bison.dynamodb.bucket.metadata.BucketItem;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
+import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
+import org.apache.commons.lang3.StringUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -23,8 +34,10 @@ import java.util.stream.IntStream;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BIZ_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_MAP;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_PAYLOAD;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
 import static group.bison.dynamodb.bucket.common.Constants.MAX_BUCKET_ITEM_COUNT;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_UPDATE_EXPRESSION_LENGTH;
 
 @NoArgsConstructor
 @AllArgsConstructor
@@ -36,7 +49,29 @@ public class BucketDataQueryFetcher {
 
     private ExpressionFilter expressionFilter;
 
+    // item_map列数, 2的幂
+    private int itemMapColumnCount = MAX_BUCKET_ITEM_COUNT;
+
+    // 解压压缩保存的item属性
+    private BucketItemEncoder bucketItemEncoder;
+
+    static final int MAX_BATCH_GET_ITEM_COUNT = 100;
+
+    static final int MAX_BATCH_GET_ITEM_RETRY = 8;
+
+    static final long BATCH_GET_ITEM_BACKOFF_MILLIS = 25;
+
     public List<BucketItem> fetch(String bucketId, AttributeValue startBucketWindow, DataQueryParam dataQueryParam) {
+        Map<String, BucketItem> bucketItemMap = fetchWindow(bucketId, startBucketWindow);
+
+        List<BucketItem> matchBucketItemList = filterDataQueryExpression(bucketItemMap.values(), dataQueryParam);
+        return matchBucketItemList;
+    }
+
+    /**
+     * 拉取整个window的item, 不做过滤
+     */
+    public Map<String, BucketItem> fetchWindow(String bucketId, AttributeValue startBucketWindow) {
         GetItemRequest getItemRequest = new GetItemRequest();
         getItemRequest.setTableName(bucketTableName);
         getItemRequest.setConsistentRead(false);
@@ -46,18 +81,42 @@ public class BucketDataQueryFetcher {
         bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, startBucketWindow);
         getItemRequest.setKey(bucketKeyAttributeValueMap);
 
-        List<String> itemMapColumnList = IntStream.range(0, MAX_BUCKET_ITEM_COUNT).mapToObj(i -> String.join("", KEY_ITEM_MAP, String.valueOf(i))).collect(Collectors.toList());
+        List<String> itemMapColumnList = IntStream.range(0, itemMapColumnCount).mapToObj(i -> String.join("", KEY_ITEM_MAP, String.valueOf(i))).collect(Collectors.toList());
         String projectExpression = String.join(",", itemMapColumnList);
         getItemRequest.setProjectionExpression(projectExpression);
 
         GetItemResult getItemResult = dynamoDB.getItem(getItemRequest);
-        Map<String, BucketItem> bucketItemMap = parseGetItemResult(getItemResult);
+        return parseGetItemResult(getItemResult, bucketId, startBucketWindow);
+    }
 
-        List<BucketItem> matchBucketItemList = filterDataQueryExpression(bucketItemMap.values(), dataQueryParam);
+    /**
+     * 按itemId拉取, projection路径总长度超过表达式上限时拆成多次GetItem
+     */
+    public List<BucketItem> fetch(String bucketId, AttributeValue startBucketWindow, Collection<String> queryItemIds, DataQueryParam dataQueryParam) {
+        Map<String, String> projectionAttributeKeyMap = getProjectionAttributeKeyMap(dataQueryParam, new HashMap<>());
+        int projectionAttributeCount = projectionAttributeKeyMap == null ? 0 : projectionAttributeKeyMap.size();
+
+        List<BucketItem> matchBucketItemList = new ArrayList<>();
+        List<String> chunkItemIdList = new ArrayList<>();
+        int projectionLength = 0;
+        for (String bucketItemId : queryItemIds) {
+            int itemProjectionLength = getItemProjectionLength(bucketItemId, projectionAttributeCount);
+            if (!chunkItemIdList.isEmpty() && projectionLength + itemProjectionLength > MAX_UPDATE_EXPRESSION_LENGTH) {
+                matchBucketItemList.addAll(doFetch(bucketId, startBucketWindow, chunkItemIdList, dataQueryParam));
+                chunkItemIdList = new ArrayList<>();
+                projectionLength = 0;
+            }
+
+            chunkItemIdList.add(bucketItemId);
+            projectionLength += itemProjectionLength;
+        }
+        if (!chunkItemIdList.isEmpty()) {
+            matchBucketItemList.addAll(doFetch(bucketId, startBucketWindow, chunkItemIdList, dataQueryParam));
+        }
         return matchBucketItemList;
     }
 
-    public List<BucketItem> fetch(String bucketId, AttributeValue startBucketWindow, Collection<String> queryItemIds, DataQueryParam dataQueryParam) {
+    List<BucketItem> doFetch(String bucketId, AttributeValue startBucketWindow, Collection<String> queryItemIds, DataQueryParam dataQueryParam) {
         GetItemRequest getItemRequest = new GetItemRequest();
         getItemRequest.setTableName(bucketTableName);
         getItemRequest.setConsistentRead(false);
@@ -71,12 +130,12 @@ public class BucketDataQueryFetcher {
 
         StringBuilder projectExpressionBuilder = new StringBuilder();
         AtomicInteger i = new AtomicInteger();
+        Map<String, String> projectionAttributeKeyMap = getProjectionAttributeKeyMap(dataQueryParam, itemQueryAttributeNameMap);
 
         queryItemIds.forEach(bucketItemId -> {
             String itemMapColumn = getItemMapColumn(bucketItemId);
             String itemIdKey = String.join("", "#itemId", String.valueOf(i.incrementAndGet()));
-            projectExpressionBuilder.append(String.join("", itemMapColumn, ".", itemIdKey));
-            projectExpressionBuilder.append(",");
+            appendItemProjection(projectExpressionBuilder, String.join("", itemMapColumn, ".", itemIdKey), projectionAttributeKeyMap);
             itemQueryAttributeNameMap.put(itemIdKey, bucketItemId);
             return;
         });
@@ -87,13 +146,174 @@ public class BucketDataQueryFetcher {
         getItemRequest.setExpressionAttributeNames(itemQueryAttributeNameMap);
 
         GetItemResult getItemResult = dynamoDB.getItem(getItemRequest);
-        Map<String, BucketItem> bucketItemMap = parseGetItemResult(getItemResult);
+        Map<String, BucketItem> bucketItemMap = parseGetItemResult(getItemResult, bucketId, startBucketWindow);
 
         List<BucketItem> matchBucketItemList = filterDataQueryExpression(bucketItemMap.values(), dataQueryParam);
         return matchBucketItemList;
     }
 
-    Map<String, BucketItem> parseGetItemResult(GetItemResult getItemResult) {
+    /**
+     * 通过BatchGetItem拉取多个bucket window, 每批最多100个key, 返回结果和fetchKeyList顺序一致
+     */
+    public List<List<BucketItem>> batchFetch(List<BucketFetchKey> fetchKeyList, DataQueryParam dataQueryParam) {
+        List<List<BucketItem>> fetchResultList = new ArrayList<>(fetchKeyList.size());
+
+        int fromIndex = 0;
+        while (fromIndex < fetchKeyList.size()) {
+            // 按key数量和projection长度拆分批次
+            int toIndex = fromIndex;
+            Set<String> chunkItemIdSet = new LinkedHashSet<>();
+            boolean fullWindow = false;
+            int projectionLength = 0;
+            Map<String, String> projectionAttributeKeyMap = getProjectionAttributeKeyMap(dataQueryParam, new HashMap<>());
+            int projectionAttributeCount = projectionAttributeKeyMap == null ? 0 : projectionAttributeKeyMap.size();
+            while (toIndex < fetchKeyList.size() && toIndex - fromIndex < MAX_BATCH_GET_ITEM_COUNT) {
+                BucketFetchKey fetchKey = fetchKeyList.get(toIndex);
+                int itemProjectionLength = fetchKey.getItemIds() == null ? 0 : fetchKey.getItemIds().stream().filter(itemId -> !chunkItemIdSet.contains(itemId)).mapToInt(itemId -> getItemProjectionLength(itemId, projectionAttributeCount)).sum();
+                if (toIndex > fromIndex && projectionLength + itemProjectionLength > MAX_UPDATE_EXPRESSION_LENGTH) {
+                    break;
+                }
+
+                projectionLength += itemProjectionLength;
+                if (fetchKey.getItemIds() == null) {
+                    fullWindow = true;
+                } else {
+                    chunkItemIdSet.addAll(fetchKey.getItemIds());
+                }
+                toIndex++;
+            }
+
+            fetchResultList.addAll(doBatchFetch(fetchKeyList.subList(fromIndex, toIndex), fullWindow, chunkItemIdSet, dataQueryParam));
+            fromIndex = toIndex;
+        }
+        return fetchResultList;
+    }
+
+    List<List<BucketItem>> doBatchFetch(List<BucketFetchKey> chunkFetchKeyList, boolean fullWindow, Set<String> chunkItemIdSet, DataQueryParam dataQueryParam) {
+        KeysAndAttributes keysAndAttributes = new KeysAndAttributes();
+        keysAndAttributes.setConsistentRead(false);
+
+        Map<String, Map<String, AttributeValue>> bucketKeyMap = new LinkedHashMap<>();
+        chunkFetchKeyList.forEach(fetchKey -> {
+            Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
+            bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(fetchKey.getBucketId()));
+            bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, fetchKey.getBucketWindow());
+            bucketKeyMap.putIfAbsent(getBucketKeyString(fetchKey.getBucketId(), fetchKey.getBucketWindow()), bucketKeyAttributeValueMap);
+        });
+        keysAndAttributes.setKeys(new ArrayList<>(bucketKeyMap.values()));
+
+        // 一个批次共用一个projection, 取所有key的并集, 需要带上主键用来对应结果
+        StringBuilder projectExpressionBuilder = new StringBuilder();
+        projectExpressionBuilder.append(KEY_BUCKET_ID).append(",").append(KEY_START_BUCKET_WINDOW);
+        if (fullWindow) {
+            IntStream.range(0, itemMapColumnCount).forEach(i -> projectExpressionBuilder.append(",").append(KEY_ITEM_MAP).append(i));
+        } else {
+            Map<String, String> itemQueryAttributeNameMap = new HashMap<>();
+            Map<String, String> projectionAttributeKeyMap = getProjectionAttributeKeyMap(dataQueryParam, itemQueryAttributeNameMap);
+            AtomicInteger i = new AtomicInteger();
+            projectExpressionBuilder.append(",");
+            chunkItemIdSet.forEach(bucketItemId -> {
+                String itemIdKey = String.join("", "#itemId", String.valueOf(i.incrementAndGet()));
+                appendItemProjection(projectExpressionBuilder, String.join("", getItemMapColumn(bucketItemId), ".", itemIdKey), projectionAttributeKeyMap);
+                itemQueryAttributeNameMap.put(itemIdKey, bucketItemId);
+            });
+            projectExpressionBuilder.deleteCharAt(projectExpressionBuilder.length() - 1);
+            keysAndAttributes.setExpressionAttributeNames(itemQueryAttributeNameMap);
+        }
+        keysAndAttributes.setProjectionExpression(projectExpressionBuilder.toString());
+
+        Map<String, Map<String, AttributeValue>> bucketResultMap = new HashMap<>();
+        Map<String, KeysAndAttributes> requestItems = Collections.singletonMap(bucketTableName, keysAndAttributes);
+        int attempt = 0;
+        while (MapUtils.isNotEmpty(requestItems)) {
+            if (attempt > 0) {
+                if (attempt > MAX_BATCH_GET_ITEM_RETRY) {
+                    throw new RuntimeException("batch get bucket failed, unprocessed keys remain after " + MAX_BATCH_GET_ITEM_RETRY + " retries");
+                }
+                sleepBackoff(attempt);
+            }
+
+            BatchGetItemResult batchGetItemResult = dynamoDB.batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+            List<Map<String, AttributeValue>> bucketMapList = batchGetItemResult.getResponses() != null ? batchGetItemResult.getResponses().get(bucketTableName) : null;
+            if (bucketMapList != null) {
+                bucketMapList.forEach(bucketMap -> bucketResultMap.put(getBucketKeyString(bucketMap.get(KEY_BUCKET_ID).getS(), bucketMap.get(KEY_START_BUCKET_WINDOW)), bucketMap));
+            }
+
+            requestItems = batchGetItemResult.getUnprocessedKeys();
+            attempt++;
+        }
+
+        return chunkFetchKeyList.stream().map(fetchKey -> {
+            Map<String, AttributeValue> bucketMap = bucketResultMap.get(getBucketKeyString(fetchKey.getBucketId(), fetchKey.getBucketWindow()));
+            Map<String, BucketItem> bucketItemMap = parseGetItemResult(new GetItemResult().withItem(bucketMap), fetchKey.getBucketId(), fetchKey.getBucketWindow());
+            if (fetchKey.getItemIds() != null) {
+                // 并集projection可能带出其他key的item
+                bucketItemMap.keySet().retainAll(new HashSet<>(fetchKey.getItemIds()));
+            }
+            return filterDataQueryExpression(bucketItemMap.values(), dataQueryParam);
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * projectionList不为空时只拉取item的这些属性, 另外保留bizId和过滤表达式用到的属性
+     * 压缩保存的属性都在payload中, 同时拉取payload, 解码后过滤表达式才能看到完整的item
+     * 返回属性名到占位符的映射并写入attributeNameMap, 为空表示拉取整个item
+     */
+    Map<String, String> getProjectionAttributeKeyMap(DataQueryParam dataQueryParam, Map<String, String> attributeNameMap) {
+        if (dataQueryParam == null || CollectionUtils.isEmpty(dataQueryParam.getProjectionList())) {
+            return null;
+        }
+
+        Set<String> projectionAttributeSet = new LinkedHashSet<>(dataQueryParam.getProjectionList());
+        projectionAttributeSet.add(KEY_BIZ_ID);
+        if (MapUtils.isNotEmpty(dataQueryParam.getExpressionMap())) {
+            projectionAttributeSet.addAll(dataQueryParam.getExpressionMap().keySet());
+        }
+        if (bucketItemEncoder != null) {
+            projectionAttributeSet.add(KEY_ITEM_PAYLOAD);
+        }
+
+        Map<String, String> projectionAttributeKeyMap = new LinkedHashMap<>();
+        AtomicInteger i = new AtomicInteger();
+        projectionAttributeSet.forEach(attribute -> {
+            String attributeKey = String.join("", "#attr", String.valueOf(i.incrementAndGet()));
+            projectionAttributeKeyMap.put(attribute, attributeKey);
+            attributeNameMap.put(attributeKey, attribute);
+        });
+        return projectionAttributeKeyMap;
+    }
+
+    /**
+     * 一个item的projection路径长度上限, 每个请求的#itemId序号从1开始
+     */
+    int getItemProjectionLength(String itemId, int projectionAttributeCount) {
+        return projectionAttributeCount == 0 ? getItemMapColumn(itemId).length() + 12 : (getItemMapColumn(itemId).length() + 20) * projectionAttributeCount;
+    }
+
+    void appendItemProjection(StringBuilder projectExpressionBuilder, String itemPath, Map<String, String> projectionAttributeKeyMap) {
+        if (projectionAttributeKeyMap == null) {
+            projectExpressionBuilder.append(itemPath).append(",");
+            return;
+        }
+
+        projectionAttributeKeyMap.values().forEach(attributeKey -> projectExpressionBuilder.append(String.join("", itemPath, ".", attributeKey)).append(","));
+    }
+
+    void sleepBackoff(int attempt) {
+        try {
+            long backoffMillis = Math.min(BATCH_GET_ITEM_BACKOFF_MILLIS << (attempt - 1), 1000L);
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("batch get bucket interrupted", e);
+        }
+    }
+
+    String getBucketKeyString(String bucketId, AttributeValue bucketWindow) {
+        return String.join("|", bucketId, StringUtils.defaultString(bucketWindow.getS(), bucketWindow.getN()));
+    }
+
+    Map<String, BucketItem> parseGetItemResult(GetItemResult getItemResult, String bucketId, AttributeValue bucketWindow) {
         if (getItemResult == null || MapUtils.isEmpty(getItemResult.getItem())) {
             return Collections.emptyMap();
         }
@@ -108,25 +328,10 @@ public class BucketDataQueryFetcher {
                             return null;
                         }
 
-                        if (MapUtils.isEmpty(itemAttributeValueEntry.getValue().getM())) {
-                            return null;
+                        if (bucketItemEncoder != null) {
+                            attributeValueMap = bucketItemEncoder.decode(attributeValueMap);
                         }
-
-                        BucketItem bucketItem = new BucketItem() {
-                            @Override
-                            public String getBucketId() {
-                                return null;
-                            }
-
-                            @Override
-                            public <W> W getBucketWindow() {
-                                return null;
-                            }
-                        };
-                        bucketItem.setItemId(itemId);
-                        bucketItem.setBizId(attributeValueMap.get(KEY_BIZ_ID).getS());
-                        bucketItem.setItemAttributeValueMap(attributeValueMap);
-                        return bucketItem;
+                        return newBucketItem(bucketId, bucketWindow, itemId, attributeValueMap);
                     });
                 })
                 .filter(obj -> obj != null)
@@ -134,6 +339,27 @@ public class BucketDataQueryFetcher {
         return bucketItemMap;
     }
 
+    static BucketItem newBucketItem(String bucketId, AttributeValue bucketWindow, String itemId, Map<String, AttributeValue> attributeValueMap) {
+        BucketItem bucketItem = new BucketItem() {
+            @Override
+            public String getBucketId() {
+                return bucketId;
+            }
+
+            @Override
+            public <W> W getBucketWindow() {
+                if (bucketWindow == null) {
+                    return null;
+                }
+                return (W) (bucketWindow.getS() != null ? bucketWindow.getS() : Long.valueOf(bucketWindow.getN()));
+            }
+        };
+        bucketItem.setItemId(itemId);
+        bucketItem.setBizId(attributeValueMap.get(KEY_BIZ_ID).getS());
+        bucketItem.setItemAttributeValueMap(attributeValueMap);
+        return bucketItem;
+    }
+
     List<BucketItem> filterDataQueryExpression(Collection<BucketItem> queryBucketItemList, DataQueryParam dataQueryParam) {
         // apply expression filter
         List<BucketItem> matchBucketItemList = queryBucketItemList.stream().filter(bucketItem -> {
@@ -150,6 +376,6 @@ public class BucketDataQueryFetcher {
     String getItemMapColumn(String itemId) {
         int h = 0;
         int hash = (itemId == null) ? 0 : (h = itemId.hashCode()) ^ (h >>> 16);
-        return String.join("", KEY_ITEM_MAP, String.valueOf((MAX_BUCKET_ITEM_COUNT - 1) & hash));
+        return String.join("", KEY_ITEM_MAP, String.valueOf((itemMapColumnCount - 1) & hash));
     }
 }
@@ -0,0 +1,23 @@
+package group.bison.dynamodb.bucket.data;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collection;
+
+/**
+ * 批量拉取时的一个bucket window, itemIds为空表示拉取整个window
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BucketFetchKey {
+
+    private String bucketId;
+
+    private AttributeValue bucketWindow;
+
+    private Collection<String> itemIds;
+}
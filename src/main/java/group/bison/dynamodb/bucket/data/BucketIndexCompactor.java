@@ -0,0 +1,236 @@
+package group.bison.dynamodb.bucket.data;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections.MapUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_UPDATE_EXPRESSION_LENGTH;
+
+/**
+ * 后台清理NESTED倒排索引中update留下的0值
+ * update后提交(bucketId, bucketWindow, field), 单线程按rate限速处理, 每次读取一个field的索引, 通过条件REMOVE删除仍为0的itemId
+ * value本身即使清空也保留, 其他进程的BucketIndexCache认为value已初始化, 会直接SET value下的itemId
+ */
+@Slf4j
+public class BucketIndexCompactor {
+
+    private String bucketTableName;
+
+    private AmazonDynamoDB dynamoDB;
+
+    private long compactIntervalMillis;
+
+    private BlockingQueue<CompactionKey> compactionQueue;
+
+    private Set<CompactionKey> pendingKeySet = ConcurrentHashMap.newKeySet();
+
+    private AtomicLong reclaimedBytes = new AtomicLong();
+
+    private AtomicLong removedEntryCount = new AtomicLong();
+
+    private volatile ScheduledExecutorService compactExecutorService;
+
+    public BucketIndexCompactor(String bucketTableName, AmazonDynamoDB dynamoDB, BucketConfig bucketConfig) {
+        this.bucketTableName = bucketTableName;
+        this.dynamoDB = dynamoDB;
+        this.compactIntervalMillis = Math.max(1, 1000 / Math.max(1, bucketConfig.getIndexCompactionRatePerSecond()));
+        this.compactionQueue = new LinkedBlockingQueue<>(bucketConfig.getIndexCompactionQueueSize());
+    }
+
+    /**
+     * 提交需要清理的索引field, 已在队列中的忽略, 队列满时丢弃, 下次update会再提交
+     */
+    public <W> void submit(String bucketId, W bucketWindow, Collection<String> fields) {
+        fields.forEach(field -> {
+            CompactionKey compactionKey = new CompactionKey(bucketId, bucketWindow, field);
+            if (pendingKeySet.add(compactionKey) && !compactionQueue.offer(compactionKey)) {
+                pendingKeySet.remove(compactionKey);
+            }
+        });
+
+        if (compactExecutorService == null) {
+            synchronized (this) {
+                if (compactExecutorService == null) {
+                    compactExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "bucket-index-compact-" + bucketTableName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    compactExecutorService.scheduleWithFixedDelay(this::compactNext, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    void compactNext() {
+        CompactionKey compactionKey = compactionQueue.poll();
+        if (compactionKey == null) {
+            return;
+        }
+        pendingKeySet.remove(compactionKey);
+
+        try {
+            compact(compactionKey.bucketId, compactionKey.bucketWindow, compactionKey.field);
+        } catch (Exception e) {
+            log.warn("compact bucket index failed, bucketId:{} bucketWindow:{} field:{}", compactionKey.bucketId, compactionKey.bucketWindow, compactionKey.field, e);
+        }
+    }
+
+    /**
+     * 清理一个field的索引, 返回估算回收的字节数
+     */
+    public <W> long compact(String bucketId, W bucketWindow, String field) {
+        Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
+        bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketId));
+        bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, bucketWindow instanceof String ? new AttributeValue().withS((String) bucketWindow) : new AttributeValue().withN(String.valueOf(bucketWindow)));
+
+        GetItemRequest getItemRequest = new GetItemRequest();
+        getItemRequest.setTableName(bucketTableName);
+        getItemRequest.setConsistentRead(true);
+        getItemRequest.setKey(bucketKeyAttributeValueMap);
+        getItemRequest.setProjectionExpression("#f");
+        getItemRequest.setExpressionAttributeNames(Collections.singletonMap("#f", field));
+
+        GetItemResult getItemResult = dynamoDB.getItem(getItemRequest);
+        AttributeValue indexAttributeValue = getItemResult.getItem() != null ? getItemResult.getItem().get(field) : null;
+        if (indexAttributeValue == null || MapUtils.isEmpty(indexAttributeValue.getM())) {
+            return 0;
+        }
+
+        UpdateExpression updateExpression = newCompactExpression(field);
+        List<String> conditionList = new LinkedList<>();
+        AtomicInteger v = new AtomicInteger();
+        long compactBytes = 0;
+        long reclaimBytes = 0;
+        for (Map.Entry<String, AttributeValue> indexValueEntry : indexAttributeValue.getM().entrySet()) {
+            Map<String, AttributeValue> indexItemIdMap = indexValueEntry.getValue().getM();
+            if (indexItemIdMap == null) {
+                continue;
+            }
+
+            List<String> tombstoneItemIdList = indexItemIdMap.entrySet().stream().filter(entry -> "0".equals(entry.getValue().getN())).map(Map.Entry::getKey).collect(Collectors.toList());
+            if (tombstoneItemIdList.isEmpty()) {
+                continue;
+            }
+
+            String valueKey = String.join("", "#v", String.valueOf(v.incrementAndGet()));
+            UpdateExpression valueExpression = new UpdateExpression();
+            List<String> valueConditionList = new LinkedList<>();
+            long valueBytes = tombstoneItemIdList.stream().mapToLong(itemId -> itemId.getBytes(StandardCharsets.UTF_8).length + 3).sum();
+            valueExpression.name(valueKey, indexValueEntry.getKey());
+            AtomicInteger i = new AtomicInteger();
+            tombstoneItemIdList.forEach(itemId -> {
+                String itemIdKey = String.join("", valueKey, "i", String.valueOf(i.incrementAndGet()));
+                valueExpression.remove(String.join(".", "#f", valueKey, itemIdKey));
+                valueExpression.name(itemIdKey, itemId);
+                valueConditionList.add(String.join("", "#f.", valueKey, ".", itemIdKey, " = :zero"));
+            });
+            valueExpression.value(":zero", new AttributeValue().withN("0"));
+
+            int conditionLength = conditionList.stream().mapToInt(condition -> condition.length() + 5).sum() + valueConditionList.stream().mapToInt(condition -> condition.length() + 5).sum();
+            if (!updateExpression.isEmpty() && updateExpression.length() + valueExpression.length() + conditionLength > MAX_UPDATE_EXPRESSION_LENGTH) {
+                reclaimBytes += doCompact(bucketKeyAttributeValueMap, updateExpression, conditionList, compactBytes);
+                updateExpression = newCompactExpression(field);
+                conditionList = new LinkedList<>();
+                compactBytes = 0;
+            }
+
+            updateExpression.merge(valueExpression);
+            conditionList.addAll(valueConditionList);
+            compactBytes += valueBytes;
+        }
+
+        if (!updateExpression.isEmpty()) {
+            reclaimBytes += doCompact(bucketKeyAttributeValueMap, updateExpression, conditionList, compactBytes);
+        }
+        return reclaimBytes;
+    }
+
+    UpdateExpression newCompactExpression(String field) {
+        return new UpdateExpression().name("#f", field);
+    }
+
+    long doCompact(Map<String, AttributeValue> bucketKeyAttributeValueMap, UpdateExpression updateExpression, List<String> conditionList, long compactBytes) {
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+        updateItemRequest.setKey(bucketKeyAttributeValueMap);
+        updateExpression.applyTo(updateItemRequest);
+        updateItemRequest.setConditionExpression(String.join(" AND ", conditionList));
+
+        try {
+            dynamoDB.updateItem(updateItemRequest);
+        } catch (ConditionalCheckFailedException e) {
+            // 读取后索引被修改, 等下次提交再清理
+            return 0;
+        }
+
+        removedEntryCount.addAndGet(conditionList.size());
+        reclaimedBytes.addAndGet(compactBytes);
+        return compactBytes;
+    }
+
+    /**
+     * 停止后台清理, 队列中未处理的field直接丢弃, 之后的update会再提交
+     */
+    public void close() {
+        synchronized (this) {
+            if (compactExecutorService != null) {
+                compactExecutorService.shutdownNow();
+            }
+        }
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    public long getRemovedEntryCount() {
+        return removedEntryCount.get();
+    }
+
+    public int getPendingCount() {
+        return compactionQueue.size();
+    }
+
+    @EqualsAndHashCode
+    static class CompactionKey {
+        String bucketId;
+
+        Object bucketWindow;
+
+        String field;
+
+        CompactionKey(String bucketId, Object bucketWindow, String field) {
+            this.bucketId = bucketId;
+            this.bucketWindow = bucketWindow;
+            this.field = field;
+        }
+    }
+}
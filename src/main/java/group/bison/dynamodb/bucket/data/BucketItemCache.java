@@ -0,0 +1,75 @@
+package group.bison.dynamodb.bucket.data;
+
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * queryOne读取到的item缓存, key为(bucketId, bucketWindow, itemId), 每个bucket表一个实例
+ * 同一实例的add/update/delete会删除对应item, 其他进程的写入只能等过期
+ */
+public class BucketItemCache {
+
+    private LocalCache<String, BucketItem> bucketItemCache;
+
+    // 每次删除递增, 读取期间有删除时不写入缓存, 避免并发update后写入旧值
+    private AtomicLong invalidateSeq = new AtomicLong();
+
+    public BucketItemCache(long maxSize, long expireMillis) {
+        this.bucketItemCache = new LocalCache<>(maxSize, expireMillis);
+    }
+
+    public <W> BucketItem get(String bucketId, W bucketWindow, String itemId) {
+        return bucketItemCache.get(getCacheKey(bucketId, bucketWindow, itemId));
+    }
+
+    /**
+     * 读取前获取, put时传入
+     */
+    public long getInvalidateSeq() {
+        return invalidateSeq.get();
+    }
+
+    public <W> void put(String bucketId, W bucketWindow, String itemId, BucketItem bucketItem, long readInvalidateSeq) {
+        if (bucketItem == null) {
+            return;
+        }
+
+        String cacheKey = getCacheKey(bucketId, bucketWindow, itemId);
+        bucketItemCache.put(cacheKey, bucketItem);
+        // put之后再检查, 保证与invalidate交错时不会留下旧值
+        if (invalidateSeq.get() != readInvalidateSeq) {
+            bucketItemCache.remove(cacheKey);
+        }
+    }
+
+    public <W> void invalidate(String bucketId, W bucketWindow, String itemId) {
+        invalidateSeq.incrementAndGet();
+        bucketItemCache.remove(getCacheKey(bucketId, bucketWindow, itemId));
+    }
+
+    public long getHitCount() {
+        return bucketItemCache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return bucketItemCache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return bucketItemCache.getEvictionCount();
+    }
+
+    public double getHitRate() {
+        return bucketItemCache.getHitRate();
+    }
+
+    public long size() {
+        return bucketItemCache.size();
+    }
+
+    String getCacheKey(String bucketId, Object bucketWindow, String itemId) {
+        return String.join("|", bucketId, String.valueOf(bucketWindow), itemId);
+    }
+}
@@ -0,0 +1,123 @@
+package group.bison.dynamodb.bucket.data;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.common.codec.AttributeValueSerializer;
+import group.bison.dynamodb.bucket.common.codec.ItemCodec;
+import group.bison.dynamodb.bucket.common.codec.ItemCodecType;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BIZ_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_ORDINAL;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_PAYLOAD;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_TTL_TIMESTAMP;
+
+/**
+ * 写入时把item的属性序列化压缩成一个B属性, 读取时透明解压, 每个bucket表一个实例
+ * bizId, ttl, ordinal和索引字段不压缩, 条件表达式和索引补偿仍然可以直接访问
+ * update直接SET单个属性, 解码时未压缩的属性覆盖payload中的同名属性
+ * payload格式: codec id(1字节) + 压缩前长度(varint) + 压缩数据, 读取时按id解压, 与写入配置无关
+ */
+public class BucketItemEncoder {
+
+    private ItemCodecType itemCodecType;
+
+    private byte[] dictionary;
+
+    private int minBytes;
+
+    private Map<ItemCodecType, ItemCodec> itemCodecMap = new ConcurrentHashMap<>();
+
+    public BucketItemEncoder(BucketConfig bucketConfig) {
+        this.itemCodecType = bucketConfig.getItemCodecType() != null ? bucketConfig.getItemCodecType() : ItemCodecType.NONE;
+        this.dictionary = bucketConfig.getItemCodecDictionary();
+        this.minBytes = bucketConfig.getItemCodecMinBytes();
+    }
+
+    /**
+     * 返回写入bucket的属性, 不压缩或压缩收益不明显时返回原属性
+     */
+    public Map<String, AttributeValue> encode(BucketItem bucketItem) {
+        Map<String, AttributeValue> attributeValueMap = bucketItem.getItemAttributeValueMap();
+        if (itemCodecType == ItemCodecType.NONE) {
+            return attributeValueMap;
+        }
+
+        Map<String, AttributeValue> plainAttributeValueMap = new HashMap<>();
+        Map<String, AttributeValue> payloadAttributeValueMap = new LinkedHashMap<>();
+        attributeValueMap.forEach((name, attributeValue) -> {
+            if (isPlainAttribute(bucketItem, name)) {
+                plainAttributeValueMap.put(name, attributeValue);
+            } else {
+                payloadAttributeValueMap.put(name, attributeValue);
+            }
+        });
+        if (payloadAttributeValueMap.isEmpty()) {
+            return attributeValueMap;
+        }
+
+        byte[] data = AttributeValueSerializer.serialize(payloadAttributeValueMap);
+        if (data.length < minBytes) {
+            return attributeValueMap;
+        }
+        byte[] compressedData = getItemCodec(itemCodecType).compress(data);
+        if (compressedData.length + 8 >= data.length) {
+            return attributeValueMap;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(compressedData.length + 8);
+        outputStream.write(itemCodecType.getId());
+        AttributeValueSerializer.writeVarint(outputStream, data.length);
+        outputStream.write(compressedData, 0, compressedData.length);
+        plainAttributeValueMap.put(KEY_ITEM_PAYLOAD, new AttributeValue().withB(ByteBuffer.wrap(outputStream.toByteArray())));
+        return plainAttributeValueMap;
+    }
+
+    /**
+     * 没有payload时原样返回
+     */
+    public Map<String, AttributeValue> decode(Map<String, AttributeValue> storedAttributeValueMap) {
+        AttributeValue payloadAttributeValue = storedAttributeValueMap.get(KEY_ITEM_PAYLOAD);
+        if (payloadAttributeValue == null || payloadAttributeValue.getB() == null) {
+            return storedAttributeValueMap;
+        }
+
+        ByteBuffer byteBuffer = payloadAttributeValue.getB().duplicate();
+        ItemCodecType payloadCodecType = ItemCodecType.of(byteBuffer.get());
+        int length = AttributeValueSerializer.readVarint(byteBuffer);
+        byte[] compressedData = new byte[byteBuffer.remaining()];
+        byteBuffer.get(compressedData);
+
+        Map<String, AttributeValue> attributeValueMap = AttributeValueSerializer.deserialize(getItemCodec(payloadCodecType).decompress(compressedData, length));
+        storedAttributeValueMap.forEach((name, attributeValue) -> {
+            if (!KEY_ITEM_PAYLOAD.equals(name)) {
+                attributeValueMap.put(name, attributeValue);
+            }
+        });
+        return attributeValueMap;
+    }
+
+    public ItemCodecType getItemCodecType() {
+        return itemCodecType;
+    }
+
+    boolean isPlainAttribute(BucketItem bucketItem, String name) {
+        return KEY_BIZ_ID.equals(name) || KEY_ITEM_ORDINAL.equals(name) || KEY_TTL_TIMESTAMP.equals(name)
+                || (bucketItem.getIndexCollection() != null && bucketItem.getIndexCollection().getIndexMap().containsKey(name));
+    }
+
+    ItemCodec getItemCodec(ItemCodecType codecType) {
+        ItemCodec itemCodec = itemCodecMap.computeIfAbsent(codecType, key -> key.newCodec(dictionary));
+        if (itemCodec == null) {
+            throw new IllegalStateException("item codec not available " + codecType);
+        }
+        return itemCodec;
+    }
+}
@@ -0,0 +1,153 @@
+package group.bison.dynamodb.bucket.data;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+import group.bison.dynamodb.bucket.metadata.BucketWindowRegistry;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * 每个bucketId缓存最新window的全部item, 用于query的eager fetch
+ * 本实例的insert/update/delete写入成功后同步修改缓存, 其他进程的写入依赖较短的过期时间
+ * 缓存的window和item不会被修改, 写入时整体替换
+ */
+public class BucketLatestWindowCache {
+
+    private LocalCache<String, LatestWindow> latestWindowCache;
+
+    // 每次写入递增, 拉取期间有写入时不写入缓存, 避免覆盖已同步的修改
+    private AtomicLong writeSeq = new AtomicLong();
+
+    private AtomicLong hitCount = new AtomicLong();
+
+    private AtomicLong missCount = new AtomicLong();
+
+    public BucketLatestWindowCache(long maxSize, long expireMillis) {
+        this.latestWindowCache = new LocalCache<>(maxSize, expireMillis);
+    }
+
+    /**
+     * 缓存的不是这个window时返回null
+     */
+    public <W> Collection<BucketItem> get(String bucketId, W bucketWindow) {
+        LatestWindow latestWindow = latestWindowCache.get(bucketId);
+        if (latestWindow == null || BucketWindowRegistry.compareBucketWindow(latestWindow.bucketWindow, bucketWindow) != 0) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return latestWindow.bucketItemMap.values();
+    }
+
+    /**
+     * 拉取前获取, put时传入
+     */
+    public long getWriteSeq() {
+        return writeSeq.get();
+    }
+
+    /**
+     * 只会替换为相同或更新的window
+     */
+    public <W> void put(String bucketId, W bucketWindow, Map<String, BucketItem> bucketItemMap, long readWriteSeq) {
+        LatestWindow latestWindow = new LatestWindow(bucketWindow, Collections.unmodifiableMap(new HashMap<>(bucketItemMap)));
+        latestWindowCache.merge(bucketId, latestWindow, (currentLatestWindow, newLatestWindow) -> BucketWindowRegistry.compareBucketWindow(newLatestWindow.bucketWindow, currentLatestWindow.bucketWindow) >= 0 ? newLatestWindow : currentLatestWindow);
+        // put之后再检查, 保证与写入交错时不会留下旧值
+        if (writeSeq.get() != readWriteSeq) {
+            latestWindowCache.computeIfPresent(bucketId, (key, currentLatestWindow) -> currentLatestWindow == latestWindow ? null : currentLatestWindow);
+        }
+    }
+
+    public void onInsert(List<BucketItem> bucketItemList) {
+        writeSeq.incrementAndGet();
+        bucketItemList.forEach(bucketItem -> modify(bucketItem, bucketItemMap -> {
+            bucketItemMap.put(bucketItem.getItemId(), copyBucketItem(bucketItem, bucketItem.getItemAttributeValueMap()));
+            return true;
+        }));
+    }
+
+    public void onUpdate(BucketItem bucketItem) {
+        writeSeq.incrementAndGet();
+        modify(bucketItem, bucketItemMap -> {
+            BucketItem cachedBucketItem = bucketItemMap.get(bucketItem.getItemId());
+            if (cachedBucketItem == null) {
+                return false;
+            }
+
+            Map<String, AttributeValue> attributeValueMap = new HashMap<>(cachedBucketItem.getItemAttributeValueMap());
+            attributeValueMap.putAll(bucketItem.getItemAttributeValueMap());
+            bucketItemMap.put(bucketItem.getItemId(), copyBucketItem(cachedBucketItem, attributeValueMap));
+            return true;
+        });
+    }
+
+    public void onDelete(BucketItem bucketItem) {
+        writeSeq.incrementAndGet();
+        modify(bucketItem, bucketItemMap -> {
+            bucketItemMap.remove(bucketItem.getItemId());
+            return true;
+        });
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public double getHitRate() {
+        long requestCount = hitCount.get() + missCount.get();
+        return requestCount == 0 ? 1.0 : (double) hitCount.get() / requestCount;
+    }
+
+    public long size() {
+        return latestWindowCache.size();
+    }
+
+    /**
+     * 写入更新的window时删除缓存, 写入缓存的window时复制后修改, modifier返回false时删除缓存
+     * 修改不会延长过期时间, 其他进程的写入最多在过期后可见
+     */
+    void modify(BucketItem bucketItem, Predicate<Map<String, BucketItem>> windowModifier) {
+        Object bucketWindow = bucketItem.getBucketWindow();
+        latestWindowCache.computeIfPresent(bucketItem.getBucketId(), (bucketId, currentLatestWindow) -> {
+            int compare = BucketWindowRegistry.compareBucketWindow(bucketWindow, currentLatestWindow.bucketWindow);
+            if (compare < 0) {
+                return currentLatestWindow;
+            }
+            if (compare > 0) {
+                return null;
+            }
+
+            Map<String, BucketItem> bucketItemMap = new HashMap<>(currentLatestWindow.bucketItemMap);
+            return windowModifier.test(bucketItemMap) ? new LatestWindow(bucketWindow, Collections.unmodifiableMap(bucketItemMap)) : null;
+        });
+    }
+
+    BucketItem copyBucketItem(BucketItem bucketItem, Map<String, AttributeValue> attributeValueMap) {
+        Object bucketWindow = bucketItem.getBucketWindow();
+        AttributeValue bucketWindowAttributeValue = bucketWindow instanceof String ? new AttributeValue().withS((String) bucketWindow) : new AttributeValue().withN(String.valueOf(bucketWindow));
+        return BucketDataQueryFetcher.newBucketItem(bucketItem.getBucketId(), bucketWindowAttributeValue, bucketItem.getItemId(), new HashMap<>(attributeValueMap));
+    }
+
+    static class LatestWindow {
+        final Object bucketWindow;
+
+        final Map<String, BucketItem> bucketItemMap;
+
+        LatestWindow(Object bucketWindow, Map<String, BucketItem> bucketItemMap) {
+            this.bucketWindow = bucketWindow;
+            this.bucketItemMap = bucketItemMap;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package group.bison.dynamodb.bucket.data;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import org.apache.commons.collections.MapUtils;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 按需分页遍历bucket window的Query结果, 当前页用完后才根据LastEvaluatedKey拉取下一页
+ */
+public class BucketWindowIterator implements Iterator<Map<String, AttributeValue>> {
+
+    private AmazonDynamoDB dynamoDB;
+
+    private QueryRequest queryRequest;
+
+    private Iterator<Map<String, AttributeValue>> pageIterator = Collections.emptyIterator();
+
+    private Map<String, AttributeValue> lastEvaluatedKey;
+
+    private boolean started;
+
+    private int pageCount;
+
+    public BucketWindowIterator(AmazonDynamoDB dynamoDB, QueryRequest queryRequest, int pageSize) {
+        this.dynamoDB = dynamoDB;
+        this.queryRequest = queryRequest;
+        if (pageSize > 0) {
+            queryRequest.setLimit(pageSize);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        // 空页也可能带有LastEvaluatedKey, 需要继续翻页
+        while (!pageIterator.hasNext() && (!started || MapUtils.isNotEmpty(lastEvaluatedKey))) {
+            queryRequest.setExclusiveStartKey(lastEvaluatedKey);
+            QueryResult queryResult = dynamoDB.query(queryRequest);
+            started = true;
+            pageCount++;
+            lastEvaluatedKey = queryResult.getLastEvaluatedKey();
+            pageIterator = queryResult.getItems() != null ? queryResult.getItems().iterator() : Collections.emptyIterator();
+        }
+        return pageIterator.hasNext();
+    }
+
+    @Override
+    public Map<String, AttributeValue> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pageIterator.next();
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+}
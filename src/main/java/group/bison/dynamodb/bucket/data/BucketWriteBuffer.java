@@ -0,0 +1,308 @@
+package group.bison.dynamodb.bucket.data;
+
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+import group.bison.dynamodb.bucket.metadata.IndexCollection;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * BucketDataMapper前的写缓冲, 同一个item在flushMillis内的add/update合并后再写入
+ * insert之后的update直接合并进insert, 每个bucket的insert通过insertAll写入, 没有insert的update合并成一次update
+ * 缓冲满时在调用线程先flush再接受写入, flush失败时这次写入不进缓冲直接抛出, 抛出异常表示没有写入
+ * 缓冲的item数量(包括正在flush的)不超过maxItems, 超过maxItems的一批insert在flush之后直接写入
+ * 每个bucket单独flush, 失败的bucket中未写入的item放回缓冲等下次重试, 不影响其他bucket
+ * 后台flush的失败记录下来, 下次调用flush()时抛出, 调用flush()本身失败时直接抛出
+ */
+@Slf4j
+public class BucketWriteBuffer {
+
+    private BucketDataMapper bucketDataMapper;
+
+    private int maxItems;
+
+    // bucketKey -> itemId -> 待写入的item
+    private Map<String, Map<String, PendingWrite>> pendingWriteMap = new LinkedHashMap<>();
+
+    // 缓冲中和正在flush的item数量, 写入成功后才减少
+    private int pendingItemCount;
+
+    private final Object flushLock = new Object();
+
+    // 后台flush最近一次失败, 由下次flush()抛出
+    private final AtomicReference<RuntimeException> backgroundFlushException = new AtomicReference<>();
+
+    private ScheduledExecutorService flushExecutorService;
+
+    public BucketWriteBuffer(String bucketTableName, BucketDataMapper bucketDataMapper, BucketConfig bucketConfig) {
+        this.bucketDataMapper = bucketDataMapper;
+        this.maxItems = Math.max(1, bucketConfig.getWriteBufferMaxItems());
+
+        long flushMillis = Math.max(1, bucketConfig.getWriteBufferFlushMillis());
+        this.flushExecutorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bucket-write-buffer-" + bucketTableName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushExecutorService.scheduleWithFixedDelay(() -> {
+            try {
+                RuntimeException flushException = flushAll();
+                if (flushException != null) {
+                    backgroundFlushException.set(flushException);
+                    log.error("flush bucket write buffer failed, pending items retry on next flush, pendingItemCount:{}", getPendingItemCount(), flushException);
+                }
+            } catch (Exception e) {
+                log.error("flush bucket write buffer failed", e);
+            }
+        }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void insertAll(List<BucketItem> bucketItemList, boolean slotLeased) {
+        if (bucketItemList.size() > maxItems) {
+            // flush之后直接写入, 保证同一个item的写入顺序
+            synchronized (flushLock) {
+                flush();
+                bucketItemList.stream().collect(Collectors.groupingBy(this::getBucketKey, LinkedHashMap::new, Collectors.toList()))
+                        .values().forEach(bucketBucketItemList -> bucketDataMapper.insertAll(bucketBucketItemList, slotLeased));
+            }
+            return;
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (pendingItemCount + getNewItemCount(bucketItemList) <= maxItems) {
+                    bucketItemList.forEach(bucketItem -> {
+                        Map<String, PendingWrite> bucketPendingWriteMap = pendingWriteMap.computeIfAbsent(getBucketKey(bucketItem), key -> new LinkedHashMap<>());
+                        if (bucketPendingWriteMap.put(bucketItem.getItemId(), new PendingWrite(bucketItem, true, slotLeased)) == null) {
+                            pendingItemCount++;
+                        }
+                    });
+                    return;
+                }
+            }
+
+            flush();
+        }
+    }
+
+    public void update(BucketItem bucketItem) {
+        while (true) {
+            synchronized (this) {
+                Map<String, PendingWrite> bucketPendingWriteMap = pendingWriteMap.get(getBucketKey(bucketItem));
+                PendingWrite pendingWrite = bucketPendingWriteMap == null ? null : bucketPendingWriteMap.get(bucketItem.getItemId());
+                if (pendingWrite != null) {
+                    merge(pendingWrite.bucketItem, bucketItem);
+                    return;
+                }
+                if (pendingItemCount < maxItems) {
+                    pendingWriteMap.computeIfAbsent(getBucketKey(bucketItem), key -> new LinkedHashMap<>()).put(bucketItem.getItemId(), new PendingWrite(bucketItem, false, false));
+                    pendingItemCount++;
+                    return;
+                }
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * 不在缓冲中的item数量, 已缓冲的item直接覆盖不占用数量
+     */
+    int getNewItemCount(List<BucketItem> bucketItemList) {
+        return (int) bucketItemList.stream().filter(bucketItem -> {
+            Map<String, PendingWrite> bucketPendingWriteMap = pendingWriteMap.get(getBucketKey(bucketItem));
+            return bucketPendingWriteMap == null || !bucketPendingWriteMap.containsKey(bucketItem.getItemId());
+        }).map(BucketItem::getItemId).distinct().count();
+    }
+
+    /**
+     * 写入所有缓冲的item, flush串行执行保证同一个item的写入顺序
+     * 有bucket写入失败时抛出第一个异常, 之前后台flush失败过时也抛出, 未写入的item仍在缓冲中
+     */
+    public void flush() {
+        RuntimeException flushException = flushAll();
+        RuntimeException lastBackgroundFlushException = backgroundFlushException.getAndSet(null);
+        if (flushException == null) {
+            flushException = lastBackgroundFlushException;
+        } else if (lastBackgroundFlushException != null && lastBackgroundFlushException != flushException) {
+            flushException.addSuppressed(lastBackgroundFlushException);
+        }
+        if (flushException != null) {
+            throw flushException;
+        }
+    }
+
+    /**
+     * 只写入一个bucket缓冲的item, 用于delete/queryOne前保证读到最新数据
+     */
+    public <W> void flush(String bucketId, W bucketWindow) {
+        String bucketKey = getBucketKey(bucketId, bucketWindow);
+        RuntimeException flushException = flushBuckets(key -> key.equals(bucketKey));
+        if (flushException != null) {
+            throw flushException;
+        }
+    }
+
+    /**
+     * 写入这些bucketId所有window缓冲的item, 用于query前保证读到自己的写入
+     */
+    public void flush(Collection<String> bucketIds) {
+        Set<String> bucketIdSet = new HashSet<>(bucketIds);
+        RuntimeException flushException = flushBuckets(bucketKey -> bucketIdSet.contains(bucketKey.substring(0, bucketKey.lastIndexOf('|'))));
+        if (flushException != null) {
+            throw flushException;
+        }
+    }
+
+    RuntimeException flushAll() {
+        return flushBuckets(bucketKey -> true);
+    }
+
+    /**
+     * 取出匹配的bucket逐个写入, 返回第一个异常
+     */
+    RuntimeException flushBuckets(Predicate<String> bucketKeyPredicate) {
+        synchronized (flushLock) {
+            Map<String, Map<String, PendingWrite>> flushPendingWriteMap = new LinkedHashMap<>();
+            synchronized (this) {
+                Iterator<Map.Entry<String, Map<String, PendingWrite>>> iterator = pendingWriteMap.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<String, Map<String, PendingWrite>> bucketPendingWriteEntry = iterator.next();
+                    if (bucketKeyPredicate.test(bucketPendingWriteEntry.getKey())) {
+                        flushPendingWriteMap.put(bucketPendingWriteEntry.getKey(), bucketPendingWriteEntry.getValue());
+                        iterator.remove();
+                    }
+                }
+            }
+
+            RuntimeException flushException = null;
+            for (Map.Entry<String, Map<String, PendingWrite>> bucketPendingWriteEntry : flushPendingWriteMap.entrySet()) {
+                int flushItemCount = bucketPendingWriteEntry.getValue().size();
+                try {
+                    doFlush(bucketPendingWriteEntry.getValue());
+                    release(flushItemCount);
+                } catch (RuntimeException e) {
+                    release(flushItemCount - bucketPendingWriteEntry.getValue().size());
+                    requeue(bucketPendingWriteEntry.getKey(), bucketPendingWriteEntry.getValue());
+                    if (flushException == null) {
+                        flushException = e;
+                    } else {
+                        flushException.addSuppressed(e);
+                    }
+                }
+            }
+            return flushException;
+        }
+    }
+
+    synchronized void release(int writtenItemCount) {
+        pendingItemCount -= writtenItemCount;
+    }
+
+    /**
+     * 未写入的item放回缓冲, flush期间又有新写入时合并到旧的写入之后, 保持写入顺序
+     * 未写入的item一直计在pendingItemCount中, 与新写入合并的item只计一次
+     */
+    synchronized void requeue(String bucketKey, Map<String, PendingWrite> failedPendingWriteMap) {
+        if (failedPendingWriteMap.isEmpty()) {
+            return;
+        }
+
+        Map<String, PendingWrite> newPendingWriteMap = pendingWriteMap.remove(bucketKey);
+        Map<String, PendingWrite> bucketPendingWriteMap = new LinkedHashMap<>(failedPendingWriteMap);
+        if (newPendingWriteMap != null) {
+            newPendingWriteMap.forEach((itemId, newPendingWrite) -> {
+                PendingWrite failedPendingWrite = bucketPendingWriteMap.get(itemId);
+                if (failedPendingWrite != null) {
+                    pendingItemCount--;
+                }
+                if (failedPendingWrite == null || newPendingWrite.insert) {
+                    bucketPendingWriteMap.put(itemId, newPendingWrite);
+                } else {
+                    merge(failedPendingWrite.bucketItem, newPendingWrite.bucketItem);
+                }
+            });
+        }
+        pendingWriteMap.put(bucketKey, bucketPendingWriteMap);
+    }
+
+    /**
+     * 停止后台flush并写入剩余的item, 写入失败时抛出, 未写入的item仍在缓冲中, 可以再调用flush()重试
+     */
+    public void close() {
+        flushExecutorService.shutdown();
+        flush();
+    }
+
+    public synchronized int getPendingItemCount() {
+        return pendingItemCount;
+    }
+
+    /**
+     * 写入成功的item从bucketPendingWriteMap中移除, 失败时剩下的就是需要重试的
+     */
+    void doFlush(Map<String, PendingWrite> bucketPendingWriteMap) {
+        // 租用过slot和没有租用的insert分开写入, 保证item_count正确
+        Map<Boolean, List<BucketItem>> insertBucketItemMap = bucketPendingWriteMap.values().stream().filter(pendingWrite -> pendingWrite.insert)
+                .collect(Collectors.groupingBy(pendingWrite -> pendingWrite.slotLeased, LinkedHashMap::new, Collectors.mapping(pendingWrite -> pendingWrite.bucketItem, Collectors.toList())));
+        insertBucketItemMap.forEach((slotLeased, insertBucketItemList) -> {
+            bucketDataMapper.insertAll(insertBucketItemList, slotLeased);
+            insertBucketItemList.forEach(bucketItem -> bucketPendingWriteMap.remove(bucketItem.getItemId()));
+        });
+
+        List<PendingWrite> updatePendingWriteList = bucketPendingWriteMap.values().stream().filter(pendingWrite -> !pendingWrite.insert).collect(Collectors.toList());
+        for (PendingWrite pendingWrite : updatePendingWriteList) {
+            bucketDataMapper.update(pendingWrite.bucketItem);
+            bucketPendingWriteMap.remove(pendingWrite.bucketItem.getItemId());
+        }
+    }
+
+    /**
+     * 后面的update覆盖之前的属性, 更新过的索引字段整体替换
+     */
+    void merge(BucketItem pendingBucketItem, BucketItem bucketItem) {
+        pendingBucketItem.getItemAttributeValueMap().putAll(bucketItem.getItemAttributeValueMap());
+
+        if (bucketItem.getIndexCollection() != null) {
+            if (pendingBucketItem.getIndexCollection() == null) {
+                pendingBucketItem.setIndexCollection(new IndexCollection());
+            }
+            pendingBucketItem.getIndexCollection().getIndexMap().putAll(bucketItem.getIndexCollection().getIndexMap());
+        }
+    }
+
+    String getBucketKey(BucketItem bucketItem) {
+        return getBucketKey(bucketItem.getBucketId(), bucketItem.getBucketWindow());
+    }
+
+    String getBucketKey(String bucketId, Object bucketWindow) {
+        return String.join("|", bucketId, String.valueOf(bucketWindow));
+    }
+
+    static class PendingWrite {
+        BucketItem bucketItem;
+
+        boolean insert;
+
+        boolean slotLeased;
+
+        PendingWrite(BucketItem bucketItem, boolean insert, boolean slotLeased) {
+            this.bucketItem = bucketItem;
+            this.insert = insert;
+            this.slotLeased = slotLeased;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package group.bison.dynamodb.bucket.data;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 拼接UpdateItem的SET/ADD/DELETE/REMOVE子句及对应的name/value占位符
+ */
+public class UpdateExpression {
+
+    private StringBuilder setBuilder = new StringBuilder();
+
+    private StringBuilder addBuilder = new StringBuilder();
+
+    private StringBuilder deleteBuilder = new StringBuilder();
+
+    private StringBuilder removeBuilder = new StringBuilder();
+
+    private Map<String, String> attributeNameMap = new HashMap<>();
+
+    private Map<String, AttributeValue> attributeValueMap = new HashMap<>();
+
+    public UpdateExpression set(String clause) {
+        append(setBuilder, clause);
+        return this;
+    }
+
+    public UpdateExpression add(String clause) {
+        append(addBuilder, clause);
+        return this;
+    }
+
+    public UpdateExpression delete(String clause) {
+        append(deleteBuilder, clause);
+        return this;
+    }
+
+    public UpdateExpression remove(String clause) {
+        append(removeBuilder, clause);
+        return this;
+    }
+
+    public UpdateExpression name(String nameKey, String name) {
+        attributeNameMap.put(nameKey, name);
+        return this;
+    }
+
+    public UpdateExpression value(String valueKey, AttributeValue attributeValue) {
+        attributeValueMap.put(valueKey, attributeValue);
+        return this;
+    }
+
+    public UpdateExpression merge(UpdateExpression updateExpression) {
+        append(setBuilder, updateExpression.setBuilder);
+        append(addBuilder, updateExpression.addBuilder);
+        append(deleteBuilder, updateExpression.deleteBuilder);
+        append(removeBuilder, updateExpression.removeBuilder);
+        attributeNameMap.putAll(updateExpression.attributeNameMap);
+        attributeValueMap.putAll(updateExpression.attributeValueMap);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return setBuilder.length() == 0 && addBuilder.length() == 0 && deleteBuilder.length() == 0 && removeBuilder.length() == 0;
+    }
+
+    public int length() {
+        return setBuilder.length() + addBuilder.length() + deleteBuilder.length() + removeBuilder.length() + 28;
+    }
+
+    public String build() {
+        StringBuilder updateExpressionBuilder = new StringBuilder();
+        appendSection(updateExpressionBuilder, "SET", setBuilder);
+        appendSection(updateExpressionBuilder, "ADD", addBuilder);
+        appendSection(updateExpressionBuilder, "DELETE", deleteBuilder);
+        appendSection(updateExpressionBuilder, "REMOVE", removeBuilder);
+        return updateExpressionBuilder.toString();
+    }
+
+    public void applyTo(UpdateItemRequest updateItemRequest) {
+        updateItemRequest.setUpdateExpression(build());
+        if (!attributeNameMap.isEmpty()) {
+            updateItemRequest.setExpressionAttributeNames(attributeNameMap);
+        }
+        if (!attributeValueMap.isEmpty()) {
+            updateItemRequest.setExpressionAttributeValues(attributeValueMap);
+        }
+    }
+
+    public Map<String, String> getAttributeNameMap() {
+        return attributeNameMap;
+    }
+
+    public Map<String, AttributeValue> getAttributeValueMap() {
+        return attributeValueMap;
+    }
+
+    void append(StringBuilder builder, CharSequence clause) {
+        if (clause.length() == 0) {
+            return;
+        }
+        if (builder.length() > 0) {
+            builder.append(",");
+        }
+        builder.append(clause);
+    }
+
+    void appendSection(StringBuilder updateExpressionBuilder, String action, StringBuilder builder) {
+        if (builder.length() == 0) {
+            return;
+        }
+        if (updateExpressionBuilder.length() > 0) {
+            updateExpressionBuilder.append(" ");
+        }
+        updateExpressionBuilder.append(action).append(" ").append(builder);
+    }
+}
@@ -0,0 +1,92 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import group.bison.dynamodb.bucket.common.cache.BloomFilter;
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 记录本进程确认存在的bucket window, 每个bucket表一个实例
+ * 最近的window保存在LocalCache中, 可以直接判定存在; 更多的window记录在布隆过滤器中, 过滤器没有的window本进程从未见过, 可以直接条件创建
+ * bucket会按ttl_timestamp过期删除, LocalCache中的记录在不超过bucket ttl的时间后过期, 之后重新确认;
+ * 布隆过滤器只用于判断本进程是否见过, 误判存在时会多一次GetItem或条件创建, 不影响正确性
+ */
+public class BucketExistenceIndex {
+
+    private static final double BLOOM_FILTER_FPP = 0.01;
+
+    private LocalCache<String, Boolean> existBucketCache;
+
+    private BloomFilter existBucketFilter;
+
+    private long expectedInsertions;
+
+    // 写入过滤器的数量, 超过预计数量的2倍时清空, 避免误判率过高
+    private AtomicLong insertionCount = new AtomicLong();
+
+    private AtomicLong absentCount = new AtomicLong();
+
+    public BucketExistenceIndex(long cacheSize, long cacheExpireMillis, long expectedInsertions) {
+        this.existBucketCache = new LocalCache<>(cacheSize, Math.max(1, cacheExpireMillis));
+        this.existBucketFilter = new BloomFilter(expectedInsertions, BLOOM_FILTER_FPP);
+        this.expectedInsertions = expectedInsertions;
+    }
+
+    public <W> void markExist(String bucketId, W bucketWindow) {
+        String bucketKey = getBucketKey(bucketId, bucketWindow);
+        // 不通过get判断, 避免影响命中率统计
+        AtomicBoolean cached = new AtomicBoolean();
+        existBucketCache.merge(bucketKey, Boolean.TRUE, (currentValue, newValue) -> {
+            cached.set(true);
+            return currentValue;
+        });
+        if (cached.get()) {
+            return;
+        }
+
+        if (insertionCount.incrementAndGet() > expectedInsertions * 2) {
+            existBucketFilter.clear();
+            insertionCount.set(1);
+        }
+        existBucketFilter.put(bucketKey);
+    }
+
+    /**
+     * 返回true时bucket在最近cacheExpireMillis内确认过存在
+     */
+    public <W> boolean isKnownExist(String bucketId, W bucketWindow) {
+        return existBucketCache.get(getBucketKey(bucketId, bucketWindow)) != null;
+    }
+
+    /**
+     * 返回false时本进程从未确认过这个bucket存在, 但其他进程可能已经创建
+     */
+    public <W> boolean mightExist(String bucketId, W bucketWindow) {
+        boolean mightExist = existBucketFilter.mightContain(getBucketKey(bucketId, bucketWindow));
+        if (!mightExist) {
+            absentCount.incrementAndGet();
+        }
+        return mightExist;
+    }
+
+    public long getHitCount() {
+        return existBucketCache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return existBucketCache.getMissCount();
+    }
+
+    public long getAbsentCount() {
+        return absentCount.get();
+    }
+
+    public long size() {
+        return existBucketCache.size();
+    }
+
+    String getBucketKey(String bucketId, Object bucketWindow) {
+        return String.join("|", bucketId, String.valueOf(bucketWindow));
+    }
+}
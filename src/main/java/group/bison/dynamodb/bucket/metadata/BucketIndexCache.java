@@ -0,0 +1,76 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录已经初始化过的倒排索引 (bucketId, bucketWindow, field, value)
+ * 每个bucketId只保留最新window的记录, (field, value)压缩成64位hash保存, 比早于当前window的记录会被直接丢弃
+ */
+public class BucketIndexCache {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private LocalCache<String, WindowIndexSet> windowIndexSetCache;
+
+    public BucketIndexCache(long maxSize, long expireMillis) {
+        this.windowIndexSetCache = new LocalCache<>(maxSize, expireMillis);
+    }
+
+    public <W> boolean isInitialized(String bucketId, W bucketWindow, String field, String value) {
+        WindowIndexSet windowIndexSet = windowIndexSetCache.get(bucketId);
+        if (windowIndexSet == null || BucketWindowRegistry.compareBucketWindow(windowIndexSet.bucketWindow, bucketWindow) != 0) {
+            return false;
+        }
+        return windowIndexSet.indexHashSet.contains(hash(field, value));
+    }
+
+    public <W> void markInitialized(String bucketId, W bucketWindow, String field, String value) {
+        WindowIndexSet windowIndexSet = windowIndexSetCache.merge(bucketId, new WindowIndexSet(bucketWindow), (currentWindowIndexSet, newWindowIndexSet) -> BucketWindowRegistry.compareBucketWindow(newWindowIndexSet.bucketWindow, currentWindowIndexSet.bucketWindow) > 0 ? newWindowIndexSet : currentWindowIndexSet);
+        if (BucketWindowRegistry.compareBucketWindow(windowIndexSet.bucketWindow, bucketWindow) == 0) {
+            windowIndexSet.indexHashSet.add(hash(field, value));
+        }
+    }
+
+    public <W> void invalidate(String bucketId, W bucketWindow) {
+        windowIndexSetCache.merge(bucketId, new WindowIndexSet(bucketWindow), (currentWindowIndexSet, newWindowIndexSet) -> BucketWindowRegistry.compareBucketWindow(newWindowIndexSet.bucketWindow, currentWindowIndexSet.bucketWindow) == 0 ? null : currentWindowIndexSet);
+    }
+
+    public long getHitCount() {
+        return windowIndexSetCache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return windowIndexSetCache.getMissCount();
+    }
+
+    public long size() {
+        return windowIndexSetCache.size();
+    }
+
+    long hash(String field, String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < field.length(); i++) {
+            hash = (hash ^ field.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ 0xffff) * FNV_PRIME;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static class WindowIndexSet {
+        Object bucketWindow;
+
+        Set<Long> indexHashSet = ConcurrentHashMap.newKeySet();
+
+        WindowIndexSet(Object bucketWindow) {
+            this.bucketWindow = bucketWindow;
+        }
+    }
+}
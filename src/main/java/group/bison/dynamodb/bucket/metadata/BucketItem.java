@@ -16,6 +16,9 @@ public abstract class BucketItem {
 
     private IndexCollection indexCollection;
 
+    // BITMAP索引下item在bucket内的序号
+    private Integer itemOrdinal;
+
     public abstract String getBucketId();
 
     public abstract <W> W getBucketWindow();
@@ -3,6 +3,7 @@ package group.bison.dynamodb.bucket.metadata;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
@@ -12,34 +13,42 @@ import com.amazonaws.services.dynamodbv2.model.ListTablesResult;
 import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
 import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import group.bison.dynamodb.bucket.common.IndexLayout;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.MapUtils;
 import org.apache.http.impl.io.EmptyInputStream;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_S3_STORAGE_URL;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_INDEX_ORDINAL_MAP;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_COUNT;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_MAP;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_SEQ;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_SIZE_BYTES;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
-import static group.bison.dynamodb.bucket.common.Constants.MAX_BUCKET_ITEM_COUNT;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_WINDOW_SPAN;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_BUCKET_COLUMN_COUNT;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_BUCKET_SIZE_BYTES;
+import static group.bison.dynamodb.bucket.common.Constants.MAX_INDEX_BITMAP_SIZE;
 import static group.bison.dynamodb.bucket.common.Constants.NS_EMPTY_VALUE;
 import static group.bison.dynamodb.bucket.common.Constants.SS_EMPTY_STR;
 
@@ -53,11 +62,28 @@ public class BucketMetaDataMapper {
 
     private Optional<AmazonS3> amazonS3Optional;
 
-    private static Set<String> bucketIndexSet = new HashSet<>();
+    private BucketIndexCache bucketIndexCache;
 
-    private static Map<String, Object> currentBucketWindowMap = new HashMap<>();
+    private BucketWindowRegistry bucketWindowRegistry;
+
+    private BucketExistenceIndex bucketExistenceIndex;
+
+    private BucketWindowCalculator bucketWindowCalculator;
+
+    private int bucketSlotCount;
+
+    private int itemMapColumnCount;
+
+    private int bucketSizeLimitBytes;
+
+    private IndexLayout indexLayout;
 
     public BucketMetaDataMapper(String bucketTableName, AmazonDynamoDB dynamoDB, AmazonS3 amazonS3) {
+        this(bucketTableName, dynamoDB, amazonS3, BucketConfig.builder().build());
+    }
+
+    public BucketMetaDataMapper(String bucketTableName, AmazonDynamoDB dynamoDB, AmazonS3 amazonS3, BucketConfig bucketConfig) {
+        bucketConfig.validate();
         this.bucketTableName = bucketTableName;
         this.dynamoDB = dynamoDB;
         if (amazonS3 == null) {
@@ -65,6 +91,16 @@ public class BucketMetaDataMapper {
         } else {
             this.amazonS3Optional = Optional.of(amazonS3);
         }
+        this.bucketWindowRegistry = new BucketWindowRegistry(bucketConfig.getBucketWindowRegistrySize(), bucketConfig.getBucketWindowRegistryExpireMillis());
+        this.bucketIndexCache = new BucketIndexCache(bucketConfig.getBucketIndexCacheSize(), bucketConfig.getBucketIndexCacheExpireMillis());
+        this.indexLayout = bucketConfig.getIndexLayout();
+        this.bucketWindowCalculator = new BucketWindowCalculator(bucketConfig);
+        this.bucketSlotCount = Math.max(1, bucketConfig.getBucketSlotCount());
+        this.itemMapColumnCount = Integer.highestOneBit(Math.max(1, Math.min(bucketConfig.getBucketColumnCount(), MAX_BUCKET_COLUMN_COUNT)));
+        this.bucketSizeLimitBytes = Math.max(1, Math.min(bucketConfig.getBucketSizeLimitBytes(), MAX_BUCKET_SIZE_BYTES));
+        if (bucketConfig.isBucketExistenceIndexEnabled()) {
+            this.bucketExistenceIndex = new BucketExistenceIndex(bucketConfig.getBucketExistenceCacheSize(), bucketConfig.getBucketExistenceCacheExpireMillis(), bucketConfig.getBucketExistenceFilterSize());
+        }
     }
 
     public void createBucketTable(List<AttributeDefinition> attributeDefinitionList) {
@@ -106,6 +142,10 @@ public class BucketMetaDataMapper {
     }
 
     public <W> boolean isBucketExist(String bucketId, W startBucketWindow) {
+        if (bucketExistenceIndex != null && bucketExistenceIndex.isKnownExist(bucketId, startBucketWindow)) {
+            return true;
+        }
+
         GetItemRequest getItemRequest = new GetItemRequest();
         getItemRequest.setTableName(bucketTableName);
         getItemRequest.setConsistentRead(false);
@@ -123,9 +163,30 @@ public class BucketMetaDataMapper {
             bucketExist = MapUtils.isNotEmpty(getItemResult.getItem());
         } catch (ResourceNotFoundException e) {
         }
+
+        if (bucketExist) {
+            markBucketExist(bucketId, startBucketWindow);
+        }
         return bucketExist;
     }
 
+    /**
+     * 返回false时本进程从未见过这个bucket, 可以不查询直接通过createBucket条件创建
+     */
+    public <W> boolean mightBucketExist(String bucketId, W startBucketWindow) {
+        return bucketExistenceIndex == null || bucketExistenceIndex.mightExist(bucketId, startBucketWindow);
+    }
+
+    public <W> void markBucketExist(String bucketId, W startBucketWindow) {
+        if (bucketExistenceIndex != null) {
+            bucketExistenceIndex.markExist(bucketId, startBucketWindow);
+        }
+    }
+
+    public BucketExistenceIndex getBucketExistenceIndex() {
+        return bucketExistenceIndex;
+    }
+
     public <W> boolean isBucketFull(String bucketId, W startBucketWindow) {
         GetItemRequest getItemRequest = new GetItemRequest();
         getItemRequest.setTableName(bucketTableName);
@@ -136,17 +197,20 @@ public class BucketMetaDataMapper {
         bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(startBucketWindow)));
         getItemRequest.setKey(bucketKeyAttributeValueMap);
 
-        getItemRequest.setAttributesToGet(Collections.singletonList(KEY_ITEM_COUNT));
+        getItemRequest.setAttributesToGet(Arrays.asList(KEY_ITEM_COUNT, KEY_SIZE_BYTES));
 
         GetItemResult getItemResult = dynamoDB.getItem(getItemRequest);
-        if (getItemResult == null) {
+        if (getItemResult == null || getItemResult.getItem() == null) {
             return false;
         }
 
-        return (getItemResult == null || getItemResult.getItem() == null) ? false : Integer.valueOf(getItemResult.getItem().get(KEY_ITEM_COUNT).getN()) >= MAX_BUCKET_ITEM_COUNT;
+        // item数量和估算大小任一达到上限即视为已满
+        AttributeValue sizeBytesAttributeValue = getItemResult.getItem().get(KEY_SIZE_BYTES);
+        return Integer.valueOf(getItemResult.getItem().get(KEY_ITEM_COUNT).getN()) >= bucketSlotCount
+                || (sizeBytesAttributeValue != null && Long.valueOf(sizeBytesAttributeValue.getN()) >= bucketSizeLimitBytes);
     }
 
-    public <W> void createBucket(String bucketId, W startBucketWindow) {
+    public <W> boolean createBucket(String bucketId, W startBucketWindow) {
         PutItemRequest putItemRequest = new PutItemRequest();
         putItemRequest.setTableName(bucketTableName);
 
@@ -154,10 +218,19 @@ public class BucketMetaDataMapper {
         bucketAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketId));
         bucketAttributeValueMap.put(KEY_START_BUCKET_WINDOW, startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(startBucketWindow)));
         bucketAttributeValueMap.put(KEY_ITEM_COUNT, new AttributeValue().withN("0"));
-        IntStream.range(0, MAX_BUCKET_ITEM_COUNT).forEach(i -> bucketAttributeValueMap.put(String.join("", KEY_ITEM_MAP, String.valueOf(i)), new AttributeValue().withM(Collections.emptyMap())));
+        bucketAttributeValueMap.put(KEY_SIZE_BYTES, new AttributeValue().withN("0"));
+        IntStream.range(0, itemMapColumnCount).forEach(i -> bucketAttributeValueMap.put(String.join("", KEY_ITEM_MAP, String.valueOf(i)), new AttributeValue().withM(Collections.emptyMap())));
+        if (indexLayout == IndexLayout.BITMAP) {
+            bucketAttributeValueMap.put(KEY_ITEM_SEQ, new AttributeValue().withN("0"));
+            bucketAttributeValueMap.put(KEY_INDEX_ORDINAL_MAP, new AttributeValue().withM(Collections.emptyMap()));
+        }
+        // 自适应window记录跨度, 查询时用于跳过不相交的window
+        if (bucketWindowCalculator.isAdaptive()) {
+            bucketAttributeValueMap.put(KEY_WINDOW_SPAN, new AttributeValue().withN(String.valueOf(bucketWindowCalculator.getWindowSpan(bucketId))));
+        }
         putItemRequest.setItem(bucketAttributeValueMap);
 
-        currentBucketWindowMap.put(bucketId, startBucketWindow);
+        bucketWindowRegistry.register(bucketId, startBucketWindow);
 
         amazonS3Optional.ifPresent(amazonS3 -> {
             String bucketS3StorageKey = String.join("/", bucketTableName, String.valueOf(bucketId), startBucketWindow.toString(), String.join("", String.valueOf(System.currentTimeMillis()), ".json"));
@@ -165,40 +238,139 @@ public class BucketMetaDataMapper {
             bucketAttributeValueMap.put(KEY_BUCKET_S3_STORAGE_URL, new AttributeValue().withS(bucketS3StorageKey));
         });
 
-        dynamoDB.putItem(putItemRequest);
-        return;
+        // 避免并发创建时覆盖已写入的数据
+        putItemRequest.setConditionExpression(String.join("", "attribute_not_exists(", KEY_BUCKET_ID, ")"));
+        try {
+            dynamoDB.putItem(putItemRequest);
+        } catch (ConditionalCheckFailedException e) {
+            markBucketExist(bucketId, startBucketWindow);
+            return false;
+        }
+        markBucketExist(bucketId, startBucketWindow);
+        return true;
+    }
+
+    /**
+     * 通过一次条件ADD item_count原子地租用count个slot, 返回租到的slot区间[start, end)和bucket的剩余容量
+     * BITMAP索引下同时ADD item_seq, 返回的slot就是item的ordinal, ordinal用完时也视为bucket已满
+     * sizeBytes是这些slot要写入的item估算大小, 写入后会超过bucketSizeLimitBytes时租用失败, 超过上限的单个item只能写入空bucket
+     * bucket不存在或剩余slot不足count时返回null
+     */
+    public <W> BucketSlotLease leaseSlots(String bucketId, W startBucketWindow, int count, long sizeBytes) {
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+
+        Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
+        bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketId));
+        bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(startBucketWindow)));
+        updateItemRequest.setKey(bucketKeyAttributeValueMap);
+
+        Map<String, AttributeValue> attributeValueMap = new HashMap<>();
+        attributeValueMap.put(":count", new AttributeValue().withN(String.valueOf(count)));
+        attributeValueMap.put(":zero", new AttributeValue().withN("0"));
+        attributeValueMap.put(":limit", new AttributeValue().withN(String.valueOf(bucketSlotCount - count)));
+        // 写入后估算大小超过上限时租用失败, 由allocator拆分或滚动到新window, 与item数量先到先滚动
+        attributeValueMap.put(":sizeLimit", new AttributeValue().withN(String.valueOf(Math.max(0, bucketSizeLimitBytes - sizeBytes))));
+        String sizeCondition = String.join("", " AND (attribute_not_exists(", KEY_SIZE_BYTES, ") OR ", KEY_SIZE_BYTES, " <= :sizeLimit)");
+        // 不改变size_bytes, 只是让UPDATED_NEW带回当前值
+        String sizeBytesSet = String.join("", KEY_SIZE_BYTES, " = if_not_exists(", KEY_SIZE_BYTES, ", :zero)");
+
+        if (indexLayout == IndexLayout.BITMAP) {
+            // 删除会减少item_count, ordinal需要单独的只增序列
+            attributeValueMap.put(":seqLimit", new AttributeValue().withN(String.valueOf(MAX_INDEX_BITMAP_SIZE - count)));
+            attributeValueMap.put(":emptyMap", new AttributeValue().withM(Collections.emptyMap()));
+            updateItemRequest.setUpdateExpression(String.join("", "ADD ", KEY_ITEM_COUNT, " :count, ", KEY_ITEM_SEQ, " :count SET #ord = if_not_exists(#ord, :emptyMap), ", sizeBytesSet));
+            updateItemRequest.setConditionExpression(String.join("", "attribute_exists(", KEY_ITEM_COUNT, ") AND ", KEY_ITEM_COUNT, " <= :limit AND (attribute_not_exists(", KEY_ITEM_SEQ, ") OR ", KEY_ITEM_SEQ, " <= :seqLimit)", sizeCondition));
+            updateItemRequest.setExpressionAttributeNames(Collections.singletonMap("#ord", KEY_INDEX_ORDINAL_MAP));
+        } else {
+            updateItemRequest.setUpdateExpression(String.join("", "ADD ", KEY_ITEM_COUNT, " :count SET ", sizeBytesSet));
+            updateItemRequest.setConditionExpression(String.join("", "attribute_exists(", KEY_ITEM_COUNT, ") AND ", KEY_ITEM_COUNT, " <= :limit", sizeCondition));
+        }
+        updateItemRequest.setExpressionAttributeValues(attributeValueMap);
+        updateItemRequest.setReturnValues(ReturnValue.UPDATED_NEW);
+
+        try {
+            UpdateItemResult updateItemResult = dynamoDB.updateItem(updateItemRequest);
+            Map<String, AttributeValue> updatedAttributeValueMap = updateItemResult.getAttributes();
+            int itemCount = Integer.valueOf(updatedAttributeValueMap.get(KEY_ITEM_COUNT).getN());
+            int remainSlotCount = bucketSlotCount - itemCount;
+            int endSlot = itemCount;
+            if (indexLayout == IndexLayout.BITMAP) {
+                endSlot = Integer.valueOf(updatedAttributeValueMap.get(KEY_ITEM_SEQ).getN());
+                remainSlotCount = Math.min(remainSlotCount, MAX_INDEX_BITMAP_SIZE - endSlot);
+            }
+            long currentSizeBytes = Long.valueOf(updatedAttributeValueMap.get(KEY_SIZE_BYTES).getN());
+            bucketWindowRegistry.register(bucketId, startBucketWindow);
+            markBucketExist(bucketId, startBucketWindow);
+            return new BucketSlotLease(endSlot - count, endSlot, Math.max(0, remainSlotCount), currentSizeBytes);
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 归还租用后没有使用的slot, 减回item_count, 失败只会让bucket少写入几个item
+     * BITMAP的ordinal来自只增的item_seq, 归还不会造成ordinal重复
+     */
+    public <W> void releaseSlots(String bucketId, W startBucketWindow, int count) {
+        if (count <= 0) {
+            return;
+        }
+
+        UpdateItemRequest updateItemRequest = new UpdateItemRequest();
+        updateItemRequest.setTableName(bucketTableName);
+
+        Map<String, AttributeValue> bucketKeyAttributeValueMap = new HashMap<>();
+        bucketKeyAttributeValueMap.put(KEY_BUCKET_ID, new AttributeValue().withS(bucketId));
+        bucketKeyAttributeValueMap.put(KEY_START_BUCKET_WINDOW, startBucketWindow instanceof String ? new AttributeValue().withS((String) startBucketWindow) : new AttributeValue().withN(String.valueOf(startBucketWindow)));
+        updateItemRequest.setKey(bucketKeyAttributeValueMap);
+
+        updateItemRequest.setUpdateExpression(String.join("", "ADD ", KEY_ITEM_COUNT, " :count"));
+        updateItemRequest.setConditionExpression(String.join("", "attribute_exists(", KEY_ITEM_COUNT, ") AND ", KEY_ITEM_COUNT, " >= :release"));
+        Map<String, AttributeValue> attributeValueMap = new HashMap<>();
+        attributeValueMap.put(":count", new AttributeValue().withN(String.valueOf(-count)));
+        attributeValueMap.put(":release", new AttributeValue().withN(String.valueOf(count)));
+        updateItemRequest.setExpressionAttributeValues(attributeValueMap);
+
+        try {
+            dynamoDB.updateItem(updateItemRequest);
+        } catch (ConditionalCheckFailedException e) {
+            // bucket已过期删除
+        } catch (Exception e) {
+            log.warn("failed release slots {} {}", bucketId, startBucketWindow, e);
+        }
     }
 
     public <W> W getCurrentBucketWindow(String bucketId) {
-        return (W) currentBucketWindowMap.get(bucketId);
+        return bucketWindowRegistry.getCurrentBucketWindow(bucketId);
+    }
+
+    public BucketWindowCalculator getBucketWindowCalculator() {
+        return bucketWindowCalculator;
+    }
+
+    public BucketWindowRegistry getBucketWindowRegistry() {
+        return bucketWindowRegistry;
     }
 
     public <W> void initIndex(String bucketId, W startBucketWindow, IndexCollection indexCollection) {
-        if (indexCollection == null) {
+        // 平铺和bitmap索引由写入时ADD创建, 不需要初始化
+        if (indexCollection == null || indexLayout != IndexLayout.NESTED) {
             return;
         }
 
-        // 先过滤已存在的
-        Iterator<Map.Entry<String, IndexCollection.InvertedIndex>> indexEntryIterator = indexCollection.getIndexMap().entrySet().iterator();
-        while (indexEntryIterator.hasNext()) {
-            Map.Entry<String, IndexCollection.InvertedIndex> indexEntry = indexEntryIterator.next();
-            Iterator<Map.Entry<String, IndexCollection.IndexItemId>> indexValueEntryIterator = indexEntry.getValue().getInvertedIndexValueMap().entrySet().iterator();
-            while (indexValueEntryIterator.hasNext()) {
-                Map.Entry<String, IndexCollection.IndexItemId> indexValueEntry = indexValueEntryIterator.next();
-                String indexUniqKey = String.join("_", bucketId, String.valueOf(startBucketWindow), indexEntry.getKey(), indexValueEntry.getKey());
-                if (bucketIndexSet.contains(indexUniqKey)) {
-                    indexValueEntryIterator.remove();
-                } else {
-                    bucketIndexSet.add(indexUniqKey);
+        // 先过滤已存在的, 不修改传入的indexCollection
+        IndexCollection initIndexCollection = new IndexCollection();
+        indexCollection.getIndexMap().forEach((field, invertedIndex) -> {
+            invertedIndex.getInvertedIndexValueMap().forEach((value, indexItemId) -> {
+                if (isEmptyIndexValue(value) || bucketIndexCache.isInitialized(bucketId, startBucketWindow, field, value)) {
+                    return;
                 }
-            }
-
-            if (MapUtils.isEmpty(indexCollection.getIndexMap().get(indexEntry.getKey()).getInvertedIndexValueMap())) {
-                indexEntryIterator.remove();
-            }
-        }
+                initIndexCollection.getIndexMap().computeIfAbsent(field, key -> new IndexCollection.InvertedIndex()).getInvertedIndexValueMap().put(value, indexItemId);
+            });
+        });
 
-        if (MapUtils.isEmpty(indexCollection.getIndexMap())) {
+        if (MapUtils.isEmpty(initIndexCollection.getIndexMap())) {
             return;
         }
 
@@ -213,7 +385,7 @@ public class BucketMetaDataMapper {
         updateItemRequest.setKey(bucketKeyAttributeValueMap);
 
         Map<String, String> expressionNameMap = new HashMap<>();
-        String updateExpression = indexCollection.getIndexMap().keySet().stream().map(key -> {
+        String updateExpression = initIndexCollection.getIndexMap().keySet().stream().map(key -> {
             String keyName = String.join("", "#", key);
             expressionNameMap.put(keyName, key);
             return keyName;
@@ -225,7 +397,7 @@ public class BucketMetaDataMapper {
 
         Map<String, String> subAttributeNameMap = new HashMap<>();
         StringBuilder subUpdateExpressionBuilder = new StringBuilder("SET ");
-        indexCollection.getIndexMap().entrySet().forEach(indexEntry -> {
+        initIndexCollection.getIndexMap().entrySet().forEach(indexEntry -> {
             if (MapUtils.isEmpty(indexEntry.getValue().getInvertedIndexValueMap())) {
                 return;
             }
@@ -253,6 +425,13 @@ public class BucketMetaDataMapper {
         updateItemRequest.withExpressionAttributeNames(subAttributeNameMap);
         updateItemRequest.withExpressionAttributeValues(Collections.singletonMap(":emptyMap", new AttributeValue().withM(Collections.emptyMap())));
         dynamoDB.updateItem(updateItemRequest);
+
+        // 更新成功后才记录, 避免失败后后续写入找不到父节点
+        initIndexCollection.getIndexMap().forEach((field, invertedIndex) -> invertedIndex.getInvertedIndexValueMap().keySet().forEach(value -> bucketIndexCache.markInitialized(bucketId, startBucketWindow, field, value)));
+    }
+
+    public BucketIndexCache getBucketIndexCache() {
+        return bucketIndexCache;
     }
 
     boolean isEmptyIndexValue(String str) {
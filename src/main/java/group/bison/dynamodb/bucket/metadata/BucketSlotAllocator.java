@@ -0,0 +1,234 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 本地slot分配器
+ * 每次通过一次条件ADD item_count从bucket租用一段slot, 之后在本地分配, 租用的slot用完才会再访问dynamodb,
+ * bucket满了才会滚动到下一个bucketWindow
+ * 租约重置或被淘汰时归还没用完的slot, 避免item_count虚高
+ */
+@Slf4j
+public class BucketSlotAllocator {
+
+    private BucketMetaDataMapper bucketMetaDataMapper;
+
+    private int slotLeaseSize;
+
+    private int bucketSlotCount;
+
+    private int bucketSizeLimitBytes;
+
+    private LocalCache<String, SlotLease> slotLeaseCache;
+
+    // 淘汰回调在缓存的分段锁内, 先入队, 下次分配时再归还
+    private Queue<Pair<String, SlotLease>> evictedSlotLeaseQueue = new ConcurrentLinkedQueue<>();
+
+    public BucketSlotAllocator(BucketMetaDataMapper bucketMetaDataMapper, BucketConfig bucketConfig) {
+        this.bucketMetaDataMapper = bucketMetaDataMapper;
+        this.bucketSlotCount = Math.max(1, bucketConfig.getBucketSlotCount());
+        this.slotLeaseSize = Math.max(1, Math.min(bucketConfig.getSlotLeaseSize(), bucketSlotCount));
+        this.bucketSizeLimitBytes = bucketConfig.getBucketSizeLimitBytes();
+        this.slotLeaseCache = new LocalCache<>(bucketConfig.getBucketWindowRegistrySize(), bucketConfig.getBucketWindowRegistryExpireMillis());
+        this.slotLeaseCache.setEvictionListener((bucketId, slotLease) -> evictedSlotLeaseQueue.add(Pair.of(bucketId, slotLease)));
+    }
+
+    public BucketSlotRange allocate(String bucketId, Long bucketWindow) {
+        return allocate(bucketId, bucketWindow, new long[1]).get(0);
+    }
+
+    /**
+     * 为每个item分配一个slot, itemSizeBytes是item的估算大小, 从bucketWindow开始, 当前window满了依次往后滚动
+     * 租用数量按上次租用时得知的剩余slot数和剩余大小确定, 一般一次往返就能租到
+     */
+    public List<BucketSlotRange> allocate(String bucketId, Long bucketWindow, long[] itemSizeBytes) {
+        releaseEvictedSlotLeases();
+
+        while (true) {
+            SlotLease slotLease = slotLeaseCache.computeIfAbsent(bucketId, key -> new SlotLease());
+            synchronized (slotLease) {
+                // 已被淘汰归还的租约不能再用, 重新取一个
+                if (!slotLease.released) {
+                    return allocate(bucketId, bucketWindow, itemSizeBytes, slotLease);
+                }
+            }
+        }
+    }
+
+    List<BucketSlotRange> allocate(String bucketId, Long bucketWindow, long[] itemSizeBytes, SlotLease slotLease) {
+        if (slotLease.bucketWindow == null || bucketWindow < slotLease.originBucketWindow || bucketWindow > slotLease.bucketWindow) {
+            releaseUnusedSlots(bucketId, slotLease);
+            slotLease.reset(bucketWindow);
+        }
+
+        int count = itemSizeBytes.length;
+        List<BucketSlotRange> bucketSlotRangeList = new LinkedList<>();
+        int allocatedCount = 0;
+        boolean bucketCreated = false;
+        boolean singleLeaseTried = false;
+        while (allocatedCount < count) {
+            int remainCount = count - allocatedCount;
+            int availableCount = slotLease.endSlot - slotLease.nextSlot;
+            if (availableCount > 0) {
+                int allocateCount = slotLease.fitCount(itemSizeBytes, allocatedCount, Math.min(availableCount, remainCount), bucketSizeLimitBytes);
+                if (allocateCount > 0) {
+                    bucketSlotRangeList.add(new BucketSlotRange(slotLease.bucketWindow, slotLease.nextSlot, slotLease.nextSlot + allocateCount));
+                    slotLease.nextSlot += allocateCount;
+                    slotLease.addSizeBytes(sumSizeBytes(itemSizeBytes, allocatedCount, allocateCount));
+                    allocatedCount += allocateCount;
+                    continue;
+                }
+
+                // 剩余的slot放不下下一个item, 归还后滚动
+                rollover(bucketId, slotLease);
+                bucketCreated = false;
+                singleLeaseTried = false;
+                continue;
+            }
+
+            // 租用的slot已用完, 按已知剩余容量从当前window再租一段
+            int leaseCount = singleLeaseTried ? 1 : Math.min(Math.max(slotLeaseSize, remainCount), bucketSlotCount);
+            if (slotLease.remainSlotCount != null) {
+                leaseCount = Math.min(leaseCount, slotLease.remainSlotCount);
+            }
+            // 已知大小放不下全部item时只租放得下的, 不多租空闲slot
+            int fitCount = slotLease.fitCount(itemSizeBytes, allocatedCount, Math.min(leaseCount, remainCount), bucketSizeLimitBytes);
+            if (fitCount < Math.min(leaseCount, remainCount)) {
+                leaseCount = fitCount;
+            }
+            if (leaseCount <= 0) {
+                rollover(bucketId, slotLease);
+                bucketCreated = false;
+                singleLeaseTried = false;
+                continue;
+            }
+
+            BucketSlotLease bucketSlotLease = bucketMetaDataMapper.leaseSlots(bucketId, slotLease.bucketWindow, leaseCount, sumSizeBytes(itemSizeBytes, allocatedCount, Math.min(leaseCount, remainCount)));
+            if (bucketSlotLease != null) {
+                slotLease.nextSlot = bucketSlotLease.getFromSlot();
+                slotLease.endSlot = bucketSlotLease.getToSlot();
+                slotLease.remainSlotCount = bucketSlotLease.getRemainSlotCount();
+                slotLease.sizeBytes = bucketSlotLease.getSizeBytes();
+                continue;
+            }
+
+            // 本进程没见过的window直接条件创建, 已存在时创建失败, 省掉一次GetItem
+            if (!bucketCreated && (!bucketMetaDataMapper.mightBucketExist(bucketId, slotLease.bucketWindow) || !bucketMetaDataMapper.isBucketExist(bucketId, slotLease.bucketWindow))) {
+                if (bucketMetaDataMapper.createBucket(bucketId, slotLease.bucketWindow)) {
+                    slotLease.remainSlotCount = bucketSlotCount;
+                    slotLease.sizeBytes = 0L;
+                }
+                bucketCreated = true;
+                continue;
+            }
+
+            // 不知道剩余容量时只租一个slot再试一次, 成功后就能拿到剩余容量
+            if (!singleLeaseTried && slotLease.remainSlotCount == null && leaseCount > 1) {
+                singleLeaseTried = true;
+                continue;
+            }
+
+            // 当前window已满, 滚动到下一个window
+            rollover(bucketId, slotLease);
+            bucketCreated = false;
+            singleLeaseTried = false;
+        }
+        return bucketSlotRangeList;
+    }
+
+    void rollover(String bucketId, SlotLease slotLease) {
+        releaseUnusedSlots(bucketId, slotLease);
+        slotLease.bucketWindow = slotLease.bucketWindow + 1;
+        slotLease.remainSlotCount = null;
+        slotLease.sizeBytes = null;
+    }
+
+    void releaseUnusedSlots(String bucketId, SlotLease slotLease) {
+        int unusedCount = slotLease.endSlot - slotLease.nextSlot;
+        slotLease.nextSlot = 0;
+        slotLease.endSlot = 0;
+        if (unusedCount > 0 && slotLease.bucketWindow != null) {
+            bucketMetaDataMapper.releaseSlots(bucketId, slotLease.bucketWindow, unusedCount);
+        }
+    }
+
+    void releaseEvictedSlotLeases() {
+        Pair<String, SlotLease> evictedSlotLease;
+        while ((evictedSlotLease = evictedSlotLeaseQueue.poll()) != null) {
+            SlotLease slotLease = evictedSlotLease.getRight();
+            synchronized (slotLease) {
+                if (!slotLease.released) {
+                    slotLease.released = true;
+                    releaseUnusedSlots(evictedSlotLease.getLeft(), slotLease);
+                }
+            }
+        }
+    }
+
+    static long sumSizeBytes(long[] itemSizeBytes, int fromIndex, int count) {
+        long sizeBytes = 0;
+        for (int i = fromIndex; i < fromIndex + count; i++) {
+            sizeBytes += itemSizeBytes[i];
+        }
+        return sizeBytes;
+    }
+
+    static class SlotLease {
+        // 最初请求的window, 之后满了滚动到的window都可以复用这个租约
+        Long originBucketWindow;
+
+        Long bucketWindow;
+
+        int nextSlot;
+
+        int endSlot;
+
+        // 上次租用时bucket剩余可租的slot数, null表示未知
+        Integer remainSlotCount;
+
+        // 上次租用时bucket的size_bytes加上之后本地分配出去的item大小, null表示未知
+        Long sizeBytes;
+
+        // 已被淘汰并归还了剩余slot
+        boolean released;
+
+        void reset(Long bucketWindow) {
+            this.originBucketWindow = bucketWindow;
+            this.bucketWindow = bucketWindow;
+            this.nextSlot = 0;
+            this.endSlot = 0;
+            this.remainSlotCount = null;
+            this.sizeBytes = null;
+        }
+
+        void addSizeBytes(long allocatedSizeBytes) {
+            if (sizeBytes != null) {
+                sizeBytes += allocatedSizeBytes;
+            }
+        }
+
+        /**
+         * 从fromIndex开始按顺序能放进当前bucket的item数, 与leaseSlots的条件一致, 空bucket总能放下一个item
+         */
+        int fitCount(long[] itemSizeBytes, int fromIndex, int count, long sizeLimitBytes) {
+            if (sizeBytes == null) {
+                return count;
+            }
+            long fitSizeBytes = sizeBytes;
+            int fitCount = 0;
+            while (fitCount < count && (fitSizeBytes == 0 || fitSizeBytes + itemSizeBytes[fromIndex + fitCount] <= sizeLimitBytes)) {
+                fitSizeBytes += itemSizeBytes[fromIndex + fitCount];
+                fitCount++;
+            }
+            return fitCount;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 一次租用的结果, 租到的slot区间 [fromSlot, toSlot), 以及租用后bucket剩余可租的slot数和已写入的估算大小
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BucketSlotLease {
+
+    private int fromSlot;
+
+    private int toSlot;
+
+    private int remainSlotCount;
+
+    private long sizeBytes;
+}
@@ -0,0 +1,24 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * bucketWindow内的slot区间 [fromSlot, toSlot)
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BucketSlotRange {
+
+    private Long bucketWindow;
+
+    private int fromSlot;
+
+    private int toSlot;
+
+    public int size() {
+        return toSlot - fromSlot;
+    }
+}
@@ -0,0 +1,123 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+
+/**
+ * 计算时间戳所在的bucketWindow, window以bucketWindowSeconds为单位, 每个bucket表一个实例
+ * 固定模式: window = timestamp / bucketWindowSeconds
+ * 自适应模式: 每个bucketId的window跨度span是2的幂, window是对齐到span的起点, 进入新window时按上一个window的写入速率重新选择span,
+ * 使一个window大约写满bucketSlotCount个item. span记录在bucket的window_span属性,
+ * 查询时起点前移到maxBucketWindowSpan对齐, 再跳过结束早于起点的window
+ */
+public class BucketWindowCalculator {
+
+    private long bucketWindowSeconds;
+
+    private boolean adaptive;
+
+    private int minWindowSpan;
+
+    private int maxWindowSpan;
+
+    private int bucketSlotCount;
+
+    private LocalCache<String, WindowSpanState> windowSpanStateCache;
+
+    public BucketWindowCalculator(BucketConfig bucketConfig) {
+        this.bucketWindowSeconds = Math.max(1, bucketConfig.getBucketWindowSeconds());
+        this.adaptive = bucketConfig.isAdaptiveBucketWindowEnabled();
+        this.bucketSlotCount = Math.max(1, bucketConfig.getBucketSlotCount());
+        // span需要是2的幂, 保证不同span对齐后的window都落在maxWindowSpan对齐的区间内
+        this.maxWindowSpan = Integer.highestOneBit(Math.max(1, bucketConfig.getMaxBucketWindowSpan()));
+        this.minWindowSpan = Math.min(Integer.highestOneBit(Math.max(1, bucketConfig.getMinBucketWindowSpan())), maxWindowSpan);
+        if (adaptive) {
+            this.windowSpanStateCache = new LocalCache<>(bucketConfig.getBucketWindowRegistrySize(), bucketConfig.getBucketWindowRegistryExpireMillis());
+        }
+    }
+
+    /**
+     * 计算写入的window, 自适应模式下同时记录写入数量
+     */
+    public Long getBucketWindow(String bucketId, Long timestamp, int itemCount) {
+        long windowUnit = getWindowUnit(timestamp);
+        if (!adaptive) {
+            return windowUnit;
+        }
+
+        WindowSpanState windowSpanState = windowSpanStateCache.computeIfAbsent(bucketId, key -> new WindowSpanState(minWindowSpan));
+        synchronized (windowSpanState) {
+            if (windowSpanState.windowStart == null) {
+                windowSpanState.windowStart = alignBucketWindow(windowUnit, windowSpanState.span);
+            } else if (windowUnit < windowSpanState.windowStart) {
+                // 写入较早的数据, 不影响当前window的统计
+                return alignBucketWindow(windowUnit, windowSpanState.span);
+            } else if (windowUnit >= windowSpanState.windowStart + windowSpanState.span) {
+                long elapsedUnits = windowUnit - windowSpanState.windowStart;
+                windowSpanState.span = chooseWindowSpan(windowSpanState.itemCount, elapsedUnits);
+                windowSpanState.windowStart = alignBucketWindow(windowUnit, windowSpanState.span);
+                windowSpanState.itemCount = 0;
+            }
+
+            windowSpanState.itemCount += itemCount;
+            return windowSpanState.windowStart;
+        }
+    }
+
+    /**
+     * 创建bucket时记录的span, 固定模式下为1
+     */
+    public int getWindowSpan(String bucketId) {
+        if (!adaptive) {
+            return 1;
+        }
+
+        WindowSpanState windowSpanState = windowSpanStateCache.get(bucketId);
+        if (windowSpanState == null) {
+            return minWindowSpan;
+        }
+        synchronized (windowSpanState) {
+            return windowSpanState.span;
+        }
+    }
+
+    public long getWindowUnit(Long timestamp) {
+        return (timestamp != null ? timestamp : System.currentTimeMillis() / 1000) / bucketWindowSeconds;
+    }
+
+    /**
+     * 包含startBucketWindow的window最早从这里开始
+     */
+    public Long getQueryStartBucketWindow(Long startBucketWindow) {
+        return adaptive ? alignBucketWindow(startBucketWindow, maxWindowSpan) : startBucketWindow;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * 上一个window在elapsedUnits内写入itemCount个, 选择写满一个bucket大约需要的span
+     */
+    int chooseWindowSpan(long itemCount, long elapsedUnits) {
+        long targetSpan = (long) bucketSlotCount * Math.max(1, elapsedUnits) / Math.max(1, itemCount);
+        long span = Long.highestOneBit(Math.max(1, targetSpan));
+        return (int) Math.max(minWindowSpan, Math.min(maxWindowSpan, span));
+    }
+
+    static long alignBucketWindow(long bucketWindow, int span) {
+        return Math.floorDiv(bucketWindow, span) * span;
+    }
+
+    static class WindowSpanState {
+        Long windowStart;
+
+        int span;
+
+        long itemCount;
+
+        WindowSpanState(int span) {
+            this.span = span;
+        }
+    }
+}
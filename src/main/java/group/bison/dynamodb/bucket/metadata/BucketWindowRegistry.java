@@ -0,0 +1,51 @@
+package group.bison.dynamodb.bucket.metadata;
+
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+
+/**
+ * 记录每个bucketId当前最新的bucketWindow, 每个bucket表一个实例
+ * 只会向更新的window推进, 并发写入时不会被较旧的window覆盖
+ */
+public class BucketWindowRegistry {
+
+    private LocalCache<String, Object> currentBucketWindowCache;
+
+    public BucketWindowRegistry(long maxSize, long expireMillis) {
+        this.currentBucketWindowCache = new LocalCache<>(maxSize, expireMillis);
+    }
+
+    public <W> void register(String bucketId, W bucketWindow) {
+        if (bucketId == null || bucketWindow == null) {
+            return;
+        }
+
+        currentBucketWindowCache.merge(bucketId, bucketWindow, (currentBucketWindow, newBucketWindow) -> compareBucketWindow(newBucketWindow, currentBucketWindow) > 0 ? newBucketWindow : currentBucketWindow);
+    }
+
+    public <W> W getCurrentBucketWindow(String bucketId) {
+        return (W) currentBucketWindowCache.get(bucketId);
+    }
+
+    public long getHitCount() {
+        return currentBucketWindowCache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return currentBucketWindowCache.getMissCount();
+    }
+
+    public double getHitRate() {
+        return currentBucketWindowCache.getHitRate();
+    }
+
+    public long size() {
+        return currentBucketWindowCache.size();
+    }
+
+    public static int compareBucketWindow(Object bucketWindow, Object otherBucketWindow) {
+        if (bucketWindow instanceof Number && otherBucketWindow instanceof Number) {
+            return Long.compare(((Number) bucketWindow).longValue(), ((Number) otherBucketWindow).longValue());
+        }
+        return String.valueOf(bucketWindow).compareTo(String.valueOf(otherBucketWindow));
+    }
+}
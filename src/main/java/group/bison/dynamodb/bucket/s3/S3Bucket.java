@@ -9,24 +9,41 @@ import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.s3.AmazonS3;
 import group.bison.dynamodb.bucket.api.BucketApi;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.common.domain.BucketQueryResult;
 import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
 import group.bison.dynamodb.bucket.data.BucketDataMapper;
+import group.bison.dynamodb.bucket.data.ExpressionFilter;
 import group.bison.dynamodb.bucket.metadata.BucketItem;
 import group.bison.dynamodb.bucket.metadata.BucketMetaDataMapper;
+import group.bison.dynamodb.bucket.metadata.BucketSlotAllocator;
+import group.bison.dynamodb.bucket.metadata.BucketSlotRange;
+import group.bison.dynamodb.bucket.metadata.BucketWindowCalculator;
 import group.bison.dynamodb.bucket.metadata.IndexCollection;
 import group.bison.dynamodb.bucket.parse.ItemParser;
+import group.bison.dynamodb.bucket.simple.CompiledExpressionFilter;
 import group.bison.dynamodb.bucket.simple.SimpleExpressionFilter;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.BeanUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
@@ -41,13 +58,21 @@ public class S3Bucket<T> implements BucketApi<T> {
     private ItemParser<T> itemParser;
     private BucketMetaDataMapper bucketMetaDataMapper;
     private BucketDataMapper bucketDataMapper;
+    private BucketConfig bucketConfig;
+    private BucketSlotAllocator bucketSlotAllocator;
+    private BucketWindowCalculator bucketWindowCalculator;
 
     public S3Bucket(String tableName, Class<T> itemCls, AmazonDynamoDB dynamoDB, AmazonDynamoDB daxDynamoDB, AmazonS3 amazonS3) {
+        this(tableName, itemCls, dynamoDB, daxDynamoDB, amazonS3, BucketConfig.builder().build());
+    }
+
+    public S3Bucket(String tableName, Class<T> itemCls, AmazonDynamoDB dynamoDB, AmazonDynamoDB daxDynamoDB, AmazonS3 amazonS3, BucketConfig bucketConfig) {
         this.tableName = tableName;
         this.itemCls = itemCls;
         this.dynamoDB = dynamoDB;
         this.daxDynamoDB = daxDynamoDB;
         this.amazonS3 = amazonS3;
+        this.bucketConfig = bucketConfig;
 
         init();
     }
@@ -60,8 +85,12 @@ public class S3Bucket<T> implements BucketApi<T> {
                 .build());
         DynamoDBMapperTableModel<T> tableModel = mapper.getTableModel(itemCls);
         this.itemParser = new S3ItemParser<>(tableModel);
-        this.bucketMetaDataMapper = new BucketMetaDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, amazonS3);
-        this.bucketDataMapper = new BucketDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, amazonS3, new SimpleExpressionFilter());
+        this.bucketMetaDataMapper = new BucketMetaDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, amazonS3, bucketConfig);
+        this.bucketDataMapper = new BucketDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, amazonS3, getExpressionFilter(), bucketConfig);
+        this.bucketDataMapper.setBucketExistenceIndex(bucketMetaDataMapper.getBucketExistenceIndex());
+        this.bucketDataMapper.setBucketWindowCalculator(bucketMetaDataMapper.getBucketWindowCalculator());
+        this.bucketWindowCalculator = bucketMetaDataMapper.getBucketWindowCalculator();
+        this.bucketSlotAllocator = new BucketSlotAllocator(bucketMetaDataMapper, bucketConfig);
 
         List<AttributeDefinition> attributeDefinitionList = new LinkedList<>();
         attributeDefinitionList.add(new AttributeDefinition().withAttributeName(KEY_BUCKET_ID).withAttributeType(ScalarAttributeType.S));
@@ -69,6 +98,10 @@ public class S3Bucket<T> implements BucketApi<T> {
         new BucketMetaDataMapper("bucket-" + tableName, dynamoDB, amazonS3).createBucketTable(attributeDefinitionList);
     }
 
+    ExpressionFilter getExpressionFilter() {
+        return bucketConfig.isCompiledExpressionFilterEnabled() ? new CompiledExpressionFilter(bucketConfig.getExpressionFilterCacheSize()) : new SimpleExpressionFilter();
+    }
+
     @Override
     public String add(T item) {
         Object hashKey = itemParser.hashKey(item);
@@ -81,25 +114,76 @@ public class S3Bucket<T> implements BucketApi<T> {
         // 确定bucketId 和 bucketWindow
         String bucketId = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getBucketId(item) : String.valueOf(hashKey);
         Long timestamp = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getTimestamp(item) : null;
-        Long bucketWindow = (timestamp != null ? timestamp : System.currentTimeMillis() / 1000) / (60 * 60);
+        Long bucketWindow = bucketWindowCalculator.getBucketWindow(bucketId, timestamp, 1);
 
-        while (bucketMetaDataMapper.isBucketExist(bucketId, bucketWindow) && bucketMetaDataMapper.isBucketFull(bucketId, bucketWindow)) {
-            bucketWindow = bucketWindow + 1;
-        }
-
-        if (!bucketMetaDataMapper.isBucketExist(bucketId, bucketWindow)) {
-            bucketMetaDataMapper.createBucket(bucketId, bucketWindow);
-        }
+        BucketSlotRange bucketSlotRange = bucketSlotAllocator.allocate(bucketId, bucketWindow, new long[]{bucketDataMapper.estimateNewItemSize(bucketItem)}).get(0);
+        bucketWindow = bucketSlotRange.getBucketWindow();
 
         // 生成bizId
-        String bizId = String.join("-", UUID.randomUUID().toString().substring(0, 5), bucketId, String.valueOf(bucketWindow), String.valueOf(System.currentTimeMillis() / 1000));
+        String bizId = generateBizId(bucketId, bucketWindow);
         bucketItem.setBizId(bizId);
+        bucketItem.setItemOrdinal(bucketSlotRange.getFromSlot());
 
-        bucketDataMapper.insert(bucketItem);
+        bucketDataMapper.insertAll(Collections.singletonList(bucketItem), true);
 
         return bizId;
     }
 
+    @Override
+    public List<String> addAll(Collection<T> items) {
+        if (CollectionUtils.isEmpty(items)) {
+            return Collections.emptyList();
+        }
+
+        List<T> itemList = new ArrayList<>(items);
+        String[] bizIds = new String[itemList.size()];
+
+        // 按bucketId 和 bucketWindow分组
+        Map<Pair<String, Long>, List<Integer>> bucketItemIndexMap = new LinkedHashMap<>();
+        List<BucketItem> bucketItemList = new ArrayList<>(itemList.size());
+        for (int i = 0; i < itemList.size(); i++) {
+            T item = itemList.get(i);
+            Object hashKey = itemParser.hashKey(item);
+            if (hashKey == null) {
+                throw new RuntimeException("can not add no hash key item");
+            }
+
+            bucketItemList.add(itemParser.parseItem(item));
+
+            String bucketId = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getBucketId(item) : String.valueOf(hashKey);
+            Long timestamp = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getTimestamp(item) : null;
+            Long bucketWindow = bucketWindowCalculator.getBucketWindow(bucketId, timestamp, 1);
+            bucketItemIndexMap.computeIfAbsent(Pair.of(bucketId, bucketWindow), key -> new LinkedList<>()).add(i);
+        }
+
+        bucketItemIndexMap.forEach((bucketKey, itemIndexList) -> {
+            String bucketId = bucketKey.getLeft();
+
+            Iterator<Integer> itemIndexIterator = itemIndexList.iterator();
+            long[] itemSizeBytes = itemIndexList.stream().mapToLong(itemIndex -> bucketDataMapper.estimateNewItemSize(bucketItemList.get(itemIndex))).toArray();
+            bucketSlotAllocator.allocate(bucketId, bucketKey.getRight(), itemSizeBytes).forEach(bucketSlotRange -> {
+                Long bucketWindow = bucketSlotRange.getBucketWindow();
+
+                List<BucketItem> windowBucketItemList = new LinkedList<>();
+                for (int i = 0; i < bucketSlotRange.size(); i++) {
+                    Integer itemIndex = itemIndexIterator.next();
+                    BucketItem bucketItem = bucketItemList.get(itemIndex);
+
+                    String bizId = generateBizId(bucketId, bucketWindow);
+                    bucketItem.setBizId(bizId);
+                    bucketItem.setItemOrdinal(bucketSlotRange.getFromSlot() + i);
+                    bizIds[itemIndex] = bizId;
+
+                    windowBucketItemList.add(bucketItem);
+                }
+
+                bucketDataMapper.insertAll(windowBucketItemList, true);
+            });
+        });
+
+        return Arrays.asList(bizIds);
+    }
+
     @Override
     public void update(String bizId, T item) {
         BucketItem bucketItem = itemParser.parseItem(item);
@@ -120,6 +204,15 @@ public class S3Bucket<T> implements BucketApi<T> {
         bucketDataMapper.delete(bucketItem);
     }
 
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+        bucketDataMapper.close();
+    }
+
     @Override
     public T queryOne(String bizId, Object hashKey, Object rangeKey) {
         BucketItem bucketItem = new S3BucketItem();
@@ -171,8 +264,8 @@ public class S3Bucket<T> implements BucketApi<T> {
                 return;
             }
 
-            Long startBucketWindow = queryTimestampRange.getLeft() / (60 * 60);
-            Long endBucketWindow = Math.min(queryTimestampRange.getRight(), lastTimestampAtom.get() != null ? lastTimestampAtom.get() : Long.MAX_VALUE) / (60 * 60);
+            Long startBucketWindow = bucketWindowCalculator.getWindowUnit(queryTimestampRange.getLeft());
+            Long endBucketWindow = bucketWindowCalculator.getWindowUnit(Math.min(queryTimestampRange.getRight(), lastTimestampAtom.get() != null ? lastTimestampAtom.get() : Long.MAX_VALUE));
             Object currentBucketWindow = bucketMetaDataMapper.getCurrentBucketWindow(queryBucketId);
             if (currentBucketWindow != null) {
                 endBucketWindow = Math.min(endBucketWindow, (Long) currentBucketWindow);
@@ -192,4 +285,52 @@ public class S3Bucket<T> implements BucketApi<T> {
         return itemList;
     }
 
+    @Override
+    public BucketQueryResult<T> queryPage(DataQueryParam dataQueryParam) {
+        if (dataQueryParam == null || dataQueryParam.getTo() <= dataQueryParam.getFrom()) {
+            return new BucketQueryResult<>(Collections.emptyList(), null);
+        }
+
+        List<String> queryBucketIdList = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getQueryBucketIdList(dataQueryParam) : null;
+        Pair<Long, Long> queryTimestampRange = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getQueryTimestampRange(dataQueryParam) : null;
+        if (CollectionUtils.isEmpty(queryBucketIdList) || queryTimestampRange == null) {
+            return new BucketQueryResult<>(Collections.emptyList(), null);
+        }
+
+        BucketQueryResult<BucketItem> bucketQueryResult = bucketDataMapper.queryPage(queryBucketIdList, queryBucketId -> getQueryBucketWindowRange(queryBucketId, queryTimestampRange), null, dataQueryParam, null, null);
+        List<T> itemList = bucketQueryResult.getItemList().stream().map(itemParser::convert2Item).collect(Collectors.toList());
+        return new BucketQueryResult<>(itemList, bucketQueryResult.getCursor());
+    }
+
+    @Override
+    public Stream<T> stream(DataQueryParam dataQueryParam) {
+        if (dataQueryParam == null) {
+            return Stream.empty();
+        }
+
+        List<String> queryBucketIdList = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getQueryBucketIdList(dataQueryParam) : null;
+        Pair<Long, Long> queryTimestampRange = itemParser instanceof S3ItemParser ? ((S3ItemParser<T>) itemParser).getQueryTimestampRange(dataQueryParam) : null;
+        if (CollectionUtils.isEmpty(queryBucketIdList) || queryTimestampRange == null) {
+            return Stream.empty();
+        }
+
+        Stream<T> itemStream = StreamSupport.stream(() -> Spliterators.spliteratorUnknownSize(bucketDataMapper.iterate(queryBucketIdList, queryBucketId -> getQueryBucketWindowRange(queryBucketId, queryTimestampRange), null, dataQueryParam, null), Spliterator.ORDERED), Spliterator.ORDERED, false)
+                .map(itemParser::convert2Item);
+        return dataQueryParam.getTo() > dataQueryParam.getFrom() ? itemStream.skip(dataQueryParam.getFrom()).limit(dataQueryParam.getTo() - dataQueryParam.getFrom()) : itemStream;
+    }
+
+    Pair<Long, Long> getQueryBucketWindowRange(String queryBucketId, Pair<Long, Long> queryTimestampRange) {
+        Long startBucketWindow = bucketWindowCalculator.getWindowUnit(queryTimestampRange.getLeft());
+        Long endBucketWindow = bucketWindowCalculator.getWindowUnit(queryTimestampRange.getRight());
+        Object currentBucketWindow = bucketMetaDataMapper.getCurrentBucketWindow(queryBucketId);
+        if (currentBucketWindow != null) {
+            endBucketWindow = Math.min(endBucketWindow, (Long) currentBucketWindow);
+        }
+        return Pair.of(startBucketWindow, endBucketWindow);
+    }
+
+    String generateBizId(String bucketId, Long bucketWindow) {
+        return String.join("-", UUID.randomUUID().toString().substring(0, 5), bucketId, String.valueOf(bucketWindow), String.valueOf(System.currentTimeMillis() / 1000));
+    }
+
 }
@@ -0,0 +1,368 @@
+package group.bison.dynamodb.bucket.simple;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.common.cache.LocalCache;
+import group.bison.dynamodb.bucket.data.ExpressionFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.collections.MapUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把DynamoDB condition语法编译成条件树并按表达式文本缓存, 每个item只做求值
+ * 支持 = <> < <= > >=, BETWEEN, IN, AND/OR/NOT, begins_with, contains, size, attribute_exists/attribute_not_exists
+ * 表达式按字段过滤, 其中的属性路径都指向当前字段的值; 无法解析的表达式交给SimpleExpressionFilter
+ * 与dynamodb一致, 类型不同的值不相等, 大小比较只在N、S、B同类型之间进行, 类型不同时为false, <>为true
+ */
+@Slf4j
+public class CompiledExpressionFilter implements ExpressionFilter {
+
+    private static final Condition UNSUPPORTED = (currentAttributeValue, expressionValueMap) -> false;
+
+    private LocalCache<String, Condition> conditionCache;
+
+    private ExpressionFilter fallbackExpressionFilter = new SimpleExpressionFilter();
+
+    public CompiledExpressionFilter() {
+        this(10000);
+    }
+
+    public CompiledExpressionFilter(long cacheSize) {
+        this.conditionCache = new LocalCache<>(cacheSize, 0);
+    }
+
+    @Override
+    public boolean isMatch(String expression, Map<String, String> expressionNameMap, Map<String, AttributeValue> expressionValueMap, AttributeValue currentAttributeValue) {
+        if (StringUtils.isBlank(expression)) {
+            return true;
+        }
+
+        Condition condition = conditionCache.computeIfAbsent(expression, this::compile);
+        if (condition == UNSUPPORTED) {
+            return fallbackExpressionFilter.isMatch(expression, expressionNameMap, expressionValueMap, currentAttributeValue);
+        }
+        return condition.test(currentAttributeValue, expressionValueMap);
+    }
+
+    public double getCacheHitRate() {
+        return conditionCache.getHitRate();
+    }
+
+    Condition compile(String expression) {
+        try {
+            Parser parser = new Parser(tokenize(expression));
+            Condition condition = parser.parseOr();
+            if (parser.hasNext()) {
+                throw new IllegalArgumentException("unexpected token " + parser.peek());
+            }
+            return condition;
+        } catch (RuntimeException e) {
+            log.warn("compile expression failed, fallback to simple filter: {}", expression, e);
+            return UNSUPPORTED;
+        }
+    }
+
+    List<String> tokenize(String expression) {
+        List<String> tokenList = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')' || c == ',' || c == '=') {
+                tokenList.add(String.valueOf(c));
+                i++;
+            } else if (c == '<' || c == '>') {
+                // 兼容 "> =" 这种写法
+                int j = i + 1;
+                while (j < expression.length() && expression.charAt(j) == ' ') {
+                    j++;
+                }
+                if (j < expression.length() && (expression.charAt(j) == '=' || (c == '<' && expression.charAt(j) == '>'))) {
+                    tokenList.add(String.valueOf(c) + expression.charAt(j));
+                    i = j + 1;
+                } else {
+                    tokenList.add(String.valueOf(c));
+                    i++;
+                }
+            } else {
+                int j = i;
+                while (j < expression.length() && !Character.isWhitespace(expression.charAt(j)) && "(),=<>".indexOf(expression.charAt(j)) < 0) {
+                    j++;
+                }
+                tokenList.add(expression.substring(i, j));
+                i = j;
+            }
+        }
+        return tokenList;
+    }
+
+    interface Condition {
+        boolean test(AttributeValue currentAttributeValue, Map<String, AttributeValue> expressionValueMap);
+    }
+
+    interface Operand {
+        AttributeValue resolve(AttributeValue currentAttributeValue, Map<String, AttributeValue> expressionValueMap);
+    }
+
+    static class Parser {
+        private List<String> tokenList;
+        private int position;
+
+        Parser(List<String> tokenList) {
+            this.tokenList = tokenList;
+        }
+
+        boolean hasNext() {
+            return position < tokenList.size();
+        }
+
+        String peek() {
+            return hasNext() ? tokenList.get(position) : null;
+        }
+
+        String next() {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("unexpected end of expression");
+            }
+            return tokenList.get(position++);
+        }
+
+        boolean accept(String token) {
+            if (hasNext() && token.equalsIgnoreCase(peek())) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(String token) {
+            if (!accept(token)) {
+                throw new IllegalArgumentException("expect " + token + " but " + peek());
+            }
+        }
+
+        Condition parseOr() {
+            Condition condition = parseAnd();
+            while (accept("OR")) {
+                Condition left = condition;
+                Condition right = parseAnd();
+                condition = (current, values) -> left.test(current, values) || right.test(current, values);
+            }
+            return condition;
+        }
+
+        Condition parseAnd() {
+            Condition condition = parseNot();
+            while (accept("AND")) {
+                Condition left = condition;
+                Condition right = parseNot();
+                condition = (current, values) -> left.test(current, values) && right.test(current, values);
+            }
+            return condition;
+        }
+
+        Condition parseNot() {
+            if (accept("NOT")) {
+                Condition condition = parseNot();
+                return (current, values) -> !condition.test(current, values);
+            }
+            return parsePrimary();
+        }
+
+        Condition parsePrimary() {
+            if (accept("(")) {
+                Condition condition = parseOr();
+                expect(")");
+                return condition;
+            }
+
+            String token = peek();
+            if (token != null && position + 1 < tokenList.size() && "(".equals(tokenList.get(position + 1)) && !"size".equalsIgnoreCase(token)) {
+                return parseFunction();
+            }
+
+            Operand left = parseOperand();
+            if (accept("BETWEEN")) {
+                Operand lower = parseOperand();
+                expect("AND");
+                Operand upper = parseOperand();
+                return (current, values) -> {
+                    AttributeValue value = left.resolve(current, values);
+                    return isLess(compareOrdered(lower.resolve(current, values), value), true) && isLess(compareOrdered(value, upper.resolve(current, values)), true);
+                };
+            }
+
+            if (accept("IN")) {
+                expect("(");
+                List<Operand> operandList = new ArrayList<>();
+                do {
+                    operandList.add(parseOperand());
+                } while (accept(","));
+                expect(")");
+                return (current, values) -> {
+                    AttributeValue value = left.resolve(current, values);
+                    return operandList.stream().anyMatch(operand -> compare(value, operand.resolve(current, values)) == 0);
+                };
+            }
+
+            String comparator = next();
+            Operand right = parseOperand();
+            switch (comparator) {
+                case "=":
+                    return (current, values) -> compare(left.resolve(current, values), right.resolve(current, values)) == 0;
+                case "<>":
+                    return (current, values) -> compare(left.resolve(current, values), right.resolve(current, values)) != 0;
+                case "<":
+                    return (current, values) -> isLess(compareOrdered(left.resolve(current, values), right.resolve(current, values)), false);
+                case "<=":
+                    return (current, values) -> isLess(compareOrdered(left.resolve(current, values), right.resolve(current, values)), true);
+                case ">":
+                    return (current, values) -> isLess(compareOrdered(right.resolve(current, values), left.resolve(current, values)), false);
+                case ">=":
+                    return (current, values) -> isLess(compareOrdered(right.resolve(current, values), left.resolve(current, values)), true);
+                default:
+                    throw new IllegalArgumentException("unsupported comparator " + comparator);
+            }
+        }
+
+        Condition parseFunction() {
+            String function = next().toLowerCase();
+            expect("(");
+            List<Operand> operandList = new ArrayList<>();
+            do {
+                operandList.add(parseOperand());
+            } while (accept(","));
+            expect(")");
+
+            Operand path = operandList.get(0);
+            switch (function) {
+                case "attribute_exists":
+                    return (current, values) -> path.resolve(current, values) != null;
+                case "attribute_not_exists":
+                    return (current, values) -> path.resolve(current, values) == null;
+                case "begins_with":
+                    return (current, values) -> {
+                        AttributeValue value = path.resolve(current, values);
+                        AttributeValue prefix = operandList.get(1).resolve(current, values);
+                        return value != null && prefix != null && value.getS() != null && prefix.getS() != null && value.getS().startsWith(prefix.getS());
+                    };
+                case "contains":
+                    return (current, values) -> contains(path.resolve(current, values), operandList.get(1).resolve(current, values));
+                default:
+                    throw new IllegalArgumentException("unsupported function " + function);
+            }
+        }
+
+        Operand parseOperand() {
+            String token = next();
+            if ("size".equalsIgnoreCase(token) && accept("(")) {
+                Operand path = parseOperand();
+                expect(")");
+                return (current, values) -> {
+                    AttributeValue value = path.resolve(current, values);
+                    return value == null ? null : new AttributeValue().withN(String.valueOf(size(value)));
+                };
+            }
+
+            if (token.startsWith(":")) {
+                return (current, values) -> values != null ? values.get(token) : null;
+            }
+
+            if ("(".equals(token) || ")".equals(token) || ",".equals(token)) {
+                throw new IllegalArgumentException("unexpected token " + token);
+            }
+
+            // 属性路径, 按字段过滤时就是当前字段的值
+            return (current, values) -> current;
+        }
+    }
+
+    static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    static boolean isLess(int result, boolean orEqual) {
+        return result != INCOMPARABLE && (result < 0 || (orEqual && result == 0));
+    }
+
+    /**
+     * 同类型的N、S、B返回大小关系, 其他类型只判断相等, 不相等或类型不同时返回INCOMPARABLE
+     */
+    static int compare(AttributeValue value, AttributeValue otherValue) {
+        if (value == null || otherValue == null) {
+            return INCOMPARABLE;
+        }
+
+        if (value.getN() != null && otherValue.getN() != null) {
+            return new BigDecimal(value.getN()).compareTo(new BigDecimal(otherValue.getN()));
+        }
+
+        if (value.getS() != null && otherValue.getS() != null) {
+            return Integer.signum(value.getS().compareTo(otherValue.getS()));
+        }
+
+        if (value.getB() != null && otherValue.getB() != null) {
+            return compareBytes(value.getB(), otherValue.getB());
+        }
+
+        // BOOL、NULL、集合、L、M只能判断相等, N和S等不同类型的值永远不相等
+        return value.getN() == null && value.getS() == null && value.getB() == null && value.equals(otherValue) ? 0 : INCOMPARABLE;
+    }
+
+    /**
+     * 只有N、S、B可以比较大小
+     */
+    static int compareOrdered(AttributeValue value, AttributeValue otherValue) {
+        if (value == null || (value.getN() == null && value.getS() == null && value.getB() == null)) {
+            return INCOMPARABLE;
+        }
+        return compare(value, otherValue);
+    }
+
+    // dynamodb按无符号字节比较二进制值
+    static int compareBytes(ByteBuffer buffer, ByteBuffer otherBuffer) {
+        int length = Math.min(buffer.remaining(), otherBuffer.remaining());
+        for (int i = 0; i < length; i++) {
+            int result = Integer.compare(buffer.get(buffer.position() + i) & 0xFF, otherBuffer.get(otherBuffer.position() + i) & 0xFF);
+            if (result != 0) {
+                return Integer.signum(result);
+            }
+        }
+        return Integer.signum(Integer.compare(buffer.remaining(), otherBuffer.remaining()));
+    }
+
+    static boolean contains(AttributeValue value, AttributeValue operand) {
+        if (value == null || operand == null) {
+            return false;
+        }
+
+        if (CollectionUtils.isNotEmpty(value.getNS())) {
+            return operand.getN() != null && value.getNS().stream().anyMatch(n -> new BigDecimal(n).compareTo(new BigDecimal(operand.getN())) == 0);
+        }
+        if (CollectionUtils.isNotEmpty(value.getSS())) {
+            return value.getSS().contains(operand.getS());
+        }
+        if (CollectionUtils.isNotEmpty(value.getL())) {
+            return value.getL().stream().anyMatch(element -> compare(element, operand) == 0);
+        }
+        if (MapUtils.isNotEmpty(value.getM())) {
+            return operand.getS() != null && value.getM().containsKey(operand.getS());
+        }
+        return value.getS() != null && operand.getS() != null && value.getS().contains(operand.getS());
+    }
+
+    static int size(AttributeValue value) {
+        return StringUtils.isNotEmpty(value.getS()) ? value.getS().length()
+                : CollectionUtils.isNotEmpty(value.getNS()) ? value.getNS().size()
+                : CollectionUtils.isNotEmpty(value.getSS()) ? value.getSS().size()
+                : CollectionUtils.isNotEmpty(value.getL()) ? value.getL().size()
+                : MapUtils.isNotEmpty(value.getM()) ? value.getM().size()
+                : value.getB() != null ? value.getB().remaining()
+                : 0;
+    }
+}
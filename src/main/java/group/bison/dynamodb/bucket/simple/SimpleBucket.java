@@ -8,23 +8,50 @@ import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperTableModel;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import group.bison.dynamodb.bucket.api.BucketApi;
+import group.bison.dynamodb.bucket.common.IndexLayout;
+import group.bison.dynamodb.bucket.common.OrderedMergeIterator;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.common.domain.BucketQueryResult;
 import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
 import group.bison.dynamodb.bucket.data.BucketDataMapper;
+import group.bison.dynamodb.bucket.data.BucketIndexCompactor;
+import group.bison.dynamodb.bucket.data.BucketItemCache;
+import group.bison.dynamodb.bucket.data.BucketWriteBuffer;
+import group.bison.dynamodb.bucket.data.ExpressionFilter;
 import group.bison.dynamodb.bucket.metadata.BucketItem;
 import group.bison.dynamodb.bucket.metadata.BucketMetaDataMapper;
+import group.bison.dynamodb.bucket.metadata.BucketSlotAllocator;
+import group.bison.dynamodb.bucket.metadata.BucketSlotRange;
+import group.bison.dynamodb.bucket.metadata.BucketWindowCalculator;
 import group.bison.dynamodb.bucket.metadata.IndexCollection;
 import group.bison.dynamodb.bucket.parse.ItemParser;
 import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.BeanUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
@@ -38,12 +65,24 @@ public class SimpleBucket<T> implements BucketApi<T> {
     private ItemParser<T> itemParser;
     private BucketMetaDataMapper bucketMetaDataMapper;
     private BucketDataMapper bucketDataMapper;
+    private BucketConfig bucketConfig;
+    private BucketSlotAllocator bucketSlotAllocator;
+    private BucketWindowCalculator bucketWindowCalculator;
+    private BucketIndexCompactor bucketIndexCompactor;
+    private BucketWriteBuffer bucketWriteBuffer;
+    private BucketItemCache bucketItemCache;
+    private volatile ExecutorService bucketQueryExecutorService;
 
     public SimpleBucket(String tableName, Class<T> itemCls, AmazonDynamoDB dynamoDB, AmazonDynamoDB daxDynamoDB) {
+        this(tableName, itemCls, dynamoDB, daxDynamoDB, BucketConfig.builder().build());
+    }
+
+    public SimpleBucket(String tableName, Class<T> itemCls, AmazonDynamoDB dynamoDB, AmazonDynamoDB daxDynamoDB, BucketConfig bucketConfig) {
         this.tableName = tableName;
         this.itemCls = itemCls;
         this.dynamoDB = dynamoDB;
         this.daxDynamoDB = daxDynamoDB;
+        this.bucketConfig = bucketConfig;
 
         init();
     }
@@ -56,8 +95,22 @@ public class SimpleBucket<T> implements BucketApi<T> {
                 .build());
         DynamoDBMapperTableModel<T> tableModel = mapper.getTableModel(itemCls);
         this.itemParser = new SimpleItemParser<>(tableModel);
-        this.bucketMetaDataMapper = new BucketMetaDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, null);
-        this.bucketDataMapper = new BucketDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, null, new SimpleExpressionFilter());
+        this.bucketMetaDataMapper = new BucketMetaDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, null, bucketConfig);
+        this.bucketDataMapper = new BucketDataMapper("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, null, getExpressionFilter(), bucketConfig);
+        this.bucketDataMapper.setBucketExistenceIndex(bucketMetaDataMapper.getBucketExistenceIndex());
+        this.bucketDataMapper.setBucketWindowCalculator(bucketMetaDataMapper.getBucketWindowCalculator());
+        this.bucketWindowCalculator = bucketMetaDataMapper.getBucketWindowCalculator();
+        this.bucketSlotAllocator = new BucketSlotAllocator(bucketMetaDataMapper, bucketConfig);
+        if (bucketConfig.isWriteBufferEnabled()) {
+            this.bucketWriteBuffer = new BucketWriteBuffer("bucket-" + tableName, bucketDataMapper, bucketConfig);
+        }
+        if (bucketConfig.isItemCacheEnabled()) {
+            this.bucketItemCache = new BucketItemCache(bucketConfig.getItemCacheSize(), bucketConfig.getItemCacheExpireMillis());
+        }
+        // 只有NESTED索引update时会留下0值
+        if (bucketConfig.isIndexCompactionEnabled() && bucketConfig.getIndexLayout() == IndexLayout.NESTED) {
+            this.bucketIndexCompactor = new BucketIndexCompactor("bucket-" + tableName, daxDynamoDB != null ? daxDynamoDB : dynamoDB, bucketConfig);
+        }
 
         List<AttributeDefinition> attributeDefinitionList = new LinkedList<>();
         attributeDefinitionList.add(new AttributeDefinition().withAttributeName(KEY_BUCKET_ID).withAttributeType(ScalarAttributeType.S));
@@ -65,6 +118,31 @@ public class SimpleBucket<T> implements BucketApi<T> {
         new BucketMetaDataMapper("bucket-" + tableName, dynamoDB, null).createBucketTable(attributeDefinitionList);
     }
 
+    void insertAll(List<BucketItem> bucketItemList) {
+        if (bucketWriteBuffer != null) {
+            bucketWriteBuffer.insertAll(bucketItemList, true);
+        } else {
+            bucketDataMapper.insertAll(bucketItemList, true);
+        }
+
+        // 相同主键的item可能覆盖已缓存的item
+        if (bucketItemCache != null) {
+            bucketItemList.forEach(bucketItem -> bucketItemCache.invalidate(bucketItem.getBucketId(), bucketItem.getBucketWindow(), bucketItem.getItemId()));
+        }
+    }
+
+    public BucketIndexCompactor getBucketIndexCompactor() {
+        return bucketIndexCompactor;
+    }
+
+    public BucketItemCache getBucketItemCache() {
+        return bucketItemCache;
+    }
+
+    ExpressionFilter getExpressionFilter() {
+        return bucketConfig.isCompiledExpressionFilterEnabled() ? new CompiledExpressionFilter(bucketConfig.getExpressionFilterCacheSize()) : new SimpleExpressionFilter();
+    }
+
     @Override
     public String add(T item) {
         Object hashKey = itemParser.hashKey(item);
@@ -77,28 +155,82 @@ public class SimpleBucket<T> implements BucketApi<T> {
         // 确定bucketId 和 bucketWindow
         String bucketId = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getBucketId(item) : String.valueOf(hashKey);
         Long timestamp = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getTimestamp(item) : null;
-        Long bucketWindow = (timestamp != null ? timestamp : System.currentTimeMillis() / 1000) / (60 * 60);
-
-        while (bucketMetaDataMapper.isBucketExist(bucketId, bucketWindow) && bucketMetaDataMapper.isBucketFull(bucketId, bucketWindow)) {
-            bucketWindow = bucketWindow + 1;
-        }
+        Long bucketWindow = bucketWindowCalculator.getBucketWindow(bucketId, timestamp, 1);
 
-        if (!bucketMetaDataMapper.isBucketExist(bucketId, bucketWindow)) {
-            bucketMetaDataMapper.createBucket(bucketId, bucketWindow);
-        }
+        BucketSlotRange bucketSlotRange = bucketSlotAllocator.allocate(bucketId, bucketWindow, new long[]{bucketDataMapper.estimateNewItemSize(bucketItem)}).get(0);
+        bucketWindow = bucketSlotRange.getBucketWindow();
 
         // 生成bizId
-        String bizId = String.join("-", UUID.randomUUID().toString().substring(0, 5), bucketId, String.valueOf(bucketWindow), String.valueOf(System.currentTimeMillis() / 1000));
+        String bizId = generateBizId(bucketId, bucketWindow);
         bucketItem.setBizId(bizId);
+        bucketItem.setItemOrdinal(bucketSlotRange.getFromSlot());
 
         IndexCollection indexCollection = bucketItem.getIndexCollection();
         bucketMetaDataMapper.initIndex(bucketId, bucketWindow, indexCollection);
 
-        bucketDataMapper.insert(bucketItem);
+        insertAll(Collections.singletonList(bucketItem));
 
         return bizId;
     }
 
+    @Override
+    public List<String> addAll(Collection<T> items) {
+        if (CollectionUtils.isEmpty(items)) {
+            return Collections.emptyList();
+        }
+
+        List<T> itemList = new ArrayList<>(items);
+        String[] bizIds = new String[itemList.size()];
+
+        // 按bucketId 和 bucketWindow分组
+        Map<Pair<String, Long>, List<Integer>> bucketItemIndexMap = new LinkedHashMap<>();
+        List<BucketItem> bucketItemList = new ArrayList<>(itemList.size());
+        for (int i = 0; i < itemList.size(); i++) {
+            T item = itemList.get(i);
+            Object hashKey = itemParser.hashKey(item);
+            if (hashKey == null) {
+                throw new RuntimeException("can not add no hash key item");
+            }
+
+            bucketItemList.add(itemParser.parseItem(item));
+
+            String bucketId = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getBucketId(item) : String.valueOf(hashKey);
+            Long timestamp = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getTimestamp(item) : null;
+            Long bucketWindow = bucketWindowCalculator.getBucketWindow(bucketId, timestamp, 1);
+            bucketItemIndexMap.computeIfAbsent(Pair.of(bucketId, bucketWindow), key -> new LinkedList<>()).add(i);
+        }
+
+        bucketItemIndexMap.forEach((bucketKey, itemIndexList) -> {
+            String bucketId = bucketKey.getLeft();
+
+            Iterator<Integer> itemIndexIterator = itemIndexList.iterator();
+            long[] itemSizeBytes = itemIndexList.stream().mapToLong(itemIndex -> bucketDataMapper.estimateNewItemSize(bucketItemList.get(itemIndex))).toArray();
+            bucketSlotAllocator.allocate(bucketId, bucketKey.getRight(), itemSizeBytes).forEach(bucketSlotRange -> {
+                Long bucketWindow = bucketSlotRange.getBucketWindow();
+
+                List<BucketItem> windowBucketItemList = new LinkedList<>();
+                IndexCollection windowIndexCollection = new IndexCollection();
+                for (int i = 0; i < bucketSlotRange.size(); i++) {
+                    Integer itemIndex = itemIndexIterator.next();
+                    BucketItem bucketItem = bucketItemList.get(itemIndex);
+
+                    String bizId = generateBizId(bucketId, bucketWindow);
+                    bucketItem.setBizId(bizId);
+                    bucketItem.setItemOrdinal(bucketSlotRange.getFromSlot() + i);
+                    bizIds[itemIndex] = bizId;
+
+                    mergeIndexCollection(windowIndexCollection, bucketItem.getIndexCollection());
+                    windowBucketItemList.add(bucketItem);
+                }
+
+                bucketMetaDataMapper.initIndex(bucketId, bucketWindow, windowIndexCollection);
+                insertAll(windowBucketItemList);
+            });
+        });
+
+        return Arrays.asList(bizIds);
+    }
+
     @Override
     public void update(String bizId, T item) {
         BucketItem bucketItem = itemParser.parseItem(item);
@@ -110,7 +242,19 @@ public class SimpleBucket<T> implements BucketApi<T> {
         IndexCollection indexCollection = bucketItem.getIndexCollection();
         bucketMetaDataMapper.initIndex(bucketId, bucketWindow, indexCollection);
 
-        bucketDataMapper.update(bucketItem);
+        if (bucketWriteBuffer != null) {
+            bucketWriteBuffer.update(bucketItem);
+        } else {
+            bucketDataMapper.update(bucketItem);
+        }
+
+        if (bucketItemCache != null) {
+            bucketItemCache.invalidate(bucketId, bucketWindow, bucketItem.getItemId());
+        }
+
+        if (bucketIndexCompactor != null && indexCollection != null && MapUtils.isNotEmpty(indexCollection.getIndexMap())) {
+            bucketIndexCompactor.submit(bucketId, bucketWindow, indexCollection.getIndexMap().keySet());
+        }
     }
 
     @Override
@@ -122,7 +266,15 @@ public class SimpleBucket<T> implements BucketApi<T> {
             bucketItem.setItemId(itemId);
         }
 
+        if (bucketWriteBuffer != null) {
+            bucketWriteBuffer.flush(bucketItem.getBucketId(), bucketItem.getBucketWindow());
+        }
+
         bucketDataMapper.delete(bucketItem);
+
+        if (bucketItemCache != null) {
+            bucketItemCache.invalidate(bucketItem.getBucketId(), bucketItem.getBucketWindow(), bucketItem.getItemId());
+        }
     }
 
     @Override
@@ -137,10 +289,50 @@ public class SimpleBucket<T> implements BucketApi<T> {
         String bucketId = bucketItem.getBucketId();
         Long bucketWindow = (Long) bucketItem.getBucketWindow();
 
-        BucketItem queryBucketItem = bucketDataMapper.queryOne(bucketId, bucketWindow, bucketItem.getItemId());
+        // 缓存的item只会由写入删除, 命中时不需要flush写缓冲
+        BucketItem queryBucketItem = bucketItemCache != null ? bucketItemCache.get(bucketId, bucketWindow, bucketItem.getItemId()) : null;
+        if (queryBucketItem != null) {
+            return itemParser instanceof SimpleItemParser ? itemParser.convert2Item(queryBucketItem) : null;
+        }
+
+        if (bucketWriteBuffer != null) {
+            bucketWriteBuffer.flush(bucketId, bucketWindow);
+        }
+
+        long readInvalidateSeq = bucketItemCache != null ? bucketItemCache.getInvalidateSeq() : 0;
+        queryBucketItem = bucketDataMapper.queryOne(bucketId, bucketWindow, bucketItem.getItemId());
+        if (bucketItemCache != null) {
+            bucketItemCache.put(bucketId, bucketWindow, bucketItem.getItemId(), queryBucketItem, readInvalidateSeq);
+        }
         return itemParser instanceof SimpleItemParser ? itemParser.convert2Item(queryBucketItem) : null;
     }
 
+    @Override
+    public void flush() {
+        if (bucketWriteBuffer != null) {
+            bucketWriteBuffer.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (bucketWriteBuffer != null) {
+                bucketWriteBuffer.close();
+            }
+        } finally {
+            if (bucketIndexCompactor != null) {
+                bucketIndexCompactor.close();
+            }
+            synchronized (this) {
+                if (bucketQueryExecutorService != null && bucketQueryExecutorService != bucketConfig.getBucketQueryExecutorService()) {
+                    bucketQueryExecutorService.shutdown();
+                }
+            }
+            bucketDataMapper.close();
+        }
+    }
+
     @Override
     public List<T> query(DataQueryParam dataQueryParam, T latestItem) {
         if (dataQueryParam == null) {
@@ -161,42 +353,207 @@ public class SimpleBucket<T> implements BucketApi<T> {
             return Collections.emptyList();
         }
 
-        AtomicReference<String> lastBucketIdAtom = new AtomicReference<>();
-        AtomicReference<Long> lastTimestampAtom = new AtomicReference<>();
-        if (latestItem != null) {
-            String lastBucketId = ((SimpleItemParser<T>) itemParser).getBucketId(latestItem);
-            lastBucketIdAtom.set(lastBucketId);
-            Long lastTimestamp = ((SimpleItemParser<T>) itemParser).getTimestamp(latestItem);
-            lastTimestampAtom.set(lastTimestamp);
-        }
+        flushWriteBuffer(queryBucketIdList);
 
         IndexCollection queryIndexCollection = ((SimpleItemParser<T>) itemParser).getQueryIndexCollection(dataQueryParam);
+        DataQueryParam projectionDataQueryParam = getProjectionDataQueryParam(dataQueryParam);
+
+        // 所有bucketId都从latestItem之后继续, 只按bucketId过滤会丢掉较小bucketId中更早的item
+        List<String> distinctQueryBucketIdList = queryBucketIdList.stream().distinct().collect(Collectors.toList());
+
+        // 每个bucketId都需要查出前to条, 合并后再跳过from
+        List<CompletableFuture<List<T>>> bucketQueryFutureList = distinctQueryBucketIdList.stream().map(queryBucketId -> {
+            Supplier<List<T>> bucketQuerySupplier = () -> queryBucket(queryBucketId, queryTimestampRange, latestItem, queryIndexCollection, projectionDataQueryParam);
+            return distinctQueryBucketIdList.size() == 1 ? CompletableFuture.completedFuture(bucketQuerySupplier.get()) : CompletableFuture.supplyAsync(bucketQuerySupplier, getBucketQueryExecutorService());
+        }).collect(Collectors.toList());
+
+        List<Iterator<T>> bucketItemIteratorList;
+        try {
+            bucketItemIteratorList = bucketQueryFutureList.stream().map(bucketQueryFuture -> bucketQueryFuture.join().iterator()).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            bucketQueryFutureList.forEach(bucketQueryFuture -> bucketQueryFuture.cancel(true));
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
 
+        // 按(时间倒序, bucketId, itemId)k路归并, 与latestItem的续查顺序一致
+        Iterator<T> mergeIterator = new OrderedMergeIterator<>(bucketItemIteratorList, getQueryItemComparator());
         List<T> itemList = new LinkedList<>();
-        queryBucketIdList.stream().sorted(String::compareTo).filter(queryBucketId -> StringUtils.isNotEmpty(lastBucketIdAtom.get()) ? queryBucketId.compareTo(lastBucketIdAtom.get()) >= 0 : true).forEach(queryBucketId -> {
-            if (itemList.size() >= (dataQueryParam.getTo() - dataQueryParam.getFrom())) {
-                return;
+        int skipCount = 0;
+        while (mergeIterator.hasNext() && itemList.size() < (dataQueryParam.getTo() - dataQueryParam.getFrom())) {
+            T item = mergeIterator.next();
+            if (skipCount++ < dataQueryParam.getFrom()) {
+                continue;
             }
+            itemList.add(item);
+        }
+        return itemList;
+    }
+
+    @Override
+    public BucketQueryResult<T> queryPage(DataQueryParam dataQueryParam) {
+        if (dataQueryParam == null || dataQueryParam.getTo() <= dataQueryParam.getFrom()) {
+            return new BucketQueryResult<>(Collections.emptyList(), null);
+        }
+
+        List<String> queryBucketIdList = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getQueryBucketIdList(dataQueryParam) : null;
+        Pair<Long, Long> queryTimestampRange = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getQueryTimestampRange(dataQueryParam) : null;
+        if (CollectionUtils.isEmpty(queryBucketIdList) || queryTimestampRange == null) {
+            return new BucketQueryResult<>(Collections.emptyList(), null);
+        }
+
+        flushWriteBuffer(queryBucketIdList);
+
+        IndexCollection queryIndexCollection = ((SimpleItemParser<T>) itemParser).getQueryIndexCollection(dataQueryParam);
+
+        BucketQueryResult<BucketItem> bucketQueryResult = bucketDataMapper.queryPage(queryBucketIdList, queryBucketId -> getQueryBucketWindowRange(queryBucketId, queryTimestampRange, null), queryIndexCollection, getProjectionDataQueryParam(dataQueryParam), getBucketItemComparator(), getBucketQueryExecutorService());
+        List<T> itemList = bucketQueryResult.getItemList().stream().map(itemParser::convert2Item).collect(Collectors.toList());
+        return new BucketQueryResult<>(itemList, bucketQueryResult.getCursor());
+    }
+
+    @Override
+    public Stream<T> stream(DataQueryParam dataQueryParam) {
+        if (dataQueryParam == null) {
+            return Stream.empty();
+        }
+
+        List<String> queryBucketIdList = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getQueryBucketIdList(dataQueryParam) : null;
+        Pair<Long, Long> queryTimestampRange = itemParser instanceof SimpleItemParser ? ((SimpleItemParser<T>) itemParser).getQueryTimestampRange(dataQueryParam) : null;
+        if (CollectionUtils.isEmpty(queryBucketIdList) || queryTimestampRange == null) {
+            return Stream.empty();
+        }
+
+        // stream是惰性的, 只保证读到创建stream之前的写入
+        flushWriteBuffer(queryBucketIdList);
+
+        IndexCollection queryIndexCollection = ((SimpleItemParser<T>) itemParser).getQueryIndexCollection(dataQueryParam);
+        DataQueryParam projectionDataQueryParam = getProjectionDataQueryParam(dataQueryParam);
 
-            Long startBucketWindow = queryTimestampRange.getLeft() / (60 * 60);
-            Long endBucketWindow = Math.min(queryTimestampRange.getRight(), lastTimestampAtom.get() != null ? lastTimestampAtom.get() : Long.MAX_VALUE) / (60 * 60);
-            Object currentBucketWindow = bucketMetaDataMapper.getCurrentBucketWindow(queryBucketId);
-            if (currentBucketWindow != null) {
-                endBucketWindow = Math.min(endBucketWindow, (Long)currentBucketWindow);
+        // 终端操作开始时才创建迭代器, 消费到哪个window才拉取哪个window
+        Stream<T> itemStream = StreamSupport.stream(() -> Spliterators.spliteratorUnknownSize(bucketDataMapper.iterate(queryBucketIdList, queryBucketId -> getQueryBucketWindowRange(queryBucketId, queryTimestampRange, null), queryIndexCollection, projectionDataQueryParam, getBucketItemComparator()), Spliterator.ORDERED), Spliterator.ORDERED, false)
+                .map(itemParser::convert2Item);
+        return dataQueryParam.getTo() > dataQueryParam.getFrom() ? itemStream.skip(dataQueryParam.getFrom()).limit(dataQueryParam.getTo() - dataQueryParam.getFrom()) : itemStream;
+    }
+
+    /**
+     * 查询前写入这些bucketId缓冲的item, 保证能读到自己的写入
+     */
+    void flushWriteBuffer(List<String> queryBucketIdList) {
+        if (bucketWriteBuffer != null) {
+            bucketWriteBuffer.flush(queryBucketIdList);
+        }
+    }
+
+    DataQueryParam getProjectionDataQueryParam(DataQueryParam dataQueryParam) {
+        if (CollectionUtils.isEmpty(dataQueryParam.getProjectionList())) {
+            return dataQueryParam;
+        }
+
+        // 复制一份避免修改调用方的参数
+        DataQueryParam projectionDataQueryParam = DataQueryParam.builder().build();
+        BeanUtils.copyProperties(dataQueryParam, projectionDataQueryParam);
+        projectionDataQueryParam.setProjectionList(((SimpleItemParser<T>) itemParser).getProjectionList(dataQueryParam));
+        return projectionDataQueryParam;
+    }
+
+    Comparator<BucketItem> getBucketItemComparator() {
+        return Comparator.comparing((BucketItem bucketItem) -> ((SimpleItemParser<T>) itemParser).getTimestamp(bucketItem), Comparator.nullsLast(Comparator.reverseOrder()));
+    }
+
+    Pair<Long, Long> getQueryBucketWindowRange(String queryBucketId, Pair<Long, Long> queryTimestampRange, Long lastTimestamp) {
+        Long startBucketWindow = bucketWindowCalculator.getWindowUnit(queryTimestampRange.getLeft());
+        Long endBucketWindow = bucketWindowCalculator.getWindowUnit(Math.min(queryTimestampRange.getRight(), lastTimestamp != null ? lastTimestamp : Long.MAX_VALUE));
+        Object currentBucketWindow = bucketMetaDataMapper.getCurrentBucketWindow(queryBucketId);
+        if (currentBucketWindow != null) {
+            endBucketWindow = Math.min(endBucketWindow, (Long) currentBucketWindow);
+        }
+        return Pair.of(startBucketWindow, endBucketWindow);
+    }
+
+    List<T> queryBucket(String queryBucketId, Pair<Long, Long> queryTimestampRange, T latestItem, IndexCollection queryIndexCollection, DataQueryParam dataQueryParam) {
+        Long lastTimestamp = latestItem != null ? ((SimpleItemParser<T>) itemParser).getTimestamp(latestItem) : null;
+        Pair<Long, Long> bucketWindowRange = getQueryBucketWindowRange(queryBucketId, queryTimestampRange, lastTimestamp);
+        Long startBucketWindow = bucketWindowRange.getLeft();
+        Long endBucketWindow = bucketWindowRange.getRight();
+
+        DataQueryParam bucketDataQueryParam = DataQueryParam.builder().build();
+        BeanUtils.copyProperties(dataQueryParam, bucketDataQueryParam);
+        bucketDataQueryParam.setFrom(0);
+        bucketDataQueryParam.setTo(dataQueryParam.getTo());
+
+        // window内先排序并去掉latestItem及之前已返回的item, 再截取to条, 否则同一window超过to条时每次取到的都是同一批
+        Predicate<BucketItem> itemFilter = latestItem != null ? getAfterLatestItemFilter(queryBucketId, latestItem) : null;
+        List<BucketItem> queryBucketItemList = bucketDataMapper.query(queryBucketId, startBucketWindow, endBucketWindow, queryIndexCollection, bucketDataQueryParam, null, getBucketItemComparator(), itemFilter);
+        List<T> queryItemList = itemParser instanceof SimpleItemParser ? queryBucketItemList.stream().map(itemParser::convert2Item).collect(Collectors.toList()) : Collections.emptyList();
+
+        // 滚动到后面window的item时间可能更早, 归并前按查询顺序再排一次
+        List<T> sortedItemList = new ArrayList<>(queryItemList);
+        sortedItemList.sort(getQueryItemComparator());
+        return sortedItemList;
+    }
+
+    /**
+     * 与getQueryItemComparator的顺序一致, 只保留排在latestItem之后的item, bucketItem都属于queryBucketId
+     */
+    Predicate<BucketItem> getAfterLatestItemFilter(String queryBucketId, T latestItem) {
+        SimpleItemParser<T> simpleItemParser = (SimpleItemParser<T>) itemParser;
+        Long latestTimestamp = simpleItemParser.getTimestamp(latestItem);
+        String latestBucketId = simpleItemParser.getBucketId(latestItem);
+        String latestItemId = simpleItemParser.getItemId(latestItem);
+        Comparator<Long> timestampComparator = Comparator.nullsLast(Comparator.reverseOrder());
+        Comparator<String> idComparator = Comparator.nullsLast(Comparator.naturalOrder());
+        return bucketItem -> {
+            int result = timestampComparator.compare(simpleItemParser.getTimestamp(bucketItem), latestTimestamp);
+            if (result == 0) {
+                result = idComparator.compare(queryBucketId, latestBucketId);
+            }
+            if (result == 0) {
+                result = idComparator.compare(bucketItem.getItemId(), latestItemId);
             }
+            return result > 0;
+        };
+    }
 
-            DataQueryParam bucketDataQueryParam = DataQueryParam.builder().build();
-            BeanUtils.copyProperties(dataQueryParam, bucketDataQueryParam);
-            bucketDataQueryParam.setFrom(Math.max(dataQueryParam.getFrom() - itemList.size(), 0));
-            bucketDataQueryParam.setTo(dataQueryParam.getTo() - itemList.size());
+    Comparator<T> getTimestampComparator() {
+        return Comparator.comparing((T item) -> ((SimpleItemParser<T>) itemParser).getTimestamp(item), Comparator.nullsLast(Comparator.reverseOrder()));
+    }
 
-            List<BucketItem> queryBucketItemList = bucketDataMapper.query(queryBucketId, startBucketWindow, endBucketWindow, queryIndexCollection, bucketDataQueryParam);
-            List<T> queryItemList = itemParser instanceof SimpleItemParser ? queryBucketItemList.stream().map(itemParser::convert2Item).collect(Collectors.toList()) : null;
-            if (CollectionUtils.isNotEmpty(queryItemList)) {
-                itemList.addAll(queryItemList);
+    /**
+     * 时间倒序, 时间相同时按bucketId和itemId排序, 保证用latestItem续查时顺序稳定
+     */
+    Comparator<T> getQueryItemComparator() {
+        SimpleItemParser<T> simpleItemParser = (SimpleItemParser<T>) itemParser;
+        return getTimestampComparator()
+                .thenComparing((T item) -> simpleItemParser.getBucketId(item), Comparator.nullsLast(Comparator.naturalOrder()))
+                .thenComparing((T item) -> simpleItemParser.getItemId(item), Comparator.nullsLast(Comparator.naturalOrder()));
+    }
+
+    ExecutorService getBucketQueryExecutorService() {
+        if (bucketQueryExecutorService == null) {
+            synchronized (this) {
+                if (bucketQueryExecutorService == null) {
+                    bucketQueryExecutorService = bucketConfig.getBucketQueryExecutorService() != null ? bucketConfig.getBucketQueryExecutorService() : Executors.newFixedThreadPool(bucketConfig.getBucketQueryParallelism(), runnable -> {
+                        Thread thread = new Thread(runnable, "bucket-query-" + tableName);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
             }
+        }
+        return bucketQueryExecutorService;
+    }
+
+    String generateBizId(String bucketId, Long bucketWindow) {
+        return String.join("-", UUID.randomUUID().toString().substring(0, 5), bucketId, String.valueOf(bucketWindow), String.valueOf(System.currentTimeMillis() / 1000));
+    }
+
+    void mergeIndexCollection(IndexCollection targetIndexCollection, IndexCollection indexCollection) {
+        if (indexCollection == null) {
+            return;
+        }
+
+        indexCollection.getIndexMap().forEach((indexKey, invertedIndex) -> {
+            targetIndexCollection.getIndexMap().computeIfAbsent(indexKey, key -> new IndexCollection.InvertedIndex()).getInvertedIndexValueMap().putAll(invertedIndex.getInvertedIndexValueMap());
         });
-        return itemList;
     }
 
 }
@@ -17,10 +17,13 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @NoArgsConstructor
@@ -146,6 +149,46 @@ public class SimpleItemParser<T> implements ItemParser<T> {
         return timestamp != null ? (timestamp > Math.pow(10, 11) ? timestamp / 1000 : timestamp) : null;
     }
 
+    public Long getTimestamp(BucketItem bucketItem) {
+        Field itemTimestampField = Arrays.asList(tableModel.targetType().getDeclaredFields()).stream().filter(field -> field.getAnnotation(ItemTimestampField.class) != null).findAny().orElse(null);
+        if (itemTimestampField == null || bucketItem == null || MapUtils.isEmpty(bucketItem.getItemAttributeValueMap())) {
+            return null;
+        }
+
+        AttributeValue timestampAttributeValue = bucketItem.getItemAttributeValueMap().entrySet().stream().filter(attributeValueEntry -> attributeValueEntry.getKey().replaceAll("_", "").equalsIgnoreCase(itemTimestampField.getName())).map(Map.Entry::getValue).findAny().orElse(null);
+        if (timestampAttributeValue == null || StringUtils.isEmpty(timestampAttributeValue.getN())) {
+            return null;
+        }
+
+        Long timestamp = Long.valueOf(timestampAttributeValue.getN());
+        return timestamp > Math.pow(10, 11) ? timestamp / 1000 : timestamp;
+    }
+
+    /**
+     * 裁剪查询时补上主键和时间字段, 保证convert2Item和按时间排序可用
+     */
+    public List<String> getProjectionList(DataQueryParam dataQueryParam) {
+        if (CollectionUtils.isEmpty(dataQueryParam.getProjectionList())) {
+            return dataQueryParam.getProjectionList();
+        }
+
+        Set<String> projectionSet = new LinkedHashSet<>(dataQueryParam.getProjectionList());
+        projectionSet.add(tableModel.hashKey().name());
+        if (tableModel.rangeKey() != null) {
+            projectionSet.add(tableModel.rangeKey().name());
+        }
+
+        Field itemTimestampField = Arrays.asList(tableModel.targetType().getDeclaredFields()).stream().filter(field -> field.getAnnotation(ItemTimestampField.class) != null).findAny().orElse(null);
+        if (itemTimestampField != null) {
+            tableModel.fields().stream().map(fieldModel -> fieldModel.name()).filter(name -> name.replaceAll("_", "").equalsIgnoreCase(itemTimestampField.getName())).forEach(projectionSet::add);
+        }
+        return new ArrayList<>(projectionSet);
+    }
+
+    public String getItemId(T item) {
+        return getItemId(hashKey(item), rangeKey(item));
+    }
+
     public String getItemId(Object hashKey, Object rangeKey) {
         return String.join("_", String.valueOf(hashKey), String.valueOf(rangeKey));
     }
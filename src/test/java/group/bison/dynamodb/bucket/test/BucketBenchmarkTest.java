@@ -16,10 +16,21 @@ import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTypeConverted;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTyped;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
 import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.util.TableUtils;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import group.bison.dynamodb.bucket.api.BucketApi;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
 import group.bison.dynamodb.bucket.simple.SimpleBucket;
 import group.bison.dynamodb.bucket.simple.annotation.BucketIdField;
 import group.bison.dynamodb.bucket.simple.annotation.BucketIndexField;
@@ -33,11 +44,14 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -45,6 +59,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.DoubleAdder;
 
 import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
 import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
@@ -68,6 +83,12 @@ public class BucketBenchmarkTest {
 //                .build();
         AmazonDynamoDB daxDynamoDB = null;
 
+        // 参数: userCount rcu [itemCount], 对比不同slot/列数下每个item的读取RCU
+        if (ArrayUtils.getLength(args) > 1 && "rcu".equals(args[1])) {
+            benchmarkReadCapacity(dynamoDB, ArrayUtils.getLength(args) > 2 ? Integer.valueOf(args[2]) : 1000);
+            return;
+        }
+
 //        DeleteItemRequest deleteItemRequest = new DeleteItemRequest();
 //        deleteItemRequest.setTableName("bucket-video_library");
 //        deleteItemRequest.setKey(new HashMap<String, AttributeValue>() {{
@@ -146,6 +167,102 @@ public class BucketBenchmarkTest {
     }
 
 
+    static void benchmarkReadCapacity(AmazonDynamoDB dynamoDB, int itemCount) throws InterruptedException {
+        DoubleAdder consumedReadCapacity = new DoubleAdder();
+        AmazonDynamoDB capacityDynamoDB = newCapacityDynamoDB(dynamoDB, consumedReadCapacity);
+
+        int[][] bucketSettings = {{32, 32}, {64, 64}, {128, 128}, {256, 256}, {256, 64}};
+        for (int[] bucketSetting : bucketSettings) {
+            int bucketSlotCount = bucketSetting[0];
+            int bucketColumnCount = bucketSetting[1];
+            String tableName = String.join("_", "video_library_rcu", String.valueOf(bucketSlotCount), String.valueOf(bucketColumnCount));
+
+            BucketConfig bucketConfig = BucketConfig.builder().bucketSlotCount(bucketSlotCount).bucketColumnCount(bucketColumnCount).build();
+            BucketApi<VideoLibraryDO> bucketApi = new SimpleBucket<>(tableName, VideoLibraryDO.class, capacityDynamoDB, null, bucketConfig);
+            TableUtils.waitUntilActive(dynamoDB, "bucket-" + tableName);
+
+            Integer userId = Double.valueOf(Math.random() * Integer.MAX_VALUE).intValue();
+            for (int i = 0; i < itemCount; i++) {
+                bucketApi.add(newVideoLibraryDO(userId));
+            }
+
+            Map<String, String> expressionMap = new HashMap<>();
+            Map<String, AttributeValue> expressionValueMap = new HashMap<>();
+            expressionMap.put("user_id", "user_id=:userId");
+            expressionValueMap.put(":userId", new AttributeValue().withN(String.valueOf(userId)));
+
+            // 全量查询, 每个bucket整体读取
+            consumedReadCapacity.reset();
+            List<VideoLibraryDO> queryList = bucketApi.query(DataQueryParam.builder().expressionMap(expressionMap).expressionNameMap(Collections.emptyMap()).expressionValueMap(expressionValueMap).from(0).to(itemCount).build(), null);
+            double queryReadCapacity = consumedReadCapacity.sum();
+
+            // 首页查询, 只读最新的bucket
+            consumedReadCapacity.reset();
+            List<VideoLibraryDO> latestList = bucketApi.query(DataQueryParam.builder().expressionMap(expressionMap).expressionNameMap(Collections.emptyMap()).expressionValueMap(expressionValueMap).from(0).to(10).build(), null);
+            double latestReadCapacity = consumedReadCapacity.sum();
+
+            log.info("bucketSlotCount {} bucketColumnCount {} query items {} rcu {} rcu/item {}, latest items {} rcu {} rcu/item {}",
+                    bucketSlotCount, bucketColumnCount,
+                    queryList.size(), queryReadCapacity, queryList.isEmpty() ? 0 : queryReadCapacity / queryList.size(),
+                    latestList.size(), latestReadCapacity, latestList.isEmpty() ? 0 : latestReadCapacity / latestList.size());
+            bucketApi.close();
+        }
+    }
+
+    /**
+     * 读请求带上ReturnConsumedCapacity, 累加消耗的RCU
+     */
+    static AmazonDynamoDB newCapacityDynamoDB(AmazonDynamoDB dynamoDB, DoubleAdder consumedReadCapacity) {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(), new Class[]{AmazonDynamoDB.class}, (proxy, method, methodArgs) -> {
+            Object request = methodArgs != null && methodArgs.length == 1 ? methodArgs[0] : null;
+            if (request instanceof GetItemRequest) {
+                ((GetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            } else if (request instanceof QueryRequest) {
+                ((QueryRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            } else if (request instanceof BatchGetItemRequest) {
+                ((BatchGetItemRequest) request).setReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+
+            Object result;
+            try {
+                result = method.invoke(dynamoDB, methodArgs);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+
+            if (result instanceof GetItemResult && ((GetItemResult) result).getConsumedCapacity() != null) {
+                consumedReadCapacity.add(((GetItemResult) result).getConsumedCapacity().getCapacityUnits());
+            } else if (result instanceof QueryResult && ((QueryResult) result).getConsumedCapacity() != null) {
+                consumedReadCapacity.add(((QueryResult) result).getConsumedCapacity().getCapacityUnits());
+            } else if (result instanceof BatchGetItemResult && ((BatchGetItemResult) result).getConsumedCapacity() != null) {
+                ((BatchGetItemResult) result).getConsumedCapacity().stream().map(ConsumedCapacity::getCapacityUnits).forEach(consumedReadCapacity::add);
+            }
+            return result;
+        });
+    }
+
+    static VideoLibraryDO newVideoLibraryDO(Integer userId) {
+        return VideoLibraryDO.builder()
+                .userId(userId)
+                .id(Double.valueOf(Math.random() * Integer.MAX_VALUE).intValue())
+                .traceId(UUID.randomUUID().toString())
+                .type(1)
+                .tags(Collections.singleton(Math.random() > 0.5 ? "PERSON" : "VEHICLE"))
+                .adminId(userId)
+                .timestamp(Long.valueOf(System.currentTimeMillis() / 1000).intValue())
+                .serialNumber(Math.random() > 0.8 ? "sn_03" : Math.random() > 0.5 ? "sn_02" : "sn_01")
+                .deviceName("smart camera")
+                .deleted(0).expired(0)
+                .marked(0).missing(1)
+                .imageOnly(0)
+                .shareUserIds(Arrays.asList(userId))
+                .imageUrl("http://aasddasdasddsdasdshdkdhksjhdkdhajdhasadasdasdaksdhadjasldjajdaskdjaldjalskdasdasdd.png")
+                .videoUrl("http://aasddasdasddsdasdshdkdhksjhdkdhajdhasadasdasdadaksldjaldajsldkajdlajdlkasjdlsjlasdjlkajdlkajsdjasdlkjdlkasjd.m3u8")
+                .videoEvent(String.valueOf(System.currentTimeMillis()))
+                .ttlTimestamp(Long.valueOf(System.currentTimeMillis() / 1000 + 8 * 60 * 60))
+                .build();
+    }
+
     @DynamoDBTable(tableName = "video_library") // 会被配置项${dynamo.videoLibrary.tableName}覆盖
     @Data
     @Builder
@@ -0,0 +1,46 @@
+package group.bison.dynamodb.bucket.test;
+
+import group.bison.dynamodb.bucket.common.domain.BucketCursor;
+import lombok.extern.slf4j.Slf4j;
+
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkThrows;
+
+@Slf4j
+public class BucketCursorTest {
+
+    public static void main(String[] args) {
+        BucketCursor bucketCursor = new BucketCursor();
+        addPosition(bucketCursor, new BucketCursor.Position("user_1", 1697500000L, 3, "item_3", false));
+        // 分隔符, %和中文都要转义
+        addPosition(bucketCursor, new BucketCursor.Position("user,2;门口%", "2023-10-17", 0, "a,b;c%d", false));
+        addPosition(bucketCursor, new BucketCursor.Position("user_3", null, 0, null, true));
+
+        String cursor = bucketCursor.encode();
+        log.info("cursor {}", cursor);
+        check(cursor.matches("[A-Za-z0-9_-]+"), "cursor is url safe");
+
+        BucketCursor decodeBucketCursor = BucketCursor.decode(cursor);
+        check(bucketCursor.equals(decodeBucketCursor), "round trip");
+        check(decodeBucketCursor.getPositionMap().get("user_1").getBucketWindow() instanceof Long, "number window");
+        check(decodeBucketCursor.getPositionMap().get("user,2;门口%").getBucketWindow() instanceof String, "string window");
+        check(decodeBucketCursor.getPositionMap().get("user_3").getItemId() == null, "empty item id");
+        check(!decodeBucketCursor.isExhausted(), "not exhausted");
+
+        decodeBucketCursor.getPositionMap().values().forEach(position -> position.setExhausted(true));
+        check(BucketCursor.decode(decodeBucketCursor.encode()).isExhausted(), "all exhausted");
+
+        check(BucketCursor.decode(null).getPositionMap().isEmpty(), "null cursor");
+        check(BucketCursor.decode("").getPositionMap().isEmpty(), "empty cursor");
+        check(!BucketCursor.decode("").isExhausted(), "empty cursor not exhausted");
+
+        checkThrows(IllegalArgumentException.class, () -> BucketCursor.decode("not base64!"), "invalid base64");
+        checkThrows(IllegalArgumentException.class, () -> BucketCursor.decode("dXNlcl8x"), "missing position fields");
+
+        log.info("BucketCursorTest passed");
+    }
+
+    static void addPosition(BucketCursor bucketCursor, BucketCursor.Position position) {
+        bucketCursor.getPositionMap().put(position.getBucketId(), position);
+    }
+}
@@ -0,0 +1,90 @@
+package group.bison.dynamodb.bucket.test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
+import group.bison.dynamodb.bucket.data.BucketDataQueryFetcher;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+import group.bison.dynamodb.bucket.simple.CompiledExpressionFilter;
+import group.bison.dynamodb.bucket.test.util.MemoryDynamoDB;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BIZ_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_MAP;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkEquals;
+
+@Slf4j
+public class BucketDataQueryFetcherTest {
+
+    static final String BUCKET_TABLE_NAME = "bucket-fetch_item";
+
+    static final int BUCKET_COLUMN_COUNT = 64;
+
+    public static void main(String[] args) {
+        MemoryDynamoDB dynamoDB = new MemoryDynamoDB();
+        AttributeValue bucketWindow = new AttributeValue().withN("470000");
+
+        // 一个window里80个item, 带projection时路径总长度远超4KB
+        Map<String, AttributeValue> bucket = new HashMap<>();
+        bucket.put(KEY_BUCKET_ID, new AttributeValue().withS("user_1"));
+        bucket.put(KEY_START_BUCKET_WINDOW, bucketWindow);
+        List<String> itemIdList = new ArrayList<>();
+        for (int i = 0; i < 80; i++) {
+            String itemId = String.format("trace_%03d_user_1", i);
+            itemIdList.add(itemId);
+
+            Map<String, AttributeValue> itemAttributeValueMap = new HashMap<>();
+            itemAttributeValueMap.put("title", new AttributeValue().withS("title" + i));
+            itemAttributeValueMap.put("image_url", new AttributeValue().withS("https://img.example.com/" + i));
+            itemAttributeValueMap.put("score", new AttributeValue().withN(String.valueOf(i)));
+            itemAttributeValueMap.put(KEY_BIZ_ID, new AttributeValue().withS(String.join("-", "fetch_item", "user_1", "470000", itemId)));
+            bucket.computeIfAbsent(getItemMapColumn(itemId), key -> new AttributeValue().withM(new HashMap<>())).getM().put(itemId, new AttributeValue().withM(itemAttributeValueMap));
+        }
+        dynamoDB.putItem(new PutItemRequest().withTableName(BUCKET_TABLE_NAME).withItem(bucket));
+
+        BucketDataQueryFetcher bucketDataQueryFetcher = new BucketDataQueryFetcher(BUCKET_TABLE_NAME, dynamoDB, new CompiledExpressionFilter(), BUCKET_COLUMN_COUNT, null);
+
+        // projection路径按表达式长度拆成多次GetItem
+        Map<String, String> expressionMap = new HashMap<>();
+        expressionMap.put("score", "score >= :minScore");
+        Map<String, AttributeValue> expressionValueMap = new HashMap<>();
+        expressionValueMap.put(":minScore", new AttributeValue().withN("10"));
+        DataQueryParam dataQueryParam = DataQueryParam.builder().expressionMap(expressionMap).expressionNameMap(new HashMap<>()).expressionValueMap(expressionValueMap).projectionList(Arrays.asList("title")).build();
+        List<BucketItem> bucketItemList = bucketDataQueryFetcher.fetch("user_1", bucketWindow, itemIdList, dataQueryParam);
+
+        List<GetItemRequest> getItemRequestList = dynamoDB.getGetItemRequestList();
+        log.info("projected fetch {} items with {} GetItem, expression length {}", bucketItemList.size(), getItemRequestList.size(),
+                getItemRequestList.stream().map(getItemRequest -> getItemRequest.getProjectionExpression().length()).collect(Collectors.toList()));
+        check(getItemRequestList.size() > 1, "projection split into multiple GetItem");
+        check(getItemRequestList.stream().allMatch(getItemRequest -> getItemRequest.getProjectionExpression().length() <= 4000), "projection within limit");
+        checkEquals(itemIdList.subList(10, 80), bucketItemList.stream().map(BucketItem::getItemId).sorted().collect(Collectors.toList()), "filtered items");
+        check(bucketItemList.stream().allMatch(bucketItem -> bucketItem.getItemAttributeValueMap().containsKey("title") && !bucketItem.getItemAttributeValueMap().containsKey("image_url")), "projected attributes");
+
+        // 不带projection时一次GetItem拿整个item
+        dynamoDB.getGetItemRequestList().clear();
+        bucketItemList = bucketDataQueryFetcher.fetch("user_1", bucketWindow, itemIdList.subList(0, 5), null);
+        checkEquals(1, dynamoDB.getGetItemRequestList().size(), "whole item single GetItem");
+        check(bucketItemList.size() == 5 && bucketItemList.stream().allMatch(bucketItem -> bucketItem.getItemAttributeValueMap().containsKey("image_url")), "whole item attributes");
+
+        dynamoDB.getGetItemRequestList().clear();
+        check(bucketDataQueryFetcher.fetch("user_1", bucketWindow, new ArrayList<>(), dataQueryParam).isEmpty() && dynamoDB.getGetItemRequestList().isEmpty(), "empty item ids");
+
+        log.info("BucketDataQueryFetcherTest passed");
+    }
+
+    static String getItemMapColumn(String itemId) {
+        int h = itemId.hashCode();
+        return String.join("", KEY_ITEM_MAP, String.valueOf((BUCKET_COLUMN_COUNT - 1) & (h ^ (h >>> 16))));
+    }
+}
@@ -0,0 +1,62 @@
+package group.bison.dynamodb.bucket.test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.data.BucketItemCache;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+import group.bison.dynamodb.bucket.simple.SimpleBucketItem;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+
+@Slf4j
+public class BucketItemCacheTest {
+
+    public static void main(String[] args) throws Exception {
+        BucketItemCache bucketItemCache = new BucketItemCache(1000, 200);
+        BucketItem bucketItem = newBucketItem("item_1", "v1");
+
+        long readInvalidateSeq = bucketItemCache.getInvalidateSeq();
+        check(bucketItemCache.get("user_1", 100L, "item_1") == null, "miss before put");
+        bucketItemCache.put("user_1", 100L, "item_1", bucketItem, readInvalidateSeq);
+        check(bucketItemCache.get("user_1", 100L, "item_1") == bucketItem, "hit after put");
+        check(bucketItemCache.get("user_1", 101L, "item_1") == null, "window is part of key");
+        check(bucketItemCache.get("user_2", 100L, "item_1") == null, "bucket id is part of key");
+
+        bucketItemCache.invalidate("user_1", 100L, "item_1");
+        check(bucketItemCache.get("user_1", 100L, "item_1") == null, "miss after invalidate");
+
+        // 读取开始后有update删除缓存, 读到的可能是旧值, 不能写入
+        readInvalidateSeq = bucketItemCache.getInvalidateSeq();
+        bucketItemCache.invalidate("user_1", 100L, "item_2");
+        bucketItemCache.put("user_1", 100L, "item_1", bucketItem, readInvalidateSeq);
+        check(bucketItemCache.get("user_1", 100L, "item_1") == null, "stale read not cached");
+
+        bucketItemCache.put("user_1", 100L, "item_3", null, bucketItemCache.getInvalidateSeq());
+        check(bucketItemCache.get("user_1", 100L, "item_3") == null, "null item not cached");
+
+        bucketItemCache.put("user_1", 100L, "item_1", bucketItem, bucketItemCache.getInvalidateSeq());
+        Thread.sleep(300);
+        check(bucketItemCache.get("user_1", 100L, "item_1") == null, "expired");
+        log.info("hitCount:{} missCount:{} hitRate:{}", bucketItemCache.getHitCount(), bucketItemCache.getMissCount(), bucketItemCache.getHitRate());
+        check(bucketItemCache.getHitCount() == 1, "hit count");
+
+        BucketItemCache smallBucketItemCache = new BucketItemCache(16, 0);
+        for (int i = 0; i < 1000; i++) {
+            smallBucketItemCache.put("user_1", 100L, "item_" + i, newBucketItem("item_" + i, "v" + i), smallBucketItemCache.getInvalidateSeq());
+        }
+        log.info("size:{} evictionCount:{}", smallBucketItemCache.size(), smallBucketItemCache.getEvictionCount());
+        check(smallBucketItemCache.size() < 1000, "bounded by max size");
+
+        log.info("BucketItemCacheTest passed");
+    }
+
+    static BucketItem newBucketItem(String itemId, String value) {
+        BucketItem bucketItem = new SimpleBucketItem();
+        bucketItem.setItemId(itemId);
+        bucketItem.setBizId(String.join("-", "biz", "user_1", "100", itemId));
+        bucketItem.setItemAttributeValueMap(Collections.singletonMap("value", new AttributeValue().withS(value)));
+        return bucketItem;
+    }
+}
@@ -0,0 +1,170 @@
+package group.bison.dynamodb.bucket.test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.data.BucketDataMapper;
+import group.bison.dynamodb.bucket.data.BucketWriteBuffer;
+import group.bison.dynamodb.bucket.metadata.BucketItem;
+import group.bison.dynamodb.bucket.simple.SimpleBucketItem;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkEquals;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkThrows;
+
+@Slf4j
+public class BucketWriteBufferTest {
+
+    public static void main(String[] args) {
+        // 后台flush间隔足够长, 只测试显式flush
+        BucketConfig bucketConfig = BucketConfig.builder().writeBufferEnabled(true).writeBufferFlushMillis(60 * 60 * 1000).writeBufferMaxItems(10).build();
+        RecordBucketDataMapper bucketDataMapper = new RecordBucketDataMapper(bucketConfig);
+        BucketWriteBuffer bucketWriteBuffer = new BucketWriteBuffer("bucket_test", bucketDataMapper, bucketConfig);
+
+        // insert之后的update合并进insert, 没有insert的update合并成一次update
+        bucketWriteBuffer.insertAll(Arrays.asList(newBucketItem("user_1", "item_1", "title", "a"), newBucketItem("user_1", "item_2", "title", "b")), true);
+        bucketWriteBuffer.update(newBucketItem("user_1", "item_1", "title", "a2"));
+        bucketWriteBuffer.update(newBucketItem("user_1", "item_3", "title", "c"));
+        bucketWriteBuffer.update(newBucketItem("user_1", "item_3", "mark", "1"));
+        checkEquals(3, bucketWriteBuffer.getPendingItemCount(), "pending item count");
+        check(bucketDataMapper.writeList.isEmpty(), "nothing written before flush");
+
+        bucketWriteBuffer.flush();
+        checkEquals(Arrays.asList("insert user_1 [item_1, item_2] true", "update user_1 item_3"), bucketDataMapper.writeList, "coalesced writes");
+        checkEquals("a2", bucketDataMapper.itemMap.get("item_1").get("title"), "update merged into insert");
+        checkEquals(toValueMap("title", "c", "mark", "1"), bucketDataMapper.itemMap.get("item_3"), "updates merged");
+        check(bucketWriteBuffer.getPendingItemCount() == 0, "empty after flush");
+
+        // 只flush指定的bucket
+        bucketDataMapper.writeList.clear();
+        bucketWriteBuffer.insertAll(Collections.singletonList(newBucketItem("user_1", "item_4", "title", "d")), false);
+        bucketWriteBuffer.insertAll(Collections.singletonList(newBucketItem("user_2", "item_5", "title", "e")), false);
+        bucketWriteBuffer.flush("user_2", 100L);
+        checkEquals(Collections.singletonList("insert user_2 [item_5] false"), bucketDataMapper.writeList, "flush one bucket");
+        bucketWriteBuffer.flush(Collections.singletonList("user_1"));
+        check(bucketDataMapper.writeList.size() == 2 && bucketWriteBuffer.getPendingItemCount() == 0, "flush bucket ids");
+
+        // 一个bucket失败不影响其他bucket, 失败的item留在缓冲里, flush期间的新写入合并在失败的写入之后
+        bucketDataMapper.writeList.clear();
+        bucketDataMapper.failBucketIdSet.add("user_1");
+        bucketWriteBuffer.update(newBucketItem("user_1", "item_6", "title", "f"));
+        bucketWriteBuffer.update(newBucketItem("user_2", "item_7", "title", "g"));
+        checkThrows(IllegalStateException.class, bucketWriteBuffer::flush, "failed bucket thrown");
+        checkEquals(Collections.singletonList("update user_2 item_7"), bucketDataMapper.writeList, "other bucket written");
+        checkEquals(1, bucketWriteBuffer.getPendingItemCount(), "failed item requeued");
+
+        bucketDataMapper.failBucketIdSet.clear();
+        bucketWriteBuffer.update(newBucketItem("user_1", "item_6", "mark", "1"));
+        checkEquals(1, bucketWriteBuffer.getPendingItemCount(), "new write merged into requeued item");
+        bucketWriteBuffer.flush();
+        checkEquals(toValueMap("title", "f", "mark", "1"), bucketDataMapper.itemMap.get("item_6"), "retry written");
+
+        // 缓冲满时先flush再接受新写入, 已缓冲的item直接合并
+        bucketDataMapper.writeList.clear();
+        for (int i = 0; i < 10; i++) {
+            bucketWriteBuffer.update(newBucketItem("user_3", "item_full_" + i, "title", "x"));
+        }
+        bucketWriteBuffer.update(newBucketItem("user_3", "item_full_0", "mark", "1"));
+        check(bucketWriteBuffer.getPendingItemCount() == 10 && bucketDataMapper.writeList.isEmpty(), "full buffer accepts merge");
+        bucketWriteBuffer.update(newBucketItem("user_3", "item_full_10", "title", "x"));
+        check(bucketWriteBuffer.getPendingItemCount() == 1 && bucketDataMapper.writeList.size() == 10, "flush before accepting");
+        bucketWriteBuffer.flush();
+
+        // 缓冲满且flush失败时拒绝新写入, 抛出的写入之后也不会写入
+        bucketDataMapper.writeList.clear();
+        bucketDataMapper.failBucketIdSet.add("user_4");
+        for (int i = 0; i < 10; i++) {
+            bucketWriteBuffer.update(newBucketItem("user_4", "item_reject_" + i, "title", "x"));
+        }
+        checkThrows(IllegalStateException.class, () -> bucketWriteBuffer.update(newBucketItem("user_5", "item_rejected", "title", "y")), "update rejected");
+        checkThrows(IllegalStateException.class, () -> bucketWriteBuffer.insertAll(Collections.singletonList(newBucketItem("user_5", "item_rejected", "title", "y")), true), "insert rejected");
+        checkEquals(10, bucketWriteBuffer.getPendingItemCount(), "buffer within maxItems");
+        bucketDataMapper.failBucketIdSet.clear();
+        bucketWriteBuffer.flush();
+        check(!bucketDataMapper.itemMap.containsKey("item_rejected") && bucketDataMapper.writeList.size() == 10, "rejected write never written");
+
+        // 超过maxItems的一批insert直接写入
+        bucketDataMapper.writeList.clear();
+        List<BucketItem> largeBucketItemList = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            largeBucketItemList.add(newBucketItem("user_6", "item_large_" + i, "title", "z"));
+        }
+        bucketWriteBuffer.insertAll(largeBucketItemList, true);
+        check(bucketWriteBuffer.getPendingItemCount() == 0 && bucketDataMapper.writeList.size() == 1, "large insert written directly");
+
+        bucketWriteBuffer.insertAll(Collections.singletonList(newBucketItem("user_3", "item_8", "title", "h")), true);
+        bucketWriteBuffer.close();
+        check(bucketDataMapper.itemMap.containsKey("item_8") && bucketWriteBuffer.getPendingItemCount() == 0, "flush on close");
+
+        log.info("BucketWriteBufferTest passed");
+    }
+
+    static BucketItem newBucketItem(String bucketId, String itemId, String name, String value) {
+        BucketItem bucketItem = new SimpleBucketItem();
+        bucketItem.setItemId(itemId);
+        bucketItem.setBizId(String.join("-", "biz", bucketId, "100", itemId));
+        Map<String, AttributeValue> itemAttributeValueMap = new HashMap<>();
+        itemAttributeValueMap.put(name, new AttributeValue().withS(value));
+        bucketItem.setItemAttributeValueMap(itemAttributeValueMap);
+        return bucketItem;
+    }
+
+    static Map<String, String> toValueMap(String... nameValues) {
+        Map<String, String> valueMap = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            valueMap.put(nameValues[i], nameValues[i + 1]);
+        }
+        return valueMap;
+    }
+
+    /**
+     * 只记录写入, 不访问dynamodb
+     */
+    static class RecordBucketDataMapper extends BucketDataMapper {
+
+        List<String> writeList = new CopyOnWriteArrayList<>();
+
+        Map<String, Map<String, String>> itemMap = new HashMap<>();
+
+        Set<String> failBucketIdSet = new HashSet<>();
+
+        RecordBucketDataMapper(BucketConfig bucketConfig) {
+            super("bucket_test", null, null, null, bucketConfig);
+        }
+
+        @Override
+        public void insertAll(List<BucketItem> bucketItemList, boolean slotLeased) {
+            String bucketId = bucketItemList.get(0).getBucketId();
+            if (failBucketIdSet.contains(bucketId)) {
+                throw new IllegalStateException("insert failed " + bucketId);
+            }
+            writeList.add(String.join(" ", "insert", bucketId, bucketItemList.stream().map(BucketItem::getItemId).collect(Collectors.toList()).toString(), String.valueOf(slotLeased)));
+            bucketItemList.forEach(this::record);
+        }
+
+        @Override
+        public void update(BucketItem bucketItem) {
+            if (failBucketIdSet.contains(bucketItem.getBucketId())) {
+                throw new IllegalStateException("update failed " + bucketItem.getBucketId());
+            }
+            writeList.add(String.join(" ", "update", bucketItem.getBucketId(), bucketItem.getItemId()));
+            record(bucketItem);
+        }
+
+        void record(BucketItem bucketItem) {
+            Map<String, String> valueMap = itemMap.computeIfAbsent(bucketItem.getItemId(), key -> new HashMap<>());
+            bucketItem.getItemAttributeValueMap().forEach((name, attributeValue) -> valueMap.put(name, attributeValue.getS()));
+        }
+    }
+}
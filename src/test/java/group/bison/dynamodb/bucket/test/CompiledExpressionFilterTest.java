@@ -0,0 +1,83 @@
+package group.bison.dynamodb.bucket.test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.data.ExpressionFilter;
+import group.bison.dynamodb.bucket.simple.CompiledExpressionFilter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkEquals;
+
+@Slf4j
+public class CompiledExpressionFilterTest {
+
+    public static void main(String[] args) {
+        ExpressionFilter expressionFilter = new CompiledExpressionFilter();
+
+        Map<String, AttributeValue> expressionValueMap = new HashMap<>();
+        expressionValueMap.put(":n5", new AttributeValue().withN("5"));
+        expressionValueMap.put(":n10", new AttributeValue().withN("10"));
+        expressionValueMap.put(":s", new AttributeValue().withS("abc"));
+        expressionValueMap.put(":prefix", new AttributeValue().withS("ab"));
+        expressionValueMap.put(":tag", new AttributeValue().withS("PERSON"));
+        expressionValueMap.put(":zero", new AttributeValue().withN("0"));
+        expressionValueMap.put(":b1", new AttributeValue().withB(ByteBuffer.wrap(new byte[]{0x01})));
+
+        AttributeValue n5 = new AttributeValue().withN("5.0");
+        AttributeValue n7 = new AttributeValue().withN("7");
+        AttributeValue n11 = new AttributeValue().withN("11");
+        AttributeValue s = new AttributeValue().withS("abc");
+        AttributeValue s9 = new AttributeValue().withS("9");
+        AttributeValue tags = new AttributeValue().withSS("PERSON", "VEHICLE");
+        AttributeValue b255 = new AttributeValue().withB(ByteBuffer.wrap(new byte[]{(byte) 0xFF}));
+
+        // 比较运算, 数字按数值比较
+        checkMatch(expressionFilter, "n = :n5", expressionValueMap, n5, true);
+        checkMatch(expressionFilter, "n <> :n5", expressionValueMap, n7, true);
+        checkMatch(expressionFilter, "n < :n10", expressionValueMap, n7, true);
+        checkMatch(expressionFilter, "n >= :n10", expressionValueMap, n7, false);
+        checkMatch(expressionFilter, "n BETWEEN :n5 AND :n10", expressionValueMap, n7, true);
+        checkMatch(expressionFilter, "n BETWEEN :n5 AND :n10", expressionValueMap, n11, false);
+        checkMatch(expressionFilter, "n IN (:n5, :n10)", expressionValueMap, n5, true);
+        checkMatch(expressionFilter, "n IN (:n5, :n10)", expressionValueMap, n7, false);
+
+        // 函数和逻辑运算
+        checkMatch(expressionFilter, "begins_with(s, :prefix)", expressionValueMap, s, true);
+        checkMatch(expressionFilter, "contains(tags, :tag)", expressionValueMap, tags, true);
+        checkMatch(expressionFilter, "size(tags) > :zero", expressionValueMap, tags, true);
+        checkMatch(expressionFilter, "attribute_not_exists(s)", expressionValueMap, null, true);
+        checkMatch(expressionFilter, "attribute_exists(s)", expressionValueMap, null, false);
+        checkMatch(expressionFilter, "n > :n5 AND NOT (n = :n10 OR n = :zero)", expressionValueMap, n7, true);
+        checkMatch(expressionFilter, "(n < :n5) OR n > :n10", expressionValueMap, n7, false);
+
+        // 类型不同: 不相等, 大小比较为false, 不按字符串比较
+        checkMatch(expressionFilter, "n = :s", expressionValueMap, n7, false);
+        checkMatch(expressionFilter, "n <> :s", expressionValueMap, n7, true);
+        checkMatch(expressionFilter, "n < :s", expressionValueMap, n7, false);
+        checkMatch(expressionFilter, "n >= :s", expressionValueMap, n7, false);
+        checkMatch(expressionFilter, "s > :n5", expressionValueMap, s9, false);
+        checkMatch(expressionFilter, "s BETWEEN :n5 AND :s", expressionValueMap, s9, false);
+        checkMatch(expressionFilter, "s IN (:n5, :s)", expressionValueMap, new AttributeValue().withS("5"), false);
+
+        // 属性不存在时<>为true, 其他比较为false
+        checkMatch(expressionFilter, "n <> :n5", expressionValueMap, null, true);
+        checkMatch(expressionFilter, "n = :n5", expressionValueMap, null, false);
+        checkMatch(expressionFilter, "n < :n5", expressionValueMap, null, false);
+
+        // 二进制按无符号字节比较
+        checkMatch(expressionFilter, "b > :b1", expressionValueMap, b255, true);
+
+        checkMatch(expressionFilter, "n = :n5", Collections.emptyMap(), n5, false);
+
+        log.info("CompiledExpressionFilterTest passed");
+    }
+
+    static void checkMatch(ExpressionFilter expressionFilter, String expression, Map<String, AttributeValue> expressionValueMap, AttributeValue currentAttributeValue, boolean expected) {
+        boolean match = expressionFilter.isMatch(expression, Collections.emptyMap(), expressionValueMap, currentAttributeValue);
+        checkEquals(expected, match, String.join("", expression, " with ", String.valueOf(currentAttributeValue)));
+    }
+}
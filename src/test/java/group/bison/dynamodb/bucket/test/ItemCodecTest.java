@@ -0,0 +1,81 @@
+package group.bison.dynamodb.bucket.test;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import group.bison.dynamodb.bucket.common.codec.AttributeValueSerializer;
+import group.bison.dynamodb.bucket.common.codec.DeflateItemCodec;
+import group.bison.dynamodb.bucket.common.codec.ItemCodec;
+import group.bison.dynamodb.bucket.common.codec.ItemCodecType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkEquals;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkThrows;
+
+@Slf4j
+public class ItemCodecTest {
+
+    public static void main(String[] args) {
+        Map<String, AttributeValue> nestedAttributeValueMap = new LinkedHashMap<>();
+        nestedAttributeValueMap.put("width", new AttributeValue().withN("1920"));
+        nestedAttributeValueMap.put("labels", new AttributeValue().withL(new AttributeValue().withS("cat"), new AttributeValue().withN("-1.5"), new AttributeValue().withBOOL(false)));
+
+        Map<String, AttributeValue> attributeValueMap = new LinkedHashMap<>();
+        attributeValueMap.put("image_url", new AttributeValue().withS("https://img.example.com/video/0001/cover.png"));
+        attributeValueMap.put("title", new AttributeValue().withS("门口有人经过"));
+        attributeValueMap.put("empty", new AttributeValue().withS(""));
+        attributeValueMap.put("timestamp", new AttributeValue().withN("1697500000"));
+        attributeValueMap.put("thumbnail", new AttributeValue().withB(ByteBuffer.wrap(new byte[]{0, 1, (byte) 0x80, (byte) 0xFF})));
+        attributeValueMap.put("tags", new AttributeValue().withSS("PERSON", "VEHICLE"));
+        attributeValueMap.put("share_user_ids", new AttributeValue().withNS("1", "2", "300"));
+        attributeValueMap.put("chunks", new AttributeValue().withBS(ByteBuffer.wrap(new byte[]{1}), ByteBuffer.wrap(new byte[]{2, 3})));
+        attributeValueMap.put("meta", new AttributeValue().withM(nestedAttributeValueMap));
+        attributeValueMap.put("empty_map", new AttributeValue().withM(Collections.emptyMap()));
+        attributeValueMap.put("marked", new AttributeValue().withBOOL(true));
+        attributeValueMap.put("deleted", new AttributeValue().withNULL(true));
+
+        byte[] data = AttributeValueSerializer.serialize(attributeValueMap);
+        Map<String, AttributeValue> deserializedAttributeValueMap = AttributeValueSerializer.deserialize(data);
+        checkEquals(attributeValueMap, deserializedAttributeValueMap, "serializer round trip");
+        log.info("serialized {} attributes to {} bytes", attributeValueMap.size(), data.length);
+
+        for (int value : new int[]{0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE}) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            AttributeValueSerializer.writeVarint(outputStream, value);
+            check(AttributeValueSerializer.readVarint(ByteBuffer.wrap(outputStream.toByteArray())) == value, "varint " + value);
+        }
+
+        byte[] dictionary = "https://img.example.com/video/image_urltimestamp".getBytes(StandardCharsets.UTF_8);
+        for (ItemCodecType itemCodecType : ItemCodecType.values()) {
+            ItemCodec itemCodec = itemCodecType.newCodec(dictionary);
+            if (itemCodec == null) {
+                continue;
+            }
+
+            byte[] compressed = itemCodec.compress(data);
+            byte[] decompressed = itemCodec.decompress(compressed, data.length);
+            check(Arrays.equals(data, decompressed), itemCodecType + " round trip");
+            check(ItemCodecType.of(itemCodecType.getId()) == itemCodecType, itemCodecType + " id");
+            log.info("{} compressed {} bytes to {} bytes", itemCodecType, data.length, compressed.length);
+
+            // 记录的长度与实际不符时不能返回错误数据
+            checkThrows(RuntimeException.class, () -> itemCodec.decompress(compressed, data.length + 1), itemCodecType + " longer length");
+            checkThrows(RuntimeException.class, () -> itemCodec.decompress(compressed, data.length - 1), itemCodecType + " shorter length");
+            checkThrows(RuntimeException.class, () -> itemCodec.decompress(Arrays.copyOf(compressed, compressed.length / 2), data.length), itemCodecType + " truncated payload");
+        }
+
+        // 字典不一致时拒绝解压
+        byte[] compressed = new DeflateItemCodec(dictionary).compress(data);
+        checkThrows(IllegalStateException.class, () -> new DeflateItemCodec("other dictionary".getBytes(StandardCharsets.UTF_8)).decompress(compressed, data.length), "deflate dictionary mismatch");
+        checkThrows(IllegalArgumentException.class, () -> ItemCodecType.of(99), "unknown codec id");
+
+        log.info("ItemCodecTest passed");
+    }
+}
@@ -0,0 +1,71 @@
+package group.bison.dynamodb.bucket.test;
+
+import group.bison.dynamodb.bucket.common.OrderedMergeIterator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkEquals;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkThrows;
+
+@Slf4j
+public class OrderedMergeIteratorTest {
+
+    public static void main(String[] args) {
+        // 与query一样按时间倒序, 元素为"时间:来源"
+        Comparator<String> comparator = Comparator.comparing((String element) -> Integer.parseInt(element.split(":")[0])).reversed();
+        List<List<String>> sourceList = Arrays.asList(
+                Arrays.asList("9:a", "5:a", "5:a2", "1:a"),
+                Collections.emptyList(),
+                Arrays.asList("8:c", "5:c", "2:c"),
+                Arrays.asList("5:d")
+        );
+
+        AtomicInteger pullCount = new AtomicInteger();
+        List<Iterator<String>> iteratorList = new ArrayList<>();
+        sourceList.forEach(source -> iteratorList.add(countingIterator(source.iterator(), pullCount)));
+
+        OrderedMergeIterator<String> mergeIterator = new OrderedMergeIterator<>(iteratorList, comparator);
+        checkEquals(3, pullCount.get(), "only heads pulled on create");
+
+        List<String> mergeList = new ArrayList<>();
+        mergeList.add(mergeIterator.next());
+        checkEquals(4, pullCount.get(), "one pull per next");
+        mergeIterator.forEachRemaining(mergeList::add);
+
+        // 相等时按iterator顺序, 同一个iterator内保持原有顺序
+        List<String> expectList = Arrays.asList("9:a", "8:c", "5:a", "5:a2", "5:c", "5:d", "2:c", "1:a");
+        log.info("merge {}", mergeList);
+        checkEquals(expectList, mergeList, "merge order");
+        check(!mergeIterator.hasNext(), "exhausted");
+
+        checkThrows(NoSuchElementException.class, mergeIterator::next, "next after exhausted");
+
+        check(!new OrderedMergeIterator<String>(Collections.emptyList(), comparator).hasNext(), "no iterator");
+
+        log.info("OrderedMergeIteratorTest passed");
+    }
+
+    static <E> Iterator<E> countingIterator(Iterator<E> iterator, AtomicInteger pullCount) {
+        return new Iterator<E>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                pullCount.incrementAndGet();
+                return iterator.next();
+            }
+        };
+    }
+}
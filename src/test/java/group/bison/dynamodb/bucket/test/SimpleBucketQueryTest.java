@@ -0,0 +1,154 @@
+package group.bison.dynamodb.bucket.test;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import group.bison.dynamodb.bucket.api.BucketApi;
+import group.bison.dynamodb.bucket.common.domain.BucketConfig;
+import group.bison.dynamodb.bucket.common.domain.DataQueryParam;
+import group.bison.dynamodb.bucket.simple.SimpleBucket;
+import group.bison.dynamodb.bucket.simple.annotation.BucketIdField;
+import group.bison.dynamodb.bucket.simple.annotation.ItemTimestampField;
+import group.bison.dynamodb.bucket.test.util.MemoryDynamoDB;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BIZ_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_ITEM_MAP;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.check;
+import static group.bison.dynamodb.bucket.test.util.TestAssert.checkEquals;
+
+@Slf4j
+public class SimpleBucketQueryTest {
+
+    static final String TABLE_NAME = "paging_item";
+
+    static final long WINDOW_SECONDS = 60 * 60;
+
+    static final int BUCKET_COLUMN_COUNT = 64;
+
+    public static void main(String[] args) {
+        MemoryDynamoDB dynamoDB = new MemoryDynamoDB();
+        BucketConfig bucketConfig = BucketConfig.builder().bucketWindowSeconds(WINDOW_SECONDS).bucketColumnCount(BUCKET_COLUMN_COUNT).build();
+
+        // user 1的最新window有25条, 超过每页10条, 其中有时间相同的item; user 2分布在两个window
+        long bucketWindow = 470000;
+        List<PagingItem> pagingItemList = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            pagingItemList.add(new PagingItem(String.format("t1_%02d", i), 1, (int) (bucketWindow * WINDOW_SECONDS + 100 + i / 2 * 10), "title" + i, null));
+        }
+        for (int i = 0; i < 6; i++) {
+            pagingItemList.add(new PagingItem(String.format("t2_%02d", i), 2, (int) (bucketWindow * WINDOW_SECONDS + 105 + i * 20), "title" + i, null));
+        }
+        for (int i = 0; i < 4; i++) {
+            pagingItemList.add(new PagingItem(String.format("t2_old_%02d", i), 2, (int) ((bucketWindow - 1) * WINDOW_SECONDS + 100 + i), "title" + i, null));
+        }
+        putBuckets(dynamoDB, pagingItemList);
+
+        List<String> expectItemIdList = pagingItemList.stream()
+                .sorted(Comparator.comparing(PagingItem::getTimestamp).reversed().thenComparing(PagingItem::getUserId).thenComparing(SimpleBucketQueryTest::getItemId))
+                .map(SimpleBucketQueryTest::getItemId).collect(Collectors.toList());
+
+        try (BucketApi<PagingItem> bucket = new SimpleBucket<>(TABLE_NAME, PagingItem.class, dynamoDB, null, bucketConfig)) {
+            Map<String, String> expressionMap = new HashMap<>();
+            expressionMap.put("user_id", "user_id IN (:userId1, :userId2)");
+            Map<String, AttributeValue> expressionValueMap = new HashMap<>();
+            expressionValueMap.put(":userId1", new AttributeValue().withN("1"));
+            expressionValueMap.put(":userId2", new AttributeValue().withN("2"));
+            DataQueryParam dataQueryParam = DataQueryParam.builder().expressionMap(expressionMap).expressionNameMap(new HashMap<>()).expressionValueMap(expressionValueMap).from(0).to(10).build();
+
+            // 用上一页最后一条续查, 每页都要是剩余item中最新的10条, 直到查完
+            List<String> queryItemIdList = new ArrayList<>();
+            PagingItem latestItem = null;
+            for (int page = 0; page < 10; page++) {
+                List<PagingItem> pageItemList = bucket.query(dataQueryParam, latestItem);
+                List<String> pageItemIdList = pageItemList.stream().map(SimpleBucketQueryTest::getItemId).collect(Collectors.toList());
+                log.info("page {} {}", page, pageItemIdList);
+                if (pageItemList.isEmpty()) {
+                    break;
+                }
+
+                int fromIndex = queryItemIdList.size();
+                checkEquals(expectItemIdList.subList(fromIndex, Math.min(expectItemIdList.size(), fromIndex + 10)), pageItemIdList, "page " + page);
+                queryItemIdList.addAll(pageItemIdList);
+                latestItem = pageItemList.get(pageItemList.size() - 1);
+            }
+            checkEquals(expectItemIdList, queryItemIdList, "all pages");
+            check(queryItemIdList.stream().distinct().count() == queryItemIdList.size(), "no duplicated item");
+        }
+
+        log.info("SimpleBucketQueryTest passed");
+    }
+
+    static String getItemId(PagingItem pagingItem) {
+        return String.join("_", pagingItem.getTraceId(), String.valueOf(pagingItem.getUserId()));
+    }
+
+    /**
+     * 按bucket表的结构直接写入, item放在itemId hash对应的item_map列
+     */
+    static void putBuckets(MemoryDynamoDB dynamoDB, List<PagingItem> pagingItemList) {
+        Map<String, Map<String, AttributeValue>> bucketMap = new HashMap<>();
+        pagingItemList.forEach(pagingItem -> {
+            long bucketWindow = pagingItem.getTimestamp() / WINDOW_SECONDS;
+            String itemId = getItemId(pagingItem);
+            Map<String, AttributeValue> bucket = bucketMap.computeIfAbsent(String.join("|", String.valueOf(pagingItem.getUserId()), String.valueOf(bucketWindow)), key -> {
+                Map<String, AttributeValue> newBucket = new HashMap<>();
+                newBucket.put(KEY_BUCKET_ID, new AttributeValue().withS(String.valueOf(pagingItem.getUserId())));
+                newBucket.put(KEY_START_BUCKET_WINDOW, new AttributeValue().withN(String.valueOf(bucketWindow)));
+                return newBucket;
+            });
+
+            Map<String, AttributeValue> itemAttributeValueMap = new HashMap<>();
+            itemAttributeValueMap.put("trace_id", new AttributeValue().withS(pagingItem.getTraceId()));
+            itemAttributeValueMap.put("user_id", new AttributeValue().withN(String.valueOf(pagingItem.getUserId())));
+            itemAttributeValueMap.put("timestamp", new AttributeValue().withN(String.valueOf(pagingItem.getTimestamp())));
+            itemAttributeValueMap.put("title", new AttributeValue().withS(pagingItem.getTitle()));
+            itemAttributeValueMap.put(KEY_BIZ_ID, new AttributeValue().withS(String.join("-", TABLE_NAME, String.valueOf(pagingItem.getUserId()), String.valueOf(bucketWindow), itemId)));
+            bucket.computeIfAbsent(getItemMapColumn(itemId), key -> new AttributeValue().withM(new HashMap<>())).getM().put(itemId, new AttributeValue().withM(itemAttributeValueMap));
+        });
+        bucketMap.values().forEach(bucket -> dynamoDB.putItem(new PutItemRequest().withTableName("bucket-" + TABLE_NAME).withItem(bucket)));
+    }
+
+    static String getItemMapColumn(String itemId) {
+        int h = itemId.hashCode();
+        return String.join("", KEY_ITEM_MAP, String.valueOf((BUCKET_COLUMN_COUNT - 1) & (h ^ (h >>> 16))));
+    }
+
+    @DynamoDBTable(tableName = TABLE_NAME)
+    @Data
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class PagingItem {
+
+        @DynamoDBHashKey(attributeName = "trace_id")
+        private String traceId;
+
+        @BucketIdField
+        @DynamoDBRangeKey(attributeName = "user_id")
+        private Integer userId;
+
+        @ItemTimestampField
+        @DynamoDBAttribute(attributeName = "timestamp")
+        private Integer timestamp;
+
+        @DynamoDBAttribute(attributeName = "title")
+        private String title;
+
+        private String bizId;
+    }
+}
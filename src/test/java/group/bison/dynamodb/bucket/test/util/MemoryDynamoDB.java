@@ -0,0 +1,132 @@
+package group.bison.dynamodb.bucket.test.util;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ListTablesResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static group.bison.dynamodb.bucket.common.Constants.KEY_BUCKET_ID;
+import static group.bison.dynamodb.bucket.common.Constants.KEY_START_BUCKET_WINDOW;
+
+/**
+ * 只支持bucket表读取用到的PutItem/GetItem/Query, 按dynamodb的规则拒绝超过4KB的projection
+ */
+public class MemoryDynamoDB extends AbstractAmazonDynamoDB {
+
+    static final int MAX_EXPRESSION_LENGTH = 4096;
+
+    // tableName -> bucketId|bucketWindow -> bucket
+    private Map<String, Map<String, Map<String, AttributeValue>>> tableMap = new ConcurrentHashMap<>();
+
+    private List<GetItemRequest> getItemRequestList = new CopyOnWriteArrayList<>();
+
+    public List<GetItemRequest> getGetItemRequestList() {
+        return getItemRequestList;
+    }
+
+    @Override
+    public ListTablesResult listTables() {
+        return new ListTablesResult().withTableNames(new ArrayList<>(tableMap.keySet()));
+    }
+
+    @Override
+    public CreateTableResult createTable(CreateTableRequest createTableRequest) {
+        tableMap.computeIfAbsent(createTableRequest.getTableName(), key -> new ConcurrentHashMap<>());
+        return new CreateTableResult();
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest putItemRequest) {
+        Map<String, AttributeValue> item = putItemRequest.getItem();
+        tableMap.computeIfAbsent(putItemRequest.getTableName(), key -> new ConcurrentHashMap<>()).put(getKey(item), new HashMap<>(item));
+        return new PutItemResult();
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest getItemRequest) {
+        getItemRequestList.add(getItemRequest);
+        Map<String, AttributeValue> item = tableMap.getOrDefault(getItemRequest.getTableName(), Collections.emptyMap()).get(getKey(getItemRequest.getKey()));
+        return new GetItemResult().withItem(item == null ? null : project(item, getItemRequest.getProjectionExpression(), getItemRequest.getExpressionAttributeNames()));
+    }
+
+    @Override
+    public QueryResult query(QueryRequest queryRequest) {
+        Map<String, AttributeValue> valueMap = queryRequest.getExpressionAttributeValues();
+        String bucketId = valueMap.get(":bucketId").getS();
+        BigDecimal startBucketWindow = new BigDecimal(valueMap.get(":startBucketWindow").getN());
+        BigDecimal endBucketWindow = new BigDecimal(valueMap.get(":endBucketWindow").getN());
+
+        Comparator<Map<String, AttributeValue>> windowComparator = Comparator.comparing(item -> new BigDecimal(item.get(KEY_START_BUCKET_WINDOW).getN()));
+        List<Map<String, AttributeValue>> itemList = tableMap.getOrDefault(queryRequest.getTableName(), Collections.emptyMap()).values().stream()
+                .filter(item -> bucketId.equals(item.get(KEY_BUCKET_ID).getS()))
+                .filter(item -> {
+                    BigDecimal bucketWindow = new BigDecimal(item.get(KEY_START_BUCKET_WINDOW).getN());
+                    return bucketWindow.compareTo(startBucketWindow) >= 0 && bucketWindow.compareTo(endBucketWindow) <= 0;
+                })
+                .sorted(Boolean.FALSE.equals(queryRequest.getScanIndexForward()) ? windowComparator.reversed() : windowComparator)
+                .map(item -> project(item, queryRequest.getProjectionExpression(), queryRequest.getExpressionAttributeNames()))
+                .collect(Collectors.toList());
+        return new QueryResult().withItems(itemList).withCount(itemList.size());
+    }
+
+    /**
+     * 支持a.#b.#c形式的路径, 不存在的路径忽略
+     */
+    Map<String, AttributeValue> project(Map<String, AttributeValue> item, String projectionExpression, Map<String, String> attributeNameMap) {
+        if (StringUtils.isEmpty(projectionExpression)) {
+            return item;
+        }
+        if (projectionExpression.length() > MAX_EXPRESSION_LENGTH) {
+            AmazonDynamoDBException exception = new AmazonDynamoDBException("Invalid ProjectionExpression: Expression size has exceeded the maximum allowed size");
+            exception.setErrorCode("ValidationException");
+            exception.setStatusCode(400);
+            throw exception;
+        }
+
+        Map<String, AttributeValue> projectItem = new HashMap<>();
+        for (String path : projectionExpression.split(",")) {
+            String[] names = path.trim().split("\\.");
+            Map<String, AttributeValue> sourceMap = item;
+            Map<String, AttributeValue> targetMap = projectItem;
+            for (int i = 0; i < names.length && sourceMap != null; i++) {
+                String name = names[i].startsWith("#") ? attributeNameMap.get(names[i]) : names[i];
+                AttributeValue attributeValue = sourceMap.get(name);
+                if (attributeValue == null) {
+                    break;
+                }
+                if (i == names.length - 1) {
+                    targetMap.put(name, attributeValue);
+                    break;
+                }
+                sourceMap = attributeValue.getM();
+                targetMap = targetMap.computeIfAbsent(name, key -> new AttributeValue().withM(new HashMap<>())).getM();
+            }
+        }
+        return projectItem;
+    }
+
+    String getKey(Map<String, AttributeValue> item) {
+        AttributeValue bucketWindow = item.get(KEY_START_BUCKET_WINDOW);
+        return String.join("|", item.get(KEY_BUCKET_ID).getS(), bucketWindow.getN() != null ? new BigDecimal(bucketWindow.getN()).toPlainString() : bucketWindow.getS());
+    }
+}
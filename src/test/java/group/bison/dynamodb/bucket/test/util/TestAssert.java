@@ -0,0 +1,36 @@
+package group.bison.dynamodb.bucket.test.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Objects;
+
+@Slf4j
+public class TestAssert {
+
+    public static void check(boolean result, String name) {
+        if (!result) {
+            throw new IllegalStateException(name + " failed");
+        }
+        log.info("{} ok", name);
+    }
+
+    public static void checkEquals(Object expected, Object actual, String name) {
+        if (!Objects.equals(expected, actual)) {
+            throw new IllegalStateException(String.join("", name, " failed, expect ", String.valueOf(expected), " but ", String.valueOf(actual)));
+        }
+        log.info("{} ok", name);
+    }
+
+    public static void checkThrows(Class<? extends RuntimeException> exceptionClass, Runnable runnable, String name) {
+        try {
+            runnable.run();
+        } catch (RuntimeException e) {
+            if (!exceptionClass.isInstance(e)) {
+                throw new IllegalStateException(String.join("", name, " failed, expect ", exceptionClass.getSimpleName(), " but ", e.toString()), e);
+            }
+            log.info("{} ok, {}", name, e.toString());
+            return;
+        }
+        throw new IllegalStateException(name + " failed, nothing thrown");
+    }
+}